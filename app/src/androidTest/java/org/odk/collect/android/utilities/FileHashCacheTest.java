@@ -0,0 +1,151 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.odk.collect.android.utilities;
+
+import android.test.InstrumentationTestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/** Tests for when {@link FileHashCache} trusts a remembered hash and when it reads the file. */
+public class FileHashCacheTest extends InstrumentationTestCase {
+
+    private File mDir;
+    private File mStore;
+    /** A modification time safely older than the resolution guard, in whole seconds. */
+    private long mLongAgo;
+
+    @Override protected void setUp() throws Exception {
+        super.setUp();
+        mDir = new File(getInstrumentation().getTargetContext().getCacheDir(), "file-hash-test");
+        deleteDir();
+        assertTrue(mDir.mkdirs());
+        mStore = new File(mDir, FileHashCache.FILENAME);
+        mLongAgo = (System.currentTimeMillis() / 1000 - 60) * 1000;
+    }
+
+    @Override protected void tearDown() throws Exception {
+        deleteDir();
+        super.tearDown();
+    }
+
+    public void testGetMd5Hash_matchesUncachedHash() throws Exception {
+        File file = write("form.xml", "abc", mLongAgo);
+        FileHashCache cache = new FileHashCache(mStore);
+
+        assertEquals(hash(file), cache.getMd5Hash(file));
+        assertEquals(hash(file), cache.getMd5Hash(file));
+    }
+
+    public void testGetMd5Hash_trustsUnchangedSizeAndTime() throws Exception {
+        File file = write("form.xml", "abc", mLongAgo);
+        FileHashCache cache = new FileHashCache(mStore);
+        String before = cache.getMd5Hash(file);
+
+        // Same length and modification time, so the file isn't read again.
+        write("form.xml", "xyz", mLongAgo);
+        assertEquals(before, cache.getMd5Hash(file));
+    }
+
+    public void testGetMd5Hash_rereadsWhenSizeChanges() throws Exception {
+        File file = write("form.xml", "abc", mLongAgo);
+        FileHashCache cache = new FileHashCache(mStore);
+        cache.getMd5Hash(file);
+
+        write("form.xml", "abcd", mLongAgo);
+        assertEquals(hash(file), cache.getMd5Hash(file));
+    }
+
+    public void testGetMd5Hash_rereadsWhenModificationTimeChanges() throws Exception {
+        File file = write("form.xml", "abc", mLongAgo);
+        FileHashCache cache = new FileHashCache(mStore);
+        cache.getMd5Hash(file);
+
+        write("form.xml", "xyz", mLongAgo + 10000);
+        assertEquals(hash(file), cache.getMd5Hash(file));
+    }
+
+    public void testGetMd5Hash_doesNotRememberRecentlyModifiedFiles() throws Exception {
+        long now = System.currentTimeMillis() / 1000 * 1000;
+        File file = write("form.xml", "abc", now);
+        FileHashCache cache = new FileHashCache(mStore);
+        cache.getMd5Hash(file);
+
+        // Within the modification time resolution, a rewrite can keep the same time.
+        write("form.xml", "xyz", now);
+        assertEquals(hash(file), cache.getMd5Hash(file));
+    }
+
+    public void testInvalidate_forgetsHash() throws Exception {
+        File file = write("form.xml", "abc", mLongAgo);
+        FileHashCache cache = new FileHashCache(mStore);
+        cache.getMd5Hash(file);
+
+        write("form.xml", "xyz", mLongAgo);
+        cache.invalidate(file);
+        assertEquals(hash(file), cache.getMd5Hash(file));
+    }
+
+    public void testFlush_keepsHashesAcrossInstances() throws Exception {
+        File file = write("form.xml", "abc", mLongAgo);
+        FileHashCache cache = new FileHashCache(mStore);
+        String before = cache.getMd5Hash(file);
+        cache.flush();
+
+        write("form.xml", "xyz", mLongAgo);
+        assertEquals(before, new FileHashCache(mStore).getMd5Hash(file));
+    }
+
+    public void testLoad_dropsEntriesForMissingFiles() throws Exception {
+        File kept = write("kept.xml", "abc", mLongAgo);
+        File deleted = write("deleted.xml", "def", mLongAgo);
+        FileHashCache cache = new FileHashCache(mStore);
+        cache.getMd5Hash(kept);
+        cache.getMd5Hash(deleted);
+        cache.flush();
+        assertTrue(deleted.delete());
+
+        cache = new FileHashCache(mStore);
+        cache.getMd5Hash(kept);
+        cache.flush();
+        String stored = new String(FileUtils.getFileAsBytes(mStore), "UTF-8");
+        assertTrue(stored.contains(kept.getAbsolutePath()));
+        assertFalse(stored.contains(deleted.getAbsolutePath()));
+    }
+
+    private File write(String name, String contents, long modified) throws IOException {
+        File file = new File(mDir, name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(contents.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        assertTrue(file.setLastModified(modified));
+        return file;
+    }
+
+    private void deleteDir() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    private static String hash(File file) {
+        return FileUtils.getMd5Hash(file);
+    }
+}
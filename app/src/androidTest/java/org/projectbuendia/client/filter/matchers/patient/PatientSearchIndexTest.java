@@ -0,0 +1,101 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.filter.matchers.patient;
+
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+
+import org.projectbuendia.client.FakeTypedCursor;
+import org.projectbuendia.client.filter.matchers.FilteredCursorWrapper;
+import org.projectbuendia.client.filter.matchers.MatchingFilter;
+import org.projectbuendia.client.filter.matchers.MatchingFilterGroup;
+import org.projectbuendia.client.models.Patient;
+import org.projectbuendia.client.models.TypedCursor;
+import org.projectbuendia.client.utils.Utils;
+
+import static org.projectbuendia.client.filter.matchers.MatchingFilterGroup.FilterType.OR;
+
+/** Tests for {@link PatientSearchIndex}. */
+public class PatientSearchIndexTest extends InstrumentationTestCase {
+    private static final Patient[] PATIENTS = new Patient[] {
+        getPatient("TH.1", "John", "Doe"),
+        getPatient("TH.2", "Anna Marie", "Smith"),
+        getPatient("KL.12", "Dick", "Van Dyke"),
+        getPatient("KL.3", null, "Doe"),
+        getPatient("TH.13", null, null),
+        null,
+        getPatient(null, "Johnny", "Smith"),
+    };
+
+    private static final String[] QUERIES = new String[] {
+        "", " ", "j", "JOHN", "john d", "doe", "smi", "van dy", "dy van", "anna ma", "-", "- -",
+        "⸗", "- doe", "jim", "th", "1", "kl.1", ".1", "h.1", "12", "th.2 ", "x"
+    };
+
+    private static Patient getPatient(String id, String givenName, String familyName) {
+        return Patient.builder()
+            .setId(id)
+            .setGivenName(Utils.nameOrUnknown(givenName))
+            .setFamilyName(Utils.nameOrUnknown(familyName))
+            .build();
+    }
+
+    /** Tests that the index matches the same patients as the ID and name filters. */
+    public void testSearch_matchesSameAsFilters() {
+        TypedCursor<Patient> cursor = new FakeTypedCursor<>(PATIENTS);
+        PatientSearchIndex index = new PatientSearchIndex(cursor);
+        MatchingFilter<Patient> filter =
+            new MatchingFilterGroup<>(OR, new IdFilter(), new NameFilter());
+        for (String query : QUERIES) {
+            assertSameResults(query,
+                new FilteredCursorWrapper<>(cursor, filter, query), index.search(query));
+        }
+    }
+
+    /** Tests that results keep the order of the underlying cursor. */
+    public void testSearch_preservesCursorOrder() {
+        FilteredCursorWrapper<Patient> results =
+            new PatientSearchIndex(new FakeTypedCursor<>(PATIENTS)).search("smith");
+        assertEquals(2, results.getCount());
+        assertSame(PATIENTS[1], results.get(0));
+        assertSame(PATIENTS[6], results.get(1));
+    }
+
+    /** Tests that searching a large patient list is fast once the index is built. */
+    public void testSearch_isFastForManyPatients() {
+        Patient[] patients = new Patient[5000];
+        for (int i = 0; i < patients.length; i++) {
+            patients[i] = getPatient("P." + i, "Given" + (i % 97), "Family" + i);
+        }
+        PatientSearchIndex index = new PatientSearchIndex(new FakeTypedCursor<>(patients));
+
+        String[] keystrokes = {"g", "gi", "giv", "give", "given", "given1", "given12"};
+        long start = SystemClock.elapsedRealtime();
+        int total = 0;
+        for (int run = 0; run < 10; run++) {
+            for (String query : keystrokes) {
+                total += index.search(query).getCount();
+            }
+        }
+        long perSearch = (SystemClock.elapsedRealtime() - start) / (10 * keystrokes.length);
+        assertTrue(total > 0);
+        assertTrue("Took " + perSearch + " ms per search", perSearch < 5);
+    }
+
+    private void assertSameResults(
+        String query, TypedCursor<Patient> expected, TypedCursor<Patient> actual) {
+        assertEquals("Query \"" + query + "\"", expected.getCount(), actual.getCount());
+        for (int i = 0; i < expected.getCount(); i++) {
+            assertSame("Query \"" + query + "\"", expected.get(i), actual.get(i));
+        }
+    }
+}
@@ -0,0 +1,164 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.net;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.test.InstrumentationTestCase;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.gson.Gson;
+
+import org.projectbuendia.client.AppSettings;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/** Tests {@link ChangeNotifier} against a stand-in server on a local socket. */
+public class ChangeNotifierTest extends InstrumentationTestCase {
+    private static final String PREFS_NAME = "change-notifier-test";
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private StandInServer mServer;
+    private ChangeNotifier mNotifier;
+    private final BlockingQueue<Set<String>> mNotifications = new LinkedBlockingQueue<>();
+
+    @Override protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new StandInServer();
+        Context context = getInstrumentation().getTargetContext();
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        prefs.edit()
+            .putString("openmrs_root_url", "http://127.0.0.1:" + mServer.getPort() + "/openmrs")
+            .commit();
+        OpenMrsConnectionDetails connectionDetails = new OpenMrsConnectionDetails(
+            VolleySingleton.getInstance(context), new AppSettings(prefs, context.getResources()));
+        mNotifier = new ChangeNotifier(connectionDetails, new Gson(),
+            new ChangeNotifier.Listener() {
+                @Override public void onTablesChanged(Set<String> tables) {
+                    mNotifications.add(tables);
+                }
+            });
+    }
+
+    @Override protected void tearDown() throws Exception {
+        mNotifier.stop();
+        mServer.close();
+        super.tearDown();
+    }
+
+    public void testNotifiesChangedTablesAndSendsCursor() throws Exception {
+        mServer.respond(200, "{\"cursor\": \"c1\", \"tables\": []}");
+        mServer.respond(200, "{\"cursor\": \"c2\", \"tables\": [\"observations\", \"orders\"]}");
+        mNotifier.start();
+
+        assertEquals(ImmutableSet.of("observations", "orders"),
+            mNotifications.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        String first = mServer.takeRequestLine();
+        assertTrue(first, first.startsWith("GET /openmrs/ws/rest/v1/projectbuendia/changes?"));
+        assertFalse(first, first.contains("since="));
+        String second = mServer.takeRequestLine();
+        assertTrue(second, second.contains("since=c1"));
+        // The next request continues from the new cursor.
+        String third = mServer.takeRequestLine();
+        assertTrue(third, third.contains("since=c2"));
+    }
+
+    public void testIgnoresTablesInFirstResponse() throws Exception {
+        mServer.respond(200, "{\"cursor\": \"c1\", \"tables\": [\"patients\"]}");
+        mServer.respond(200, "{\"cursor\": \"c2\", \"tables\": [\"patients\"]}");
+        mNotifier.start();
+
+        assertEquals(ImmutableSet.of("patients"),
+            mNotifications.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertNull(mNotifications.poll(1, TimeUnit.SECONDS));
+    }
+
+    public void testStopAbandonsHeldRequest() throws Exception {
+        mServer.respond(200, "{\"cursor\": \"c1\", \"tables\": []}");
+        mNotifier.start();
+        mServer.takeRequestLine();
+        mServer.takeRequestLine();  // this one is held open by the server
+        mNotifier.stop();
+
+        mServer.respond(200, "{\"cursor\": \"c2\", \"tables\": [\"orders\"]}");
+        assertNull(mNotifications.poll(1, TimeUnit.SECONDS));
+    }
+
+    /**
+     * A minimal HTTP server that answers each request with the next queued response, holding
+     * the request open until a response is queued.
+     */
+    private static class StandInServer implements Runnable {
+        private final ServerSocket mSocket;
+        private final BlockingQueue<String> mRequestLines = new LinkedBlockingQueue<>();
+        private final BlockingQueue<String> mResponses = new LinkedBlockingQueue<>();
+        private final Thread mThread;
+
+        StandInServer() throws IOException {
+            mSocket = new ServerSocket(0);
+            mThread = new Thread(this, "StandInServer");
+            mThread.start();
+        }
+
+        int getPort() {
+            return mSocket.getLocalPort();
+        }
+
+        void respond(int status, String body) {
+            mResponses.add("HTTP/1.1 " + status + " OK\r\n"
+                + "Content-Type: application/json\r\n"
+                + "Content-Length: " + body.length() + "\r\n"
+                + "Connection: close\r\n\r\n" + body);
+        }
+
+        String takeRequestLine() throws InterruptedException {
+            String line = mRequestLines.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            assertNotNull("No request arrived", line);
+            return line;
+        }
+
+        @Override public void run() {
+            try {
+                while (true) {
+                    try (Socket client = mSocket.accept()) {
+                        BufferedReader reader = new BufferedReader(
+                            new InputStreamReader(client.getInputStream(), "UTF-8"));
+                        mRequestLines.add(reader.readLine());
+                        String header;
+                        do {
+                            header = reader.readLine();
+                        } while (header != null && !header.isEmpty());
+                        OutputStream out = client.getOutputStream();
+                        out.write(mResponses.take().getBytes("UTF-8"));
+                        out.flush();
+                    }
+                }
+            } catch (IOException | InterruptedException e) {
+                // The server was closed.
+            }
+        }
+
+        void close() throws IOException {
+            mThread.interrupt();
+            mSocket.close();
+        }
+    }
+}
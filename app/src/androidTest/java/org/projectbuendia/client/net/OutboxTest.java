@@ -0,0 +1,406 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.net;
+
+import android.content.ContentProviderClient;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.SyncResult;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.test.InstrumentationTestCase;
+import android.test.mock.MockContentResolver;
+
+import com.google.gson.GsonBuilder;
+
+import net.sqlcipher.database.SQLiteDatabase;
+
+import org.projectbuendia.client.AppSettings;
+import org.projectbuendia.client.events.OutboxWriteRejectedEvent;
+import org.projectbuendia.client.json.Serializers;
+import org.projectbuendia.client.net.Outbox.Disposition;
+import org.projectbuendia.client.net.Outbox.Kind;
+import org.projectbuendia.client.providers.BuendiaProvider;
+import org.projectbuendia.client.providers.Contracts;
+import org.projectbuendia.client.providers.Contracts.Observations;
+import org.projectbuendia.client.providers.Contracts.Orders;
+import org.projectbuendia.client.sync.Database;
+import org.projectbuendia.client.sync.controllers.ObservationsSyncPhaseRunnable;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import de.greenrobot.event.EventBus;
+
+/**
+ * Tests for how {@link Outbox} treats the server's responses to queued writes, using a provider
+ * on a scratch database and a stand-in server on a local socket.
+ */
+public class OutboxTest extends InstrumentationTestCase {
+    private static final String DB_FILENAME = "outbox-test.db";
+    private static final String PREFS_NAME = "outbox-test";
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private Context mContext;
+    private TestProvider mProvider;
+    private MockContentResolver mResolver;
+    private StandInServer mServer;
+    private Outbox mOutbox;
+
+    @Override protected void setUp() throws Exception {
+        super.setUp();
+        mContext = getInstrumentation().getTargetContext();
+        SQLiteDatabase.loadLibs(mContext);
+        mContext.deleteDatabase(DB_FILENAME);
+        mProvider = new TestProvider();
+        mProvider.attachInfo(mContext, null);
+        mResolver = new MockContentResolver();
+        mResolver.addProvider(Contracts.CONTENT_AUTHORITY, mProvider);
+
+        mServer = new StandInServer();
+        SharedPreferences prefs = mContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        prefs.edit()
+            .putString("openmrs_root_url", "http://127.0.0.1:" + mServer.getPort() + "/openmrs")
+            .putBoolean("compress_requests", false)
+            .commit();
+        OpenMrsConnectionDetails connectionDetails = new OpenMrsConnectionDetails(
+            VolleySingleton.getInstance(mContext), new AppSettings(prefs, mContext.getResources()));
+        GsonBuilder gson = new GsonBuilder();
+        Serializers.registerTo(gson);
+        mOutbox = new Outbox(mResolver, connectionDetails, gson.create(), new Outbox.Listener() {
+            @Override public void onTablesChanged(Set<String> tables) { }
+        });
+        EventBus.getDefault().removeStickyEvent(OutboxWriteRejectedEvent.class);
+    }
+
+    @Override protected void tearDown() throws Exception {
+        EventBus.getDefault().removeStickyEvent(OutboxWriteRejectedEvent.class);
+        mServer.close();
+        mProvider.getWritableDatabase().close();
+        mContext.deleteDatabase(DB_FILENAME);
+        super.tearDown();
+    }
+
+    public void testGetDisposition_successIsSent() {
+        assertEquals(Disposition.SENT, Outbox.getDisposition(200));
+        assertEquals(Disposition.SENT, Outbox.getDisposition(201));
+    }
+
+    public void testGetDisposition_serverTroubleIsRetried() {
+        assertEquals(Disposition.RETRY, Outbox.getDisposition(500));
+        assertEquals(Disposition.RETRY, Outbox.getDisposition(503));
+        assertEquals(Disposition.RETRY, Outbox.getDisposition(408));
+        assertEquals(Disposition.RETRY, Outbox.getDisposition(429));
+        // Credentials can be fixed without losing the write.
+        assertEquals(Disposition.RETRY, Outbox.getDisposition(401));
+    }
+
+    public void testGetDisposition_badRequestIsRejected() {
+        assertEquals(Disposition.REJECTED, Outbox.getDisposition(400));
+        assertEquals(Disposition.REJECTED, Outbox.getDisposition(404));
+        assertEquals(Disposition.REJECTED, Outbox.getDisposition(409));
+    }
+
+    public void testSendPending_retryBlocksOnlyThatPatientsLaterWrites() throws Exception {
+        queue(Kind.ORDER_UPDATE, "patient-a", null, "/orders/a1", "{}");
+        queue(Kind.ORDER_UPDATE, "patient-a", null, "/orders/a2", "{}");
+        queue(Kind.ORDER_UPDATE, "patient-b", null, "/orders/b1", "{}");
+        mServer.respond(503, "{}");
+        mServer.respond(200, "{}");
+
+        assertFalse(mOutbox.sendPending());
+        assertRequest("/orders/a1");
+        assertRequest("/orders/b1");
+        mServer.assertNoMoreRequests();
+        assertEquals(list("/orders/a1", "/orders/a2"), getQueuedPaths());
+
+        // Once the first write goes through, the second follows it.
+        mServer.respond(200, "{}");
+        mServer.respond(200, "{}");
+        assertTrue(mOutbox.sendPending());
+        assertRequest("/orders/a1");
+        assertRequest("/orders/a2");
+        mServer.assertNoMoreRequests();
+        assertEquals(list(), getQueuedPaths());
+    }
+
+    public void testSendPending_batchHoldsOneEncounterPerPatient() throws Exception {
+        // The markers can't turn up by chance in the hexadecimal idempotency keys.
+        queue(Kind.ENCOUNTER, "patient-a", "enc-a1", "/encounters", "{\"n\": \"alpha-1\"}");
+        queue(Kind.ENCOUNTER, "patient-a", "enc-a2", "/encounters", "{\"n\": \"alpha-2\"}");
+        queue(Kind.ENCOUNTER, "patient-b", "enc-b1", "/encounters", "{\"n\": \"bravo-1\"}");
+        mServer.respond(200, "{\"results\": [{\"status\": 201}, {\"status\": 201}]}");
+        mServer.respond(201, "{}");
+
+        assertTrue(mOutbox.sendPending());
+        String batch = assertRequest(Outbox.ENCOUNTER_BATCH_PATH);
+        assertTrue(batch, batch.contains("alpha-1"));
+        assertTrue(batch, batch.indexOf("alpha-1") < batch.indexOf("bravo-1"));
+        assertFalse(batch, batch.contains("alpha-2"));
+        String single = assertRequest("/encounters");
+        assertTrue(single, single.contains("alpha-2"));
+        mServer.assertNoMoreRequests();
+        assertEquals(list(), getQueuedPaths());
+    }
+
+    public void testSendPending_newOrderReplacesPlaceholderUuid() throws Exception {
+        insertOrder("local-order", "patient-a");
+        insertObservation("order-execution", "patient-a", "local-order");
+        queue(Kind.NEW_ORDER, "patient-a", "local-order", "/orders", "{\"instructions\": \"x\"}");
+        queue(Kind.ORDER_UPDATE, "patient-a", null,
+            "/orders/local-order", "{\"uuid\": \"local-order\"}");
+        mServer.respond(201, "{\"uuid\": \"server-order\", \"patient_uuid\": \"patient-a\","
+            + " \"instructions\": \"x\", \"start_millis\": 1000}");
+        mServer.respond(503, "{}");
+
+        assertFalse(mOutbox.sendPending());
+        assertRequest("/orders");
+        // The write queued behind the new order already refers to it by its new UUID.
+        String update = assertRequest("/orders/server-order");
+        assertFalse(update, update.contains("local-order"));
+        mServer.assertNoMoreRequests();
+
+        assertEquals(list("server-order"), getColumn(Orders.CONTENT_URI, Orders.UUID, null));
+        assertEquals(list("server-order"),
+            getColumn(Observations.CONTENT_URI, Observations.VALUE, null));
+        assertEquals(list("/orders/server-order"), getQueuedPaths());
+        List<String> bodies = getColumn(Contracts.Outbox.CONTENT_URI, Contracts.Outbox.BODY, null);
+        assertEquals(list("{\"uuid\": \"server-order\"}"), bodies);
+    }
+
+    public void testSendPending_rejectedWriteIsKeptWithItsLocalRows() throws Exception {
+        insertObservation("enc-a1", "patient-a", "37.5");
+        queue(Kind.ENCOUNTER, "patient-a", "enc-a1", "/encounters", "{}");
+        queue(Kind.ORDER_UPDATE, "patient-a", null, "/orders/a1", "{}");
+        mServer.respond(400, "no such concept");
+        mServer.respond(200, "{}");
+
+        // A rejection doesn't hold up the patient's later writes.
+        assertTrue(mOutbox.sendPending());
+        assertRequest("/encounters");
+        assertRequest("/orders/a1");
+        mServer.assertNoMoreRequests();
+
+        assertEquals(list("400"), getColumn(Contracts.Outbox.CONTENT_URI,
+            Contracts.Outbox.REJECTED_STATUS, Contracts.Outbox.LOCAL_UUID + " = 'enc-a1'"));
+        assertEquals(list("no such concept"), getColumn(Contracts.Outbox.CONTENT_URI,
+            Contracts.Outbox.REJECTED_ERROR, Contracts.Outbox.LOCAL_UUID + " = 'enc-a1'"));
+        assertEquals(list("37.5"), getColumn(Observations.CONTENT_URI, Observations.VALUE,
+            Observations.ENCOUNTER_UUID + " = 'enc-a1'"));
+        OutboxWriteRejectedEvent event =
+            EventBus.getDefault().getStickyEvent(OutboxWriteRejectedEvent.class);
+        assertNotNull(event);
+        assertEquals(1, event.rejectedCount);
+
+        // The rejected write is never sent again.
+        assertTrue(mOutbox.sendPending());
+        mServer.assertNoMoreRequests();
+    }
+
+    public void testObservationsSync_keepsTemporaryObservationsOfQueuedEncounters()
+        throws Exception {
+        insertObservation("enc-queued", "patient-a", "queued");
+        insertObservation("enc-sent", "patient-a", "sent");
+        queue(Kind.ENCOUNTER, "patient-a", "enc-queued", "/encounters", "{}");
+
+        ContentProviderClient client =
+            mResolver.acquireContentProviderClient(Contracts.CONTENT_AUTHORITY);
+        try {
+            new ObservationsCleanup().run(client);
+        } finally {
+            client.release();
+        }
+        assertEquals(list("queued"),
+            getColumn(Observations.CONTENT_URI, Observations.VALUE, null));
+    }
+
+    private void queue(Kind kind, String patientUuid, String localUuid, String urlPath,
+                       String body) {
+        ContentValues values = new ContentValues();
+        values.put(Contracts.Outbox.IDEMPOTENCY_KEY, UUID.randomUUID().toString());
+        values.put(Contracts.Outbox.KIND, kind.name());
+        values.put(Contracts.Outbox.PATIENT_UUID, patientUuid);
+        values.put(Contracts.Outbox.LOCAL_UUID, localUuid);
+        values.put(Contracts.Outbox.URL_PATH, urlPath);
+        values.put(Contracts.Outbox.BODY, body);
+        values.put(Contracts.Outbox.CREATED_MILLIS, System.currentTimeMillis());
+        mResolver.insert(Contracts.Outbox.CONTENT_URI, values);
+    }
+
+    private void insertOrder(String uuid, String patientUuid) {
+        ContentValues values = new ContentValues();
+        values.put(Orders.UUID, uuid);
+        values.put(Orders.PATIENT_UUID, patientUuid);
+        values.put(Orders.INSTRUCTIONS, "x");
+        values.put(Orders.START_MILLIS, 1000);
+        mResolver.insert(Orders.CONTENT_URI, values);
+    }
+
+    /** Inserts a temporary observation, as is stored locally for a queued encounter. */
+    private void insertObservation(String encounterUuid, String patientUuid, String value) {
+        ContentValues values = new ContentValues();
+        values.put(Observations.PATIENT_UUID, patientUuid);
+        values.put(Observations.ENCOUNTER_UUID, encounterUuid);
+        values.put(Observations.ENCOUNTER_MILLIS, 1000);
+        values.put(Observations.CONCEPT_UUID, "concept");
+        values.put(Observations.VALUE, value);
+        mResolver.insert(Observations.CONTENT_URI, values);
+    }
+
+    private List<String> getQueuedPaths() {
+        return getColumn(Contracts.Outbox.CONTENT_URI, Contracts.Outbox.URL_PATH, null);
+    }
+
+    private List<String> getColumn(Uri uri, String column, String selection) {
+        List<String> values = new ArrayList<>();
+        try (Cursor cursor = mResolver.query(uri, new String[] {column}, selection, null,
+            "rowid")) {
+            while (cursor.moveToNext()) {
+                values.add(cursor.getString(0));
+            }
+        }
+        return values;
+    }
+
+    private static List<String> list(String... values) {
+        List<String> result = new ArrayList<>();
+        for (String value : values) {
+            result.add(value);
+        }
+        return result;
+    }
+
+    /** Checks that the next request was a POST to the given API path; returns its body. */
+    private String assertRequest(String urlPath) throws InterruptedException {
+        StandInServer.Request request = mServer.takeRequest();
+        assertEquals("POST /openmrs/ws/rest/v1/projectbuendia" + urlPath + " HTTP/1.1",
+            request.line);
+        return request.body;
+    }
+
+    /** A provider like the app's, but on a scratch database. */
+    private static class TestProvider extends BuendiaProvider {
+        @Override protected Database getDatabaseHelper() {
+            return new Database(getContext(), DB_FILENAME);
+        }
+    }
+
+    /** Runs the clean-up that ends each sync of observations. */
+    private class ObservationsCleanup extends ObservationsSyncPhaseRunnable {
+        void run(ContentProviderClient client) throws RemoteException {
+            afterSyncFinished(mResolver, new SyncResult(), client);
+        }
+    }
+
+    /** A minimal HTTP server that answers each request with the next queued response. */
+    private static class StandInServer implements Runnable {
+        private final ServerSocket mSocket;
+        private final BlockingQueue<Request> mRequests = new LinkedBlockingQueue<>();
+        private final BlockingQueue<String> mResponses = new LinkedBlockingQueue<>();
+        private final Thread mThread;
+
+        static class Request {
+            final String line;
+            final String body;
+
+            Request(String line, String body) {
+                this.line = line;
+                this.body = body;
+            }
+        }
+
+        StandInServer() throws IOException {
+            mSocket = new ServerSocket(0);
+            mThread = new Thread(this, "StandInServer");
+            mThread.start();
+        }
+
+        int getPort() {
+            return mSocket.getLocalPort();
+        }
+
+        void respond(int status, String body) {
+            mResponses.add("HTTP/1.1 " + status + " OK\r\n"
+                + "Content-Type: application/json\r\n"
+                + "Content-Length: " + body.length() + "\r\n"
+                + "Connection: close\r\n\r\n" + body);
+        }
+
+        Request takeRequest() throws InterruptedException {
+            Request request = mRequests.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            assertNotNull("No request arrived", request);
+            return request;
+        }
+
+        void assertNoMoreRequests() {
+            // Requests are recorded before they are answered, so a send that has returned
+            // has recorded all of its requests.
+            Request request = mRequests.poll();
+            if (request != null) {
+                fail("Unexpected request: " + request.line);
+            }
+        }
+
+        @Override public void run() {
+            try {
+                while (true) {
+                    try (Socket client = mSocket.accept()) {
+                        BufferedReader reader = new BufferedReader(
+                            new InputStreamReader(client.getInputStream(), "UTF-8"));
+                        String line = reader.readLine();
+                        int length = 0;
+                        String header;
+                        do {
+                            header = reader.readLine();
+                            if (header != null
+                                && header.toLowerCase().startsWith("content-length:")) {
+                                length = Integer.parseInt(header.substring(15).trim());
+                            }
+                        } while (header != null && !header.isEmpty());
+                        // The bodies sent here are ASCII, so characters count as bytes.
+                        char[] body = new char[length];
+                        int read = 0;
+                        while (read < length) {
+                            int count = reader.read(body, read, length - read);
+                            if (count < 0) break;
+                            read += count;
+                        }
+                        mRequests.add(new Request(line, new String(body, 0, read)));
+                        OutputStream out = client.getOutputStream();
+                        out.write(mResponses.take().getBytes("UTF-8"));
+                        out.flush();
+                    }
+                }
+            } catch (IOException | InterruptedException e) {
+                // The server was closed.
+            }
+        }
+
+        void close() throws IOException {
+            mThread.interrupt();
+            mSocket.close();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.net;
+
+import android.test.InstrumentationTestCase;
+
+import org.odk.collect.android.application.Collect;
+
+import java.io.File;
+
+/** Tests for {@link XformCacheManager}. */
+public class XformCacheManagerTest extends InstrumentationTestCase {
+    private static final long CHANGED = 1000;
+
+    private OpenMrsXformIndexEntry mEntry;
+    private File mFile;
+
+    @Override protected void setUp() throws Exception {
+        super.setUp();
+        mEntry = new OpenMrsXformIndexEntry("xform-cache-manager-test", "Test form", CHANGED);
+        Collect.getInstance().createODKDirs();
+        mFile = mEntry.makeFileForForm();
+        mFile.createNewFile();
+    }
+
+    @Override protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testIsCurrent_storedSinceLastChange() {
+        assertTrue(XformCacheManager.isCurrent(mEntry, CHANGED, false));
+        assertTrue(XformCacheManager.isCurrent(mEntry, CHANGED + 1, false));
+    }
+
+    public void testIsCurrent_notStored() {
+        assertFalse(XformCacheManager.isCurrent(mEntry, null, false));
+        mFile.delete();
+        assertFalse(XformCacheManager.isCurrent(mEntry, CHANGED, false));
+    }
+
+    public void testIsCurrent_changedSinceStored() {
+        assertFalse(XformCacheManager.isCurrent(mEntry, CHANGED - 1, false));
+    }
+
+    public void testIsCurrent_usersChanged() {
+        assertFalse(XformCacheManager.isCurrent(mEntry, CHANGED, true));
+    }
+}
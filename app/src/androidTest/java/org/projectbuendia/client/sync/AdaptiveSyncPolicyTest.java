@@ -0,0 +1,89 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.sync;
+
+import android.test.InstrumentationTestCase;
+
+import org.projectbuendia.client.sync.SyncAdapter.SyncPhase;
+
+import java.util.EnumSet;
+
+import static org.projectbuendia.client.sync.AdaptiveSyncPolicy.MAX_OBSERVATION_POLL_MILLIS;
+import static org.projectbuendia.client.sync.AdaptiveSyncPolicy.MAX_PHASE_INTERVAL_MILLIS;
+import static org.projectbuendia.client.sync.AdaptiveSyncPolicy.MIN_FAILURE_BACKOFF_MILLIS;
+import static org.projectbuendia.client.sync.AdaptiveSyncPolicy.MIN_OBSERVATION_POLL_MILLIS;
+import static org.projectbuendia.client.sync.AdaptiveSyncPolicy.MIN_PHASE_INTERVAL_MILLIS;
+
+/** Tests for {@link AdaptiveSyncPolicy}. */
+public class AdaptiveSyncPolicyTest extends InstrumentationTestCase {
+    private static final long START = 1000000;
+
+    private AdaptiveSyncPolicy mPolicy;
+
+    @Override protected void setUp() throws Exception {
+        super.setUp();
+        mPolicy = new AdaptiveSyncPolicy();
+    }
+
+    public void testGetDuePhases_allDueInitially() {
+        assertEquals(EnumSet.allOf(SyncPhase.class), mPolicy.getDuePhases(START));
+    }
+
+    public void testGetDuePhases_activePhaseDueEveryPeriod() {
+        mPolicy.recordPhaseCompleted(SyncPhase.SYNC_OBSERVATIONS, true, START);
+        assertFalse(mPolicy.getDuePhases(START + MIN_PHASE_INTERVAL_MILLIS - 1)
+            .contains(SyncPhase.SYNC_OBSERVATIONS));
+        assertTrue(mPolicy.getDuePhases(START + MIN_PHASE_INTERVAL_MILLIS)
+            .contains(SyncPhase.SYNC_OBSERVATIONS));
+    }
+
+    public void testGetDuePhases_quietPhaseBacksOffUpToMaximum() {
+        long now = START;
+        for (int i = 0; i < 20; i++) {
+            mPolicy.recordPhaseCompleted(SyncPhase.SYNC_CONCEPTS, false, now);
+            now += MAX_PHASE_INTERVAL_MILLIS;
+        }
+        now -= MAX_PHASE_INTERVAL_MILLIS;
+        assertFalse(mPolicy.getDuePhases(now + MAX_PHASE_INTERVAL_MILLIS - 1)
+            .contains(SyncPhase.SYNC_CONCEPTS));
+        assertTrue(mPolicy.getDuePhases(now + MAX_PHASE_INTERVAL_MILLIS)
+            .contains(SyncPhase.SYNC_CONCEPTS));
+
+        // A change brings the phase straight back to the shortest interval.
+        mPolicy.recordPhaseCompleted(SyncPhase.SYNC_CONCEPTS, true, now);
+        assertTrue(mPolicy.getDuePhases(now + MIN_PHASE_INTERVAL_MILLIS)
+            .contains(SyncPhase.SYNC_CONCEPTS));
+    }
+
+    public void testIsBackingOff_doublesWithEachFailureUntilSuccess() {
+        assertFalse(mPolicy.isBackingOff(START));
+        mPolicy.recordSyncFailed(START);
+        assertTrue(mPolicy.isBackingOff(START + MIN_FAILURE_BACKOFF_MILLIS - 1));
+        assertFalse(mPolicy.isBackingOff(START + MIN_FAILURE_BACKOFF_MILLIS));
+
+        mPolicy.recordSyncFailed(START);
+        assertTrue(mPolicy.isBackingOff(START + 2 * MIN_FAILURE_BACKOFF_MILLIS - 1));
+
+        mPolicy.recordSyncSucceeded();
+        assertFalse(mPolicy.isBackingOff(START));
+    }
+
+    public void testGetObservationPollMillis_followsObservationActivity() {
+        assertEquals(MIN_OBSERVATION_POLL_MILLIS, mPolicy.getObservationPollMillis());
+        for (int i = 0; i < 10; i++) {
+            mPolicy.recordPhaseCompleted(SyncPhase.SYNC_ORDERS, false, START);
+        }
+        assertEquals(MAX_OBSERVATION_POLL_MILLIS, mPolicy.getObservationPollMillis());
+        mPolicy.recordPhaseCompleted(SyncPhase.SYNC_OBSERVATIONS, true, START);
+        assertEquals(MIN_OBSERVATION_POLL_MILLIS, mPolicy.getObservationPollMillis());
+    }
+}
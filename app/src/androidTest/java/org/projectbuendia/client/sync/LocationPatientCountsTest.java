@@ -0,0 +1,113 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.sync;
+
+import android.content.Context;
+import android.test.InstrumentationTestCase;
+
+import net.sqlcipher.Cursor;
+import net.sqlcipher.database.SQLiteDatabase;
+
+import org.projectbuendia.client.FakeTypedCursor;
+import org.projectbuendia.client.models.Location;
+import org.projectbuendia.client.models.LocationTree;
+
+/**
+ * Tests that location_patient_counts follows patients as they are added, moved, replaced, and
+ * deleted, and that {@link LocationTree} totals its subtrees.
+ */
+public class LocationPatientCountsTest extends InstrumentationTestCase {
+    private static final String DB_FILENAME = "location-counts-test.db";
+
+    private Context mContext;
+    private Database mDbHelper;
+    private SQLiteDatabase mDb;
+
+    @Override protected void setUp() throws Exception {
+        super.setUp();
+        mContext = getInstrumentation().getTargetContext();
+        SQLiteDatabase.loadLibs(mContext);
+        mContext.deleteDatabase(DB_FILENAME);
+        mDbHelper = new Database(mContext, DB_FILENAME);
+        mDb = mDbHelper.getWritableDatabase();
+
+        insertPatient("p1", "tent-1");
+        insertPatient("p2", "tent-1");
+        insertPatient("p3", "tent-2");
+        insertPatient("p4", null);
+    }
+
+    @Override protected void tearDown() throws Exception {
+        mDb.close();
+        mContext.deleteDatabase(DB_FILENAME);
+        super.tearDown();
+    }
+
+    public void testCounts_followInserts() {
+        assertEquals(2, getCount("tent-1"));
+        assertEquals(1, getCount("tent-2"));
+        assertEquals(0, getCount("tent-3"));
+    }
+
+    public void testCounts_followReplacedPatients() {
+        insertPatient("p1", "tent-1");
+        assertEquals(2, getCount("tent-1"));
+
+        insertPatient("p1", "tent-2");
+        assertEquals(1, getCount("tent-1"));
+        assertEquals(2, getCount("tent-2"));
+    }
+
+    public void testCounts_followMovesAndDeletes() {
+        mDb.execSQL("UPDATE patients SET location_uuid = 'tent-2' WHERE uuid = 'p2'");
+        assertEquals(1, getCount("tent-1"));
+        assertEquals(2, getCount("tent-2"));
+
+        mDb.execSQL("UPDATE patients SET location_uuid = 'tent-3' WHERE uuid = 'p4'");
+        assertEquals(1, getCount("tent-3"));
+
+        mDb.execSQL("DELETE FROM patients WHERE uuid IN ('p1', 'p3')");
+        assertEquals(0, getCount("tent-1"));
+        assertEquals(1, getCount("tent-2"));
+    }
+
+    public void testMigration_countsExistingPatients() {
+        mDb.execSQL("DROP TABLE location_patient_counts");
+        mDbHelper.onUpgrade(mDb, 32, Database.DATABASE_VERSION);
+        assertEquals(2, getCount("tent-1"));
+        assertEquals(1, getCount("tent-2"));
+    }
+
+    public void testLocationTree_totalsSubtrees() {
+        LocationTree tree = LocationTree.forTypedCursor(new FakeTypedCursor<>(
+            new Location("site", null, "Site", 1),
+            new Location("zone", "site", "Zone", 0),
+            new Location("tent-1", "zone", "Tent 1", 2),
+            new Location("tent-2", "zone", "Tent 2", 3)));
+        assertEquals(6, tree.getTotalPatientCount(tree.getRoot()));
+        assertEquals(5, tree.getTotalPatientCount(tree.findByUuid("zone")));
+        assertEquals(3, tree.getTotalPatientCount(tree.findByUuid("tent-2")));
+        assertEquals(0, tree.getTotalPatientCount(null));
+    }
+
+    private void insertPatient(String uuid, String locationUuid) {
+        mDb.execSQL("INSERT OR REPLACE INTO patients (uuid, location_uuid) VALUES (?, ?)",
+            new Object[] {uuid, locationUuid});
+    }
+
+    private long getCount(String locationUuid) {
+        try (Cursor c = mDb.rawQuery("SELECT patient_count FROM location_patient_counts"
+            + " WHERE location_uuid = ?", new String[] {locationUuid})) {
+            return c.moveToNext() ? c.getLong(0) : 0;
+        }
+    }
+}
@@ -0,0 +1,226 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.sync;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+
+import net.sqlcipher.Cursor;
+import net.sqlcipher.database.SQLiteDatabase;
+import net.sqlcipher.database.SQLiteStatement;
+
+import org.projectbuendia.client.filter.db.patient.ConceptFilter;
+import org.projectbuendia.client.utils.Logger;
+
+/**
+ * Times the observation queries behind opening a patient chart and filtering the patient list,
+ * against a scratch database of 200,000 observations, and checks that they use the indexes and
+ * the latest_observations table.
+ */
+public class ObservationQueryBenchmark extends InstrumentationTestCase {
+    private static final Logger LOG = Logger.create();
+
+    private static final String DB_FILENAME = "observation-benchmark.db";
+    private static final int NUM_PATIENTS = 500;
+    private static final int NUM_CONCEPTS = 20;
+    private static final int NUM_ENCOUNTERS = 20;  // 500 * 20 * 20 = 200,000 observations
+    private static final int NUM_RUNS = 10;
+
+    private static final String CHART_QUERY = "SELECT * FROM observations"
+        + " WHERE patient_uuid = ? AND voided IS NOT 1";
+    private static final String CHART_CONCEPT_QUERY = "SELECT * FROM observations"
+        + " WHERE voided IS NOT 1 AND patient_uuid = ? AND concept_uuid = ?"
+        + " ORDER BY encounter_millis ASC";
+    private static final String LATEST_FOR_PATIENT_QUERY = "SELECT * FROM latest_observations"
+        + " WHERE patient_uuid = ?";
+    // The patient list concept filter as it was before latest_observations existed.
+    private static final String MAX_SUBQUERY_FILTER_QUERY = "SELECT uuid FROM patients"
+        + " WHERE uuid IN ("
+        + "     SELECT obs.patient_uuid FROM observations AS obs"
+        + "     INNER JOIN ("
+        + "         SELECT patient_uuid, max(encounter_millis) AS max_millis"
+        + "         FROM observations WHERE concept_uuid = ? GROUP BY patient_uuid"
+        + "     ) max_times"
+        + "     ON obs.patient_uuid = max_times.patient_uuid"
+        + "         AND obs.encounter_millis = max_times.max_millis"
+        + "     WHERE obs.concept_uuid = ? AND obs.value = ?"
+        + " )";
+
+    private Context mContext;
+    private Database mDbHelper;
+    private SQLiteDatabase mDb;
+
+    @Override protected void setUp() throws Exception {
+        super.setUp();
+        mContext = getInstrumentation().getTargetContext();
+        SQLiteDatabase.loadLibs(mContext);
+        mContext.deleteDatabase(DB_FILENAME);
+        mDbHelper = new Database(mContext, DB_FILENAME);
+        mDb = mDbHelper.getWritableDatabase();
+        populate();
+    }
+
+    @Override protected void tearDown() throws Exception {
+        mDb.close();
+        mContext.deleteDatabase(DB_FILENAME);
+        super.tearDown();
+    }
+
+    public void testChartQueriesUseIndex() {
+        assertPlanUsesIndex(CHART_QUERY, "patient-7");
+        assertPlanUsesIndex(CHART_CONCEPT_QUERY, "patient-7", "concept-3");
+        long millis = time(CHART_QUERY, "patient-7")
+            + time(CHART_CONCEPT_QUERY, "patient-7", "concept-3");
+        LOG.i("Chart open: %d ms per run, with indexes", millis);
+    }
+
+    public void testConceptFilterUsesIndex() {
+        String sql = getConceptFilterQuery();
+        assertPlanUsesIndex(sql, "concept-3", "value-1");
+        LOG.i("Patient list concept filter: %d ms per run, with latest_observations",
+            time(sql, "concept-3", "value-1"));
+    }
+
+    public void testIndexesAreFasterThanTableScans() {
+        long indexedChart = time(CHART_QUERY, "patient-7");
+
+        mDb.execSQL("DROP INDEX observations_patient_concept_millis");
+        mDb.execSQL("DROP INDEX observations_concept_patient_millis");
+        long scannedChart = time(CHART_QUERY, "patient-7");
+
+        LOG.i("Chart open: %d ms indexed, %d ms without indexes", indexedChart, scannedChart);
+        assertTrue(indexedChart <= scannedChart);
+    }
+
+    public void testLatestObservationsAreFasterThanMaxSubquery() {
+        long latestFilter = time(getConceptFilterQuery(), "concept-3", "value-1");
+        long maxFilter = time(MAX_SUBQUERY_FILTER_QUERY, "concept-3", "concept-3", "value-1");
+        LOG.i("Concept filter: %d ms from latest_observations, %d ms with max() subquery",
+            latestFilter, maxFilter);
+        assertTrue(latestFilter <= maxFilter);
+        assertEquals(count(MAX_SUBQUERY_FILTER_QUERY, "concept-3", "concept-3", "value-1"),
+            count(getConceptFilterQuery(), "concept-3", "value-1"));
+    }
+
+    public void testRefreshTracksNewerAndVoidedObservations() {
+        mDb.execSQL("INSERT INTO observations (uuid, patient_uuid, encounter_uuid,"
+            + " encounter_millis, concept_uuid, value) VALUES ('new', 'patient-7',"
+            + " 'encounter-new', 999999999, 'concept-3', 'value-new')");
+        refresh("patient-7", "concept-3");
+        assertEquals("value-new", getLatestValue("patient-7", "concept-3"));
+
+        mDb.execSQL("UPDATE observations SET voided = 1 WHERE uuid = 'new'");
+        refresh("patient-7", "concept-3");
+        // Back to the value from the last of the original encounters.
+        assertEquals("value-" + ((7 + NUM_ENCOUNTERS - 1) % 3),
+            getLatestValue("patient-7", "concept-3"));
+    }
+
+    public void testMigrationKeepsDataAndAddsIndexes() {
+        mDb.execSQL("DROP INDEX observations_patient_concept_millis");
+        mDb.execSQL("DROP INDEX observations_concept_patient_millis");
+        mDb.execSQL("DROP TABLE latest_observations");
+
+        mDbHelper.onUpgrade(mDb, Database.OLDEST_MIGRATABLE_VERSION, Database.DATABASE_VERSION);
+
+        assertEquals(NUM_PATIENTS * NUM_CONCEPTS * NUM_ENCOUNTERS,
+            count("SELECT * FROM observations"));
+        assertEquals(NUM_PATIENTS * NUM_CONCEPTS, count("SELECT * FROM latest_observations"));
+        assertPlanUsesIndex(CHART_QUERY, "patient-7");
+        assertPlanUsesIndex(LATEST_FOR_PATIENT_QUERY, "patient-7");
+    }
+
+    private String getConceptFilterQuery() {
+        return "SELECT uuid FROM patients WHERE "
+            + new ConceptFilter("benchmark", "concept-3", "value-1").getSelectionString();
+    }
+
+    private void populate() {
+        SQLiteStatement patient = mDb.compileStatement(
+            "INSERT INTO patients (uuid, id) VALUES (?, ?)");
+        SQLiteStatement obs = mDb.compileStatement("INSERT INTO observations"
+            + " (uuid, patient_uuid, encounter_uuid, encounter_millis, concept_uuid, value)"
+            + " VALUES (?, ?, ?, ?, ?, ?)");
+        mDb.beginTransaction();
+        try {
+            int n = 0;
+            for (int p = 0; p < NUM_PATIENTS; p++) {
+                patient.bindString(1, "patient-" + p);
+                patient.bindString(2, "" + p);
+                patient.execute();
+                for (int e = 0; e < NUM_ENCOUNTERS; e++) {
+                    for (int c = 0; c < NUM_CONCEPTS; c++) {
+                        obs.bindString(1, "obs-" + (n++));
+                        obs.bindString(2, "patient-" + p);
+                        obs.bindString(3, "encounter-" + p + "-" + e);
+                        obs.bindLong(4, e * 3600000L);
+                        obs.bindString(5, "concept-" + c);
+                        obs.bindString(6, "value-" + ((p + e) % 3));
+                        obs.execute();
+                    }
+                }
+            }
+            for (String sql : Database.REBUILD_LATEST_OBSERVATIONS) {
+                mDb.execSQL(sql);
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+            patient.close();
+            obs.close();
+        }
+    }
+
+    private void refresh(String patientUuid, String conceptUuid) {
+        for (String sql : Database.REFRESH_LATEST_OBSERVATION) {
+            mDb.execSQL(sql, new Object[] {patientUuid, conceptUuid});
+        }
+    }
+
+    private String getLatestValue(String patientUuid, String conceptUuid) {
+        try (Cursor c = mDb.rawQuery("SELECT value FROM latest_observations"
+            + " WHERE patient_uuid = ? AND concept_uuid = ?",
+            new String[] {patientUuid, conceptUuid})) {
+            return c.moveToNext() ? c.getString(0) : null;
+        }
+    }
+
+    private int count(String sql, String... args) {
+        try (Cursor c = mDb.rawQuery(sql, args)) {
+            return c.getCount();
+        }
+    }
+
+    /** Returns the average time, in milliseconds, to run a query and read all its rows. */
+    private long time(String sql, String... args) {
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < NUM_RUNS; i++) {
+            try (Cursor c = mDb.rawQuery(sql, args)) {
+                while (c.moveToNext()) { }
+            }
+        }
+        return (SystemClock.elapsedRealtime() - start) / NUM_RUNS;
+    }
+
+    private void assertPlanUsesIndex(String sql, String... args) {
+        StringBuilder plan = new StringBuilder();
+        try (Cursor c = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, args)) {
+            while (c.moveToNext()) {
+                plan.append(c.getString(c.getColumnCount() - 1)).append('\n');
+            }
+        }
+        assertTrue(plan.toString(), plan.toString().contains("USING INDEX")
+            || plan.toString().contains("USING COVERING INDEX"));
+        assertFalse(plan.toString(), plan.toString().contains("SCAN TABLE observations\n"));
+    }
+}
@@ -0,0 +1,142 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.sync;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.test.InstrumentationTestCase;
+
+import net.sqlcipher.database.SQLiteDatabase;
+
+import org.projectbuendia.client.providers.Contracts;
+import org.projectbuendia.client.providers.Contracts.Patients;
+import org.projectbuendia.client.providers.PatientSearchDelegate;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests that the patient_search full-text index follows writes to the patients and
+ * location_names tables, and that {@link PatientSearchDelegate} ranks its results.
+ */
+public class PatientSearchTest extends InstrumentationTestCase {
+    private static final String DB_FILENAME = "patient-search-test.db";
+
+    private Context mContext;
+    private Database mDbHelper;
+    private SQLiteDatabase mDb;
+
+    @Override protected void setUp() throws Exception {
+        super.setUp();
+        mContext = getInstrumentation().getTargetContext();
+        SQLiteDatabase.loadLibs(mContext);
+        mContext.deleteDatabase(DB_FILENAME);
+        mDbHelper = new Database(mContext, DB_FILENAME);
+        mDb = mDbHelper.getWritableDatabase();
+
+        mDb.execSQL("INSERT INTO location_names (location_uuid, locale, name)"
+            + " VALUES ('ward-1', 'en', 'Suspect Ward'), ('ward-2', 'en', 'Confirmed Ward')");
+        insertPatient("p1", "KL.12", "John", "Doe", "ward-1");
+        insertPatient("p2", "KL.3", "Anna", "Kline", "ward-2");
+        insertPatient("p3", "TH.1", "Mary", "Smith", "ward-2");
+    }
+
+    @Override protected void tearDown() throws Exception {
+        mDb.close();
+        mContext.deleteDatabase(DB_FILENAME);
+        super.tearDown();
+    }
+
+    public void testSearch_matchesPrefixesOfEveryWord() {
+        assertSearchResults("jo do", "p1");
+        assertSearchResults("ma sm", "p3");
+        assertSearchResults("john smith");
+    }
+
+    public void testSearch_matchesIdsAndLocationNames() {
+        assertSearchResults("kl.12", "p1");
+        assertSearchResults("confirmed", "p2", "p3");
+    }
+
+    public void testSearch_ranksIdMatchesFirst() {
+        // p1 and p2 match "kl" by ID, p2 also by family name; IDs rank first, then names.
+        assertSearchResults("kl", "p1", "p2");
+        insertPatient("p4", "TH.4", "Kline", "Adams", "ward-1");
+        assertSearchResults("kl", "p1", "p2", "p4");
+    }
+
+    public void testIndex_followsReplacedAndDeletedPatients() {
+        insertPatient("p1", "KL.12", "Jonathan", "Dove", "ward-2");
+        assertSearchResults("doe");
+        assertSearchResults("dove confirmed", "p1");
+
+        mDb.execSQL("UPDATE patients SET family_name = 'Jones' WHERE uuid = 'p1'");
+        assertSearchResults("dove");
+        assertSearchResults("jones", "p1");
+
+        mDb.execSQL("DELETE FROM patients WHERE uuid = 'p1'");
+        assertSearchResults("jones");
+        assertEquals(2, count("SELECT * FROM patient_search"));
+    }
+
+    public void testIndex_followsLocationRenames() {
+        mDb.execSQL("INSERT OR REPLACE INTO location_names (location_uuid, locale, name)"
+            + " VALUES ('ward-1', 'en', 'Triage')");
+        assertSearchResults("suspect");
+        assertSearchResults("triage", "p1");
+    }
+
+    public void testMigration_buildsIndexFromExistingPatients() {
+        mDb.execSQL("DROP TABLE patient_search");
+        mDbHelper.onUpgrade(mDb, 31, Database.DATABASE_VERSION);
+        assertEquals(3, count("SELECT * FROM patient_search"));
+        assertSearchResults("anna", "p2");
+    }
+
+    public void testSearch_withoutWordsReturnsAllPatients() {
+        assertEquals(3, search("  .  ").size());
+    }
+
+    private void insertPatient(
+        String uuid, String id, String givenName, String familyName, String locationUuid) {
+        mDb.execSQL("INSERT OR REPLACE INTO patients"
+                + " (uuid, id, given_name, family_name, location_uuid) VALUES (?, ?, ?, ?, ?)",
+            new Object[] {uuid, id, givenName, familyName, locationUuid});
+    }
+
+    private void assertSearchResults(String query, String... expectedUuids) {
+        List<String> uuids = search(query);
+        assertEquals("Query \"" + query + "\" returned " + uuids,
+            expectedUuids.length, uuids.size());
+        for (int i = 0; i < expectedUuids.length; i++) {
+            assertEquals("Query \"" + query + "\" returned " + uuids,
+                expectedUuids[i], uuids.get(i));
+        }
+    }
+
+    private List<String> search(String query) {
+        List<String> uuids = new ArrayList<>();
+        try (Cursor c = new PatientSearchDelegate().query(mDbHelper, mContext.getContentResolver(),
+            Contracts.getPatientSearchUri(query), null, null, null, Patients.UUID)) {
+            while (c.moveToNext()) {
+                uuids.add(c.getString(c.getColumnIndex(Patients.UUID)));
+            }
+        }
+        return uuids;
+    }
+
+    private int count(String sql) {
+        try (Cursor c = mDb.rawQuery(sql, null)) {
+            return c.getCount();
+        }
+    }
+}
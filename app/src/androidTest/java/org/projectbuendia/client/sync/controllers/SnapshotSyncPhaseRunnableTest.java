@@ -0,0 +1,55 @@
+/*
+ * Copyright 2015 The Project Buendia Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at: http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distrib-
+ * uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.projectbuendia.client.sync.controllers;
+
+import android.test.InstrumentationTestCase;
+
+import org.projectbuendia.client.json.JsonLocation;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/** Tests for the content hashes that {@link SnapshotSyncPhaseRunnable} stores as sync tokens. */
+public class SnapshotSyncPhaseRunnableTest extends InstrumentationTestCase {
+
+    public void testContentHash_equalForEqualSnapshots() {
+        assertEquals(
+                SnapshotSyncPhaseRunnable.getContentHash(makeLocations("Triage")),
+                SnapshotSyncPhaseRunnable.getContentHash(makeLocations("Triage")));
+    }
+
+    public void testContentHash_differsWhenAnyFieldChanges() {
+        assertFalse(SnapshotSyncPhaseRunnable.getContentHash(makeLocations("Triage")).equals(
+                SnapshotSyncPhaseRunnable.getContentHash(makeLocations("Suspect"))));
+    }
+
+    public void testContentHash_isHexadecimalSha1() {
+        String hash = SnapshotSyncPhaseRunnable.getContentHash(makeLocations("Triage"));
+        assertTrue(hash, hash.matches("[0-9a-f]{40}"));
+    }
+
+    private static List<JsonLocation> makeLocations(String childName) {
+        JsonLocation site = new JsonLocation();
+        site.uuid = "site";
+        site.names = new HashMap<>();
+        site.names.put("en", "Site");
+        JsonLocation child = new JsonLocation();
+        child.uuid = "child";
+        child.parent_uuid = "site";
+        child.names = new HashMap<>();
+        child.names.put("en", childName);
+        return Arrays.asList(site, child);
+    }
+}
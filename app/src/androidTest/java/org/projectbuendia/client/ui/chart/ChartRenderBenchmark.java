@@ -0,0 +1,143 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.ui.chart;
+
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+
+import org.joda.time.DateTime;
+import org.projectbuendia.client.json.ConceptType;
+import org.projectbuendia.client.models.Chart;
+import org.projectbuendia.client.models.ChartItem;
+import org.projectbuendia.client.models.ChartSection;
+import org.projectbuendia.client.models.Obs;
+import org.projectbuendia.client.models.Order;
+import org.projectbuendia.client.utils.Logger;
+import org.projectbuendia.client.utils.Utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Times the rendering of a 30-day, 60-row patient chart to HTML, after a few warm-up runs, and
+ * checks that partial re-rendering only touches the cells that changed.
+ */
+public class ChartRenderBenchmark extends InstrumentationTestCase {
+    private static final Logger LOG = Logger.create();
+
+    private static final int NUM_DAYS = 30;
+    private static final int NUM_ROWS = 60;
+    private static final int NUM_TILES = 6;
+    private static final int OBS_PER_DAY = 4;
+    private static final int WARMUP_RUNS = 3;
+    private static final int MEASURED_RUNS = 10;
+
+    private ChartRenderer mRenderer;
+    private Chart mChart;
+    private List<Obs> mObservations;
+    private Map<String, Obs> mLatestObservations;
+    private DateTime mStart;
+
+    @Override protected void setUp() throws Exception {
+        super.setUp();
+        // The generator only needs resources for the column headings; it never touches the view.
+        mRenderer = new ChartRenderer(
+            null, getInstrumentation().getTargetContext().getResources());
+        mChart = new Chart("benchmark-chart", "Benchmark");
+        ChartSection tileRow = new ChartSection("Tiles");
+        for (int i = 0; i < NUM_TILES; i++) {
+            tileRow.items.add(new ChartItem("Tile " + i, "number", false,
+                new String[] {getConceptUuid(i)}, "0.0", "", "", "", ""));
+        }
+        mChart.tileGroups.add(tileRow);
+        ChartSection rowGroup = new ChartSection("Rows");
+        for (int i = 0; i < NUM_ROWS; i++) {
+            rowGroup.items.add(new ChartItem("Row " + i, "number", false,
+                new String[] {getConceptUuid(i)}, "{1,select,>=10:#;#.0}", "0.00", "", "", ""));
+        }
+        mChart.rowGroups.add(rowGroup);
+
+        mStart = DateTime.now().withTimeAtStartOfDay().minusDays(NUM_DAYS - 1);
+        mObservations = new ArrayList<>();
+        mLatestObservations = new HashMap<>();
+        for (int day = 0; day < NUM_DAYS; day++) {
+            for (int i = 0; i < OBS_PER_DAY; i++) {
+                long millis = mStart.plusDays(day).plusHours(1 + i * 5).getMillis();
+                for (int row = 0; row < NUM_ROWS; row++) {
+                    addObs(millis, row, "" + (day + row + i));
+                }
+            }
+        }
+    }
+
+    public void testRenderFullChart() {
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            newGenerator().getHtml(i);
+        }
+        long[] millis = new long[MEASURED_RUNS];
+        String html = null;
+        for (int i = 0; i < MEASURED_RUNS; i++) {
+            long start = SystemClock.elapsedRealtime();
+            html = newGenerator().getHtml(i);
+            millis[i] = SystemClock.elapsedRealtime() - start;
+        }
+        Arrays.sort(millis);
+        long total = 0;
+        for (long m : millis) {
+            total += m;
+        }
+        LOG.i("Rendered %d x %d chart (%d chars): min %d ms, median %d ms, mean %d ms, max %d ms",
+            NUM_DAYS, NUM_ROWS, html.length(), millis[0], millis[MEASURED_RUNS / 2],
+            total / MEASURED_RUNS, millis[MEASURED_RUNS - 1]);
+
+        String lastCellId = "cell-" + Utils.compressUuid(getConceptUuid(NUM_ROWS - 1))
+            + "-" + mStart.plusDays(NUM_DAYS - 1).getMillis();
+        assertTrue(html.contains(lastCellId));
+    }
+
+    public void testPatchRendersOnlyChangedCells() {
+        ChartRenderer.GridHtmlGenerator before = newGenerator();
+        addObs(DateTime.now().getMillis(), 0, "99");
+        ChartRenderer.GridHtmlGenerator after = newGenerator();
+
+        assertTrue(after.hasSameLayout(before));
+        long start = SystemClock.elapsedRealtime();
+        List<String> changed = after.getChangedCellHtml(before);
+        LOG.i("Rendered %d changed cells in %d ms",
+            changed.size(), SystemClock.elapsedRealtime() - start);
+        assertEquals(2, changed.size());  // the tile and the grid cell for today
+    }
+
+    public void testFormatsAreParsedOnce() {
+        assertSame(ObsFormat.fromPattern("0.0"), ObsFormat.fromPattern("0.0"));
+        assertSame(mChart.rowGroups.get(0).items.get(0).format,
+            mChart.rowGroups.get(0).items.get(1).format);
+    }
+
+    private ChartRenderer.GridHtmlGenerator newGenerator() {
+        return mRenderer.new GridHtmlGenerator(mChart, mLatestObservations, mObservations,
+            new ArrayList<Order>(), mStart.toLocalDate(), null);
+    }
+
+    private void addObs(long millis, int row, String value) {
+        Obs obs = new Obs(millis, getConceptUuid(row), ConceptType.NUMERIC, value, value);
+        mObservations.add(obs);
+        mLatestObservations.put(obs.conceptUuid, obs);
+    }
+
+    private static String getConceptUuid(int index) {
+        return Utils.expandUuid(5000 + index);
+    }
+}
@@ -27,22 +27,28 @@ import org.projectbuendia.client.events.SubmitXformSucceededEvent;
 import org.projectbuendia.client.events.data.ItemFetchedEvent;
 import org.projectbuendia.client.json.ConceptType;
 import org.projectbuendia.client.models.AppModel;
+import org.projectbuendia.client.models.Chart;
 import org.projectbuendia.client.models.ConceptUuids;
 import org.projectbuendia.client.models.Encounter;
 import org.projectbuendia.client.models.Obs;
 import org.projectbuendia.client.models.Order;
 import org.projectbuendia.client.models.Patient;
 import org.projectbuendia.client.sync.ChartDataHelper;
+import org.projectbuendia.client.sync.ChartDataHelper.PatientChartData;
 import org.projectbuendia.client.sync.SyncManager;
 import org.projectbuendia.client.ui.FakeEventBus;
 import org.projectbuendia.client.ui.chart.PatientChartController.MinimalHandler;
 import org.projectbuendia.client.ui.chart.PatientChartController.OdkResultSender;
 
 import java.util.ArrayDeque;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
 
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -91,17 +97,15 @@ public final class PatientChartControllerTest extends AndroidTestCase {
             ImmutableList.of(OBS_1);
         Map<String, Obs> recentObservations =
             ImmutableMap.of(OBS_1.conceptUuid, OBS_1);
-        when(mMockChartHelper.getObservations(PATIENT_UUID_1))
-            .thenReturn(allObservations);
-        when(mMockChartHelper.getLatestObservations(PATIENT_UUID_1))
-            .thenReturn(recentObservations);
+        when(mMockChartHelper.getPatientChartData(PATIENT_UUID_1))
+            .thenReturn(new PatientChartData(
+                allObservations, recentObservations, ImmutableList.<Order> of()));
         // GIVEN controller is initialized
         mController.init();
         // WHEN that patient's details are loaded
         Patient patient = Patient.builder().build();
         mFakeCrudEventBus.post(new ItemFetchedEvent<>(patient));
-        // TODO: When the handler UI updating hack in PatientChartController is removed, this can
-        // also be removed.
+        // (the loaded data is posted back to the main thread)
         mFakeHandler.runUntilEmpty();
         // THEN the controller puts observations on the UI
         verify(mMockUi).updateTilesAndGrid(
@@ -111,6 +115,20 @@ public final class PatientChartControllerTest extends AndroidTestCase {
         verify(mMockUi).updatePregnancyAndIvStatusUi(recentObservations);
     }
 
+    /** Tests that a chart data load superseded by a newer one is never shown. */
+    public void testStaleChartDataLoad_IsDiscarded() {
+        // GIVEN two chart data loads, the second started before the first is shown
+        mController.init();
+        mController.updatePatientObsUi(0);
+        mController.updatePatientObsUi(0);
+        // WHEN the loaded data is posted back to the main thread
+        mFakeHandler.runUntilEmpty();
+        // THEN only the second load updates the UI
+        verify(mMockUi, times(1)).updateTilesAndGrid(
+            null, ImmutableMap.<String, Obs> of(), ImmutableList.<Obs> of(),
+            ImmutableList.<Order> of(), null, null);
+    }
+
     /** Tests that the UI is given updated patient data when patient data is fetched. */
     public void testPatientDetailsLoaded_UpdatesUi() {
         // GIVEN controller is initialized
@@ -257,6 +275,11 @@ public final class PatientChartControllerTest extends AndroidTestCase {
         mFakeCrudEventBus = new FakeEventBus();
         mFakeGlobalEventBus = new FakeEventBus();
         mFakeHandler = new FakeHandler();
+        when(mMockChartHelper.getPatientChartData(anyString()))
+            .thenReturn(new PatientChartData(ImmutableList.<Obs> of(),
+                ImmutableMap.<String, Obs> of(), ImmutableList.<Order> of()));
+        when(mMockChartHelper.getCharts(anyString()))
+            .thenReturn(Collections.<Chart> singletonList(null));
         mController = new PatientChartController(
             mMockAppModel,
             mFakeGlobalEventBus,
@@ -267,7 +290,12 @@ public final class PatientChartControllerTest extends AndroidTestCase {
             mMockChartHelper,
             null,
             mMockSyncManager,
-            mFakeHandler);
+            mFakeHandler,
+            new Executor() {
+                @Override public void execute(Runnable runnable) {
+                    runnable.run();
+                }
+            });
     }
 
     private final class FakeHandler implements MinimalHandler {
@@ -64,3 +64,26 @@ function getPoints(pointGroups) {
   }
   return Array.prototype.concat.apply([], pointArrays);
 }
+
+/**
+ * Replaces tiles and grid cells in place with newly rendered ones, given an array of HTML
+ * strings for <td> elements with IDs.  Returns false, without completing the patch, if the page
+ * is not the rendering that the patch was computed against or an element to replace is missing;
+ * the caller should then render the whole chart again.
+ */
+function patchChart(renderId, cellHtmls) {
+  if (document.body.getAttribute('data-render-id') != renderId) return false;
+  var container = document.createElement('tr');
+  for (var i = 0; i < cellHtmls.length; i++) {
+    container.innerHTML = cellHtmls[i];
+    var cell = container.getElementsByTagName('td')[0];
+    var old = cell && document.getElementById(cell.id);
+    if (!old) return false;
+    if ($(old).closest('#grid').length) {
+      $(cell).wrapInner('<div>');  // as freezeHeader does to every grid cell
+    }
+    old.parentNode.replaceChild(cell, old);
+  }
+  $(window).trigger('resize');  // realign the frozen headers with the new cell sizes
+  return true;
+}
@@ -22,8 +22,11 @@ import net.sqlcipher.database.SQLiteDatabase;
 
 import org.odk.collect.android.application.Collect;
 import org.projectbuendia.client.diagnostics.HealthMonitor;
+import org.projectbuendia.client.net.ChangeNotifier;
 import org.projectbuendia.client.net.OpenMrsConnectionDetails;
+import org.projectbuendia.client.net.Outbox;
 import org.projectbuendia.client.net.Server;
+import org.projectbuendia.client.net.XformCacheManager;
 import org.projectbuendia.client.user.UserManager;
 
 import javax.inject.Inject;
@@ -43,6 +46,9 @@ public class App extends Application {
     @Inject OpenMrsConnectionDetails mOpenMrsConnectionDetails;
     @Inject Server mServer;
     @Inject HealthMonitor mHealthMonitor;
+    @Inject ChangeNotifier mChangeNotifier;
+    @Inject Outbox mOutbox;
+    @Inject XformCacheManager mXformCacheManager;
 
     public static synchronized App getInstance() {
         return sInstance;
@@ -85,6 +91,8 @@ public class App extends Application {
         }
 
         mHealthMonitor.start();
+        // Send any writes that were still queued when the app last stopped.
+        mOutbox.requestSend();
     }
 
     @Override
@@ -101,4 +109,16 @@ public class App extends Application {
     public HealthMonitor getHealthMonitor() {
         return mHealthMonitor;
     }
+
+    public ChangeNotifier getChangeNotifier() {
+        return mChangeNotifier;
+    }
+
+    public Outbox getOutbox() {
+        return mOutbox;
+    }
+
+    public XformCacheManager getXformCacheManager() {
+        return mXformCacheManager;
+    }
 }
@@ -84,6 +84,15 @@ public class AppSettings {
         mSharedPreferences.edit().putBoolean("sync_account_initialized", value).commit();
     }
 
+    /**
+     * Gets the flag controlling whether to gzip request bodies, which the server must be
+     * configured to accept.
+     */
+    public boolean getCompressRequests() {
+        return mSharedPreferences.getBoolean("compress_requests",
+            mResources.getBoolean(R.bool.compress_requests_default));
+    }
+
     /** Gets the flag controlling whether to assume no wifi means no network. */
     public boolean getRequireWifi() {
         return mSharedPreferences.getBoolean("require_wifi",
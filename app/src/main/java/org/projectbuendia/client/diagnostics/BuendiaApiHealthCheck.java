@@ -19,18 +19,18 @@ import android.os.HandlerThread;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Sets;
 
-import org.apache.http.HttpResponse;
-import org.apache.http.auth.UsernamePasswordCredentials;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.conn.HttpHostConnectException;
-import org.apache.http.impl.auth.BasicScheme;
-import org.apache.http.impl.client.DefaultHttpClient;
+import com.squareup.okhttp.Credentials;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+
 import org.projectbuendia.client.models.ConceptUuids;
+import org.projectbuendia.client.net.Common;
 import org.projectbuendia.client.net.OpenMrsConnectionDetails;
 import org.projectbuendia.client.utils.Logger;
 
 import java.io.IOException;
+import java.net.ConnectException;
 import java.net.HttpURLConnection;
 import java.net.UnknownHostException;
 import java.util.Set;
@@ -133,25 +133,28 @@ public class BuendiaApiHealthCheck extends HealthCheck {
 
             try {
                 Uri uri = Uri.parse(mConnectionDetails.getBuendiaApiUrl() + HEALTH_CHECK_ENDPOINT);
-                HttpClient httpClient = new DefaultHttpClient();
-                HttpGet httpGet = new HttpGet(uri.toString());
-                if (httpGet.getURI().getHost() == null) {
+                if (uri.getHost() == null) {
                     LOG.w("Configured OpenMRS server URL is invalid: %s", uri);
                     reportIssue(HealthIssue.SERVER_CONFIGURATION_INVALID);
                     return;
                 }
+                // Use the app's shared client, so the check reuses a kept-alive connection.
+                OkHttpClient client = mConnectionDetails.getVolley().getHttpClient(
+                    Common.REQUEST_TIMEOUT_MS_HEALTH_CHECK);
 
                 try {
-                    httpGet.addHeader(BasicScheme.authenticate(
-                        new UsernamePasswordCredentials(
-                            mConnectionDetails.getUser(),
-                            mConnectionDetails.getPassword()),
-                        "UTF-8", false));
-                    HttpResponse httpResponse = httpClient.execute(httpGet);
-                    if (httpResponse.getStatusLine().getStatusCode() != HttpURLConnection.HTTP_OK) {
+                    Request request = new Request.Builder()
+                        .url(uri.toString())
+                        .header("Authorization", Credentials.basic(
+                            mConnectionDetails.getUser(), mConnectionDetails.getPassword()))
+                        .build();
+                    Response response = client.newCall(request).execute();
+                    // Close the body so that the connection can return to the pool.
+                    response.body().close();
+                    if (response.code() != HttpURLConnection.HTTP_OK) {
                         LOG.w("The OpenMRS URL '%1$s' returned unexpected error code: %2$s",
-                            uri, httpResponse.getStatusLine().getStatusCode());
-                        switch (httpResponse.getStatusLine().getStatusCode()) {
+                            uri, response.code());
+                        switch (response.code()) {
                             case HttpURLConnection.HTTP_INTERNAL_ERROR:
                                 reportIssue(HealthIssue.SERVER_INTERNAL_ISSUE);
                                 break;
@@ -173,8 +176,8 @@ public class BuendiaApiHealthCheck extends HealthCheck {
                     LOG.w("OpenMRS server unreachable: %s", uri);
                     reportIssue(HealthIssue.SERVER_HOST_UNREACHABLE);
                     return;
-                } catch (HttpHostConnectException e) {
-                    LOG.w("OpenMRS server connection refused: %s", e.getHost());
+                } catch (ConnectException e) {
+                    LOG.w("OpenMRS server connection refused: %s", uri.getHost());
                 } catch (IOException e) {
                     LOG.w("OpenMRS server health check failed: %s", uri);
                     return;
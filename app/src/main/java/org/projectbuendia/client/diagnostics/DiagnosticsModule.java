@@ -43,7 +43,7 @@ public class DiagnosticsModule {
         return ImmutableSet.of(
             new WifiHealthCheck(application, settings),
             new BuendiaApiHealthCheck(application, connectionDetails),
-            new PackageServerHealthCheck(application, settings));
+            new PackageServerHealthCheck(application, settings, connectionDetails.getVolley()));
     }
 
     @Provides
@@ -16,16 +16,17 @@ import android.net.Uri;
 import android.os.Handler;
 import android.os.HandlerThread;
 
-import org.apache.http.HttpResponse;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+
 import org.apache.http.HttpStatus;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.conn.HttpHostConnectException;
-import org.apache.http.impl.client.DefaultHttpClient;
 import org.projectbuendia.client.AppSettings;
+import org.projectbuendia.client.net.Common;
+import org.projectbuendia.client.net.VolleySingleton;
 import org.projectbuendia.client.utils.Logger;
 
 import java.io.IOException;
+import java.net.ConnectException;
 import java.net.UnknownHostException;
 
 /** A {@link HealthCheck} that checks whether the package server is up and running. */
@@ -43,6 +44,7 @@ public class PackageServerHealthCheck extends HealthCheck {
     private HandlerThread mHandlerThread;
     private Handler mHandler;
     private AppSettings mSettings;
+    private VolleySingleton mVolley;
     private final Runnable mHealthCheckRunnable = new Runnable() {
 
         @Override public void run() {
@@ -57,17 +59,19 @@ public class PackageServerHealthCheck extends HealthCheck {
 
         private void performCheck() {
             Uri uri = Uri.parse(mSettings.getPackageServerUrl(HEALTH_CHECK_ENDPOINT));
-            HttpClient httpClient = new DefaultHttpClient();
-            HttpGet getRequest = new HttpGet(uri.toString());
-            if (getRequest.getURI().getHost() == null) {
+            if (uri.getHost() == null) {
                 LOG.w("Configured package server URL is invalid: %s", uri);
                 reportIssue(HealthIssue.SERVER_CONFIGURATION_INVALID);
                 return;
             }
 
             try {
-                HttpResponse response = httpClient.execute(getRequest);
-                switch (response.getStatusLine().getStatusCode()) {
+                Request request = new Request.Builder().url(uri.toString()).build();
+                Response response = mVolley.getHttpClient(Common.REQUEST_TIMEOUT_MS_HEALTH_CHECK)
+                    .newCall(request).execute();
+                // Close the body so that the connection can return to the pool.
+                response.body().close();
+                switch (response.code()) {
                     case HttpStatus.SC_OK:
                         LOG.d("Package server check completed, OK.");
                         resolveAllIssues();
@@ -84,17 +88,19 @@ public class PackageServerHealthCheck extends HealthCheck {
             } catch (UnknownHostException | IllegalArgumentException e) {
                 LOG.w("Package server unreachable: %s", uri);
                 reportIssue(HealthIssue.PACKAGE_SERVER_HOST_UNREACHABLE);
-            } catch (HttpHostConnectException e) {
-                LOG.w("Package server connection refused: %s", e.getHost());
+            } catch (ConnectException e) {
+                LOG.w("Package server connection refused: %s", uri.getHost());
             } catch (IOException e) {
                 LOG.w(e, "Package server check failed: %s", uri);
             }
         }
     };
 
-    PackageServerHealthCheck(Application application, AppSettings settings) {
+    PackageServerHealthCheck(
+        Application application, AppSettings settings, VolleySingleton volley) {
         super(application);
         mSettings = settings;
+        mVolley = volley;
     }
 
     @Override protected void startImpl() {
@@ -16,9 +16,7 @@ import android.net.Uri;
 
 import org.projectbuendia.client.models.TypedCursor;
 
-import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.List;
 
 /**
  * Provides a wrapper over a {@link TypedCursor}, providing a filtered view of the cursor using
@@ -26,7 +24,8 @@ import java.util.List;
  */
 public class FilteredCursorWrapper<T> implements TypedCursor<T> {
     private final TypedCursor<T> mCursor;
-    private final List<Integer> mIndices;
+    private final int[] mPositions;
+    private final int mCount;
 
     /**
      * Applies the given {@link MatchingFilter} to the given {@link TypedCursor}, given a particular
@@ -35,15 +34,29 @@ public class FilteredCursorWrapper<T> implements TypedCursor<T> {
     public FilteredCursorWrapper(
         TypedCursor<T> cursor, MatchingFilter<T> filter, CharSequence constraint) {
         mCursor = cursor;
-        mIndices = new ArrayList<Integer>();
+        mPositions = new int[cursor.getCount()];
 
-        int count = cursor.getCount();
-        for (int i = 0; i < count; i++) {
+        int count = 0;
+        for (int i = 0; i < mPositions.length; i++) {
             T obj = cursor.get(i);
             if (filter.matches(obj, constraint)) {
-                mIndices.add(i);
+                mPositions[count++] = i;
             }
         }
+        mCount = count;
+    }
+
+    /**
+     * Wraps the given {@link TypedCursor}, exposing only the rows at the given positions, which
+     * have already been selected (e.g. by a search index).
+     * @param cursor    the cursor to wrap
+     * @param positions positions in {@code cursor}, in the order they should appear
+     * @param count     the number of entries of {@code positions} to use
+     */
+    public FilteredCursorWrapper(TypedCursor<T> cursor, int[] positions, int count) {
+        mCursor = cursor;
+        mPositions = positions;
+        mCount = count;
     }
 
     @Override public Uri getNotificationUri() {
@@ -82,10 +95,13 @@ public class FilteredCursorWrapper<T> implements TypedCursor<T> {
     }
 
     @Override public int getCount() {
-        return mIndices.size();
+        return mCount;
     }
 
     @Override public T get(int position) {
-        return mCursor.get(mIndices.get(position));
+        if (position < 0 || position >= mCount) {
+            return null;
+        }
+        return mCursor.get(mPositions[position]);
     }
 }
@@ -0,0 +1,195 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.filter.matchers.patient;
+
+import org.projectbuendia.client.filter.matchers.FilteredCursorWrapper;
+import org.projectbuendia.client.models.Patient;
+import org.projectbuendia.client.models.TypedCursor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * A search index over the patients in a {@link TypedCursor}, built once when the cursor is loaded
+ * so that each search only does binary searches over sorted tokens instead of reading and
+ * tokenizing every patient again.
+ * <p>
+ * Matches the same patients as an OR of {@link IdFilter} and {@link NameFilter}: patients whose ID
+ * contains the whole search string, or for whom every word of the search string is a prefix of a
+ * word of the given or family name (with any run of dashes matching any other run of dashes).
+ * Results are in the same order as the underlying cursor.
+ * <p>
+ * Not thread-safe; searches reuse the same scratch space.
+ */
+public class PatientSearchIndex {
+    private static final Pattern DASH_REGEX = Pattern.compile("^\\p{Pd}*$");
+
+    private final TypedCursor<Patient> mCursor;
+
+    /** Lowercased words of all the names, sorted, and the cursor position each came from. */
+    private final String[] mNameTokens;
+    private final int[] mNamePositions;
+
+    /** All suffixes of all the lowercased IDs, sorted, and the cursor position each came from. */
+    private final String[] mIdSuffixes;
+    private final int[] mIdPositions;
+
+    /**
+     * Whether the patient at each position has a name word consisting only of dashes (or an empty
+     * word, which {@link NameFilter} also treats as a dash).
+     */
+    private final boolean[] mHasDashName;
+    /** Whether there is a non-null patient at each position. */
+    private final boolean[] mPresent;
+
+    /** For each position, the number of search words matched so far by the current search. */
+    private final int[] mMatchCounts;
+
+    /** Reads every patient in the cursor and indexes their names and IDs. */
+    public PatientSearchIndex(TypedCursor<Patient> cursor) {
+        mCursor = cursor;
+        int count = cursor.getCount();
+        mHasDashName = new boolean[count];
+        mPresent = new boolean[count];
+        mMatchCounts = new int[count];
+
+        List<Token> nameTokens = new ArrayList<>();
+        List<Token> idSuffixes = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Patient patient = cursor.get(i);
+            if (patient == null) continue;
+            mPresent[i] = true;
+            // Split the names exactly as NameFilter does, so the same words are matched.
+            String givenName = patient.givenName == null ? "" : patient.givenName;
+            String familyName = patient.familyName == null ? "" : patient.familyName;
+            for (String word : (givenName + " " + familyName).toLowerCase().split(" ")) {
+                if (DASH_REGEX.matcher(word).matches()) {
+                    mHasDashName[i] = true;
+                }
+                if (!word.isEmpty()) {
+                    nameTokens.add(new Token(word, i));
+                }
+            }
+            if (patient.id != null) {
+                String id = patient.id.toLowerCase();
+                for (int start = 0; start < id.length(); start++) {
+                    idSuffixes.add(new Token(id.substring(start), i));
+                }
+            }
+        }
+
+        Collections.sort(nameTokens, Token.COMPARATOR);
+        mNameTokens = new String[nameTokens.size()];
+        mNamePositions = new int[nameTokens.size()];
+        for (int t = 0; t < mNameTokens.length; t++) {
+            mNameTokens[t] = nameTokens.get(t).text;
+            mNamePositions[t] = nameTokens.get(t).position;
+        }
+
+        Collections.sort(idSuffixes, Token.COMPARATOR);
+        mIdSuffixes = new String[idSuffixes.size()];
+        mIdPositions = new int[idSuffixes.size()];
+        for (int t = 0; t < mIdSuffixes.length; t++) {
+            mIdSuffixes[t] = idSuffixes.get(t).text;
+            mIdPositions[t] = idSuffixes.get(t).position;
+        }
+    }
+
+    /**
+     * Returns a view of the indexed cursor containing only the patients that match the given
+     * search string.  Closing the view closes the indexed cursor.
+     */
+    public FilteredCursorWrapper<Patient> search(CharSequence constraint) {
+        String query = constraint.toString().toLowerCase();
+        String[] words = query.split(" ");
+        Arrays.fill(mMatchCounts, 0);
+
+        int numWords = 0;
+        for (String word : words) {
+            if (word.isEmpty()) continue;  // an empty word is a prefix of every name
+            matchNameWord(word, numWords);
+            numWords++;
+        }
+        if (numWords > 0) {
+            // Patients whose ID contains the whole search string match regardless of name.
+            for (int t = lowerBound(mIdSuffixes, query);
+                 t < mIdSuffixes.length && mIdSuffixes[t].startsWith(query); t++) {
+                mMatchCounts[mIdPositions[t]] = numWords;
+            }
+        }
+
+        int[] positions = new int[mMatchCounts.length];
+        int count = 0;
+        for (int i = 0; i < mMatchCounts.length; i++) {
+            if (mPresent[i] && mMatchCounts[i] == numWords) {
+                positions[count++] = i;
+            }
+        }
+        return new FilteredCursorWrapper<>(mCursor, positions, count);
+    }
+
+    /**
+     * Advances the match count of every patient that matched all the previous words and has a
+     * name word beginning with {@code word}.
+     */
+    private void matchNameWord(String word, int wordIndex) {
+        for (int t = lowerBound(mNameTokens, word);
+             t < mNameTokens.length && mNameTokens[t].startsWith(word); t++) {
+            int position = mNamePositions[t];
+            if (mMatchCounts[position] == wordIndex) {
+                mMatchCounts[position] = wordIndex + 1;
+            }
+        }
+        if (DASH_REGEX.matcher(word).matches()) {
+            for (int i = 0; i < mHasDashName.length; i++) {
+                if (mHasDashName[i] && mMatchCounts[i] == wordIndex) {
+                    mMatchCounts[i] = wordIndex + 1;
+                }
+            }
+        }
+    }
+
+    /** Returns the index of the first element of {@code sorted} not less than {@code key}. */
+    private static int lowerBound(String[] sorted, String key) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sorted[mid].compareTo(key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static class Token {
+        static final Comparator<Token> COMPARATOR = new Comparator<Token>() {
+            @Override public int compare(Token a, Token b) {
+                return a.text.compareTo(b.text);
+            }
+        };
+
+        final String text;
+        final int position;
+
+        Token(String text, int position) {
+            this.text = text;
+            this.position = position;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.json;
+
+/** A Gson object that represents a response from the server's change notification channel. */
+public class JsonChanges {
+
+    /** An opaque position in the server's change log, to be sent with the next request. */
+    public String cursor;
+
+    /** The names of the tables that changed since the cursor sent with the request. */
+    public String[] tables;
+}
@@ -43,6 +43,8 @@ public class LocationTree implements Observable {
     private final Map<String, Location> mUuidsToLocations;
     private final Map<String, Location> mUuidsToParents;
     private final ImmutableSetMultimap<String, Location> mUuidsToChildren;
+    /** Patients in each location and all its descendants, computed once when the tree is built. */
+    private final Map<String, Long> mUuidsToTotalPatientCounts;
 
     /**
      * Creates a {@link LocationTree} from a {@link TypedCursor} of {@link Location}s.
@@ -212,11 +214,8 @@ public class LocationTree implements Observable {
             return 0;
         }
 
-        long count = location.patientCount;
-        for (Location child : getChildren(location)) {
-            count += getTotalPatientCount(child);
-        }
-        return count;
+        Long count = mUuidsToTotalPatientCounts.get(location.uuid);
+        return count != null ? count : location.patientCount;
     }
 
     @Override public void registerContentObserver(ContentObserver observer) {
@@ -242,6 +241,16 @@ public class LocationTree implements Observable {
         mUuidsToLocations = uuidsToLocations;
         mUuidsToParents = uuidsToParents;
         mUuidsToChildren = uuidsToChildren;
+
+        // Add each location's own patients to its total and to the totals of all its ancestors.
+        mUuidsToTotalPatientCounts = new HashMap<>();
+        for (Location location : uuidsToLocations.values()) {
+            for (Location l = location; l != null; l = uuidsToParents.get(l.uuid)) {
+                Long total = mUuidsToTotalPatientCounts.get(l.uuid);
+                mUuidsToTotalPatientCounts.put(
+                    l.uuid, (total == null ? 0 : total) + location.patientCount);
+            }
+        }
     }
 
     private void addChildrenToCollection(Collection<Location> collection, Location root) {
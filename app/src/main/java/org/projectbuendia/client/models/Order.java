@@ -23,6 +23,7 @@ import org.projectbuendia.client.json.JsonOrder;
 import org.projectbuendia.client.providers.Contracts;
 import org.projectbuendia.client.utils.Utils;
 
+import java.util.Objects;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -129,6 +130,21 @@ public final class Order extends Base<String> implements Comparable<Order> {
         return Utils.toInterval(start, stop);
     }
 
+    @Override public boolean equals(Object other) {
+        if (!(other instanceof Order)) return false;
+        Order o = (Order) other;
+        return Objects.equals(uuid, o.uuid)
+            && Objects.equals(patientUuid, o.patientUuid)
+            && Objects.equals(instructions, o.instructions)
+            && Objects.equals(start, o.start)
+            && Objects.equals(stop, o.stop);
+    }
+
+    @Override public int hashCode() {
+        return Objects.hashCode(uuid) + Objects.hashCode(instructions)
+            + Objects.hashCode(start) + Objects.hashCode(stop);
+    }
+
     @Override public int compareTo(@NonNull Order other) {
         int result = start.compareTo(other.start);
         result = result != 0 ? result : instructions.compareTo(other.instructions);
@@ -26,6 +26,7 @@ import org.projectbuendia.client.models.PatientDelta;
 import org.projectbuendia.client.models.CursorLoader;
 import org.projectbuendia.client.models.LoaderSet;
 import org.projectbuendia.client.models.VoidObs;
+import org.projectbuendia.client.net.Outbox;
 import org.projectbuendia.client.net.Server;
 
 /**
@@ -35,13 +36,15 @@ import org.projectbuendia.client.net.Server;
 public class TaskFactory {
     private final LoaderSet mLoaderSet;
     private final Server mServer;
+    private final Outbox mOutbox;
     private final ContentResolver mContentResolver;
 
     /** Creates a new {@link TaskFactory}. */
     public TaskFactory(
-        LoaderSet loaderSet, Server server, ContentResolver contentResolver) {
+        LoaderSet loaderSet, Server server, Outbox outbox, ContentResolver contentResolver) {
         mLoaderSet = loaderSet;
         mServer = server;
+        mOutbox = outbox;
         mContentResolver = contentResolver;
     }
 
@@ -65,19 +68,19 @@ public class TaskFactory {
     public UpdatePatientTask newUpdatePatientTask(
         String patientUuid, PatientDelta patientDelta, CrudEventBus bus) {
         return new UpdatePatientTask(
-            this, mLoaderSet, mServer, mContentResolver, patientUuid, patientDelta, bus);
+            this, mLoaderSet, mOutbox, mContentResolver, patientUuid, patientDelta, bus);
     }
 
     /** Creates a new {@link AddEncounterTask}. */
     public AddEncounterTask newAddEncounterTask(
         Patient patient, Encounter encounter, CrudEventBus bus) {
         return new AddEncounterTask(
-            this, mLoaderSet, mServer, mContentResolver, patient, encounter, bus);
+            this, mLoaderSet, mOutbox, mContentResolver, patient, encounter, bus);
     }
 
     /** Creates a new {@link SaveOrderTask}. */
     public SaveOrderTask newSaveOrderTask(Order order, CrudEventBus bus) {
-        return new SaveOrderTask(this, mLoaderSet, mServer, mContentResolver, order, bus);
+        return new SaveOrderTask(this, mLoaderSet, mOutbox, mContentResolver, order, bus);
     }
 
     // DO NOT SUBMIT: work out why there's two of these.
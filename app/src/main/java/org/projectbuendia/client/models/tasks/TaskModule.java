@@ -14,6 +14,7 @@ package org.projectbuendia.client.models.tasks;
 import android.content.ContentResolver;
 
 import org.projectbuendia.client.models.LoaderSet;
+import org.projectbuendia.client.net.Outbox;
 import org.projectbuendia.client.net.Server;
 
 import javax.inject.Singleton;
@@ -27,8 +28,9 @@ public class TaskModule {
     @Provides
     @Singleton TaskFactory provideAppAsyncTaskFactory(
         Server server,
+        Outbox outbox,
         ContentResolver contentResolver,
         LoaderSet loaderSet) {
-        return new TaskFactory(loaderSet, server, contentResolver);
+        return new TaskFactory(loaderSet, server, outbox, contentResolver);
     }
 }
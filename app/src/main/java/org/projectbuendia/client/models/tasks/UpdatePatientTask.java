@@ -14,9 +14,7 @@ package org.projectbuendia.client.models.tasks;
 import android.content.ContentResolver;
 import android.os.AsyncTask;
 
-import com.android.volley.VolleyError;
-import com.android.volley.toolbox.RequestFuture;
-
+import org.json.JSONObject;
 import org.projectbuendia.client.events.CrudEventBus;
 import org.projectbuendia.client.events.data.ItemFetchFailedEvent;
 import org.projectbuendia.client.events.data.ItemFetchedEvent;
@@ -27,14 +25,12 @@ import org.projectbuendia.client.filter.db.patient.UuidFilter;
 import org.projectbuendia.client.models.Patient;
 import org.projectbuendia.client.models.PatientDelta;
 import org.projectbuendia.client.models.LoaderSet;
-import org.projectbuendia.client.net.Server;
-import org.projectbuendia.client.json.JsonPatient;
+import org.projectbuendia.client.net.Outbox;
 import org.projectbuendia.client.providers.Contracts;
 
-import java.util.concurrent.ExecutionException;
-
 /**
- * An {@link AsyncTask} that updates a patient on a server.
+ * An {@link AsyncTask} that updates a patient in the local store and queues the change in the
+ * {@link Outbox} to be sent to the server.
  * <p/>
  * <p>If the operation succeeds, a {@link ItemUpdatedEvent} is posted on the given
  * {@link CrudEventBus} with both the old and updated patient data. If the operation fails, a
@@ -45,7 +41,7 @@ public class UpdatePatientTask extends AsyncTask<Void, Void, PatientUpdateFailed
 
     private final TaskFactory mTaskFactory;
     private final LoaderSet mLoaderSet;
-    private final Server mServer;
+    private final Outbox mOutbox;
     private final ContentResolver mContentResolver;
     private final String mUuid;
     private final PatientDelta mPatientDelta;
@@ -54,14 +50,14 @@ public class UpdatePatientTask extends AsyncTask<Void, Void, PatientUpdateFailed
     UpdatePatientTask(
         TaskFactory taskFactory,
         LoaderSet loaderSet,
-        Server server,
+        Outbox outbox,
         ContentResolver contentResolver,
         String patientUuid,
         PatientDelta patientDelta,
         CrudEventBus bus) {
         mTaskFactory = taskFactory;
         mLoaderSet = loaderSet;
-        mServer = server;
+        mOutbox = outbox;
         mContentResolver = contentResolver;
         mUuid = patientUuid;
         mPatientDelta = patientDelta;
@@ -69,17 +65,10 @@ public class UpdatePatientTask extends AsyncTask<Void, Void, PatientUpdateFailed
     }
 
     @Override protected PatientUpdateFailedEvent doInBackground(Void... params) {
-        RequestFuture<JsonPatient> patientFuture = RequestFuture.newFuture();
-
-        mServer.updatePatient(mUuid, mPatientDelta, patientFuture, patientFuture);
-        try {
-            patientFuture.get();
-        } catch (InterruptedException e) {
-            return new PatientUpdateFailedEvent(PatientUpdateFailedEvent.REASON_INTERRUPTED, e);
-        } catch (ExecutionException e) {
-            // TODO: Parse the VolleyError to see exactly what kind of error was raised.
+        JSONObject json = new JSONObject();
+        if (!mPatientDelta.toJson(json)) {
             return new PatientUpdateFailedEvent(
-                PatientUpdateFailedEvent.REASON_NETWORK, (VolleyError) e.getCause());
+                PatientUpdateFailedEvent.REASON_CLIENT, null /*exception*/);
         }
 
         int count = mContentResolver.update(
@@ -93,6 +82,8 @@ public class UpdatePatientTask extends AsyncTask<Void, Void, PatientUpdateFailed
                 return new PatientUpdateFailedEvent(
                     PatientUpdateFailedEvent.REASON_NO_SUCH_PATIENT, null /*exception*/);
             case 1:
+                mOutbox.enqueue(
+                    Outbox.Kind.PATIENT_UPDATE, mUuid, null, "/patients/" + mUuid, json);
                 return null;
             default:
                 return new PatientUpdateFailedEvent(
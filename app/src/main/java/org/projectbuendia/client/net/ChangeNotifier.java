@@ -0,0 +1,196 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.net;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.squareup.okhttp.Call;
+import com.squareup.okhttp.Credentials;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+
+import org.projectbuendia.client.json.JsonChanges;
+import org.projectbuendia.client.utils.Logger;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URLEncoder;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Listens for changes on the server over a long-poll channel, so that other tablets' changes can
+ * be synced within seconds instead of waiting for the next periodic sync.
+ * <p>
+ * The channel is a series of requests to {@code /changes?wait=<seconds>&since=<cursor>} under the
+ * Buendia API.  The server holds each request open until any table changes after the given
+ * cursor, or until the wait expires, and then responds with a {@link JsonChanges} listing the
+ * changed tables (possibly none) and a new cursor.  The first request has no cursor and is
+ * answered immediately with the current one.  Servers without this endpoint answer 404, in which
+ * case the channel checks again only occasionally.
+ * <p>
+ * Polling runs on its own thread between {@link #start()} and {@link #stop()}.
+ */
+public class ChangeNotifier {
+
+    private static final Logger LOG = Logger.create();
+
+    /** How long the server may hold each request open, in seconds. */
+    static final int WAIT_SECONDS = 30;
+
+    /** Extra time allowed for each held request to be answered, beyond {@link #WAIT_SECONDS}. */
+    private static final int READ_MARGIN_MILLIS = 15000;
+
+    /** The first delay after a failed request, doubled with each further failure. */
+    static final long MIN_RETRY_MILLIS = 5000;
+
+    /** The longest delay after a run of failed requests. */
+    static final long MAX_RETRY_MILLIS = 5 * 60 * 1000;
+
+    /** How long to wait before trying again with a server that doesn't have the channel. */
+    static final long UNSUPPORTED_RETRY_MILLIS = 10 * 60 * 1000;
+
+    /** Receives the names of changed tables, on the polling thread. */
+    public interface Listener {
+        void onTablesChanged(Set<String> tables);
+    }
+
+    private final OpenMrsConnectionDetails mConnectionDetails;
+    private final Gson mGson;
+    private final Listener mListener;
+
+    private final Object mLock = new Object();
+    /** The polling thread, or null when stopped.  Guarded by mLock. */
+    private Thread mThread;
+    /** The request in progress on the polling thread.  Guarded by mLock. */
+    private Call mCall;
+
+    public ChangeNotifier(
+        OpenMrsConnectionDetails connectionDetails, Gson gson, Listener listener) {
+        mConnectionDetails = connectionDetails;
+        mGson = gson;
+        mListener = listener;
+    }
+
+    /** Starts listening for changes, if not already listening. */
+    public void start() {
+        synchronized (mLock) {
+            if (mThread == null) {
+                mThread = new Thread(new PollLoop(), "ChangeNotifier");
+                mThread.start();
+            }
+        }
+    }
+
+    /** Stops listening for changes, abandoning any request in progress. */
+    public void stop() {
+        synchronized (mLock) {
+            if (mThread != null) {
+                mThread.interrupt();
+                mThread = null;
+            }
+            if (mCall != null) {
+                mCall.cancel();
+                mCall = null;
+            }
+        }
+    }
+
+    private class PollLoop implements Runnable {
+        @Override public void run() {
+            String cursor = null;
+            long retryMillis = MIN_RETRY_MILLIS;
+            try {
+                while (isCurrent()) {
+                    JsonChanges changes;
+                    try {
+                        changes = poll(cursor);
+                    } catch (IOException | JsonParseException e) {
+                        if (!isCurrent()) break;
+                        LOG.w("Change notification request failed (%s); retrying in %d ms",
+                            e.getMessage(), retryMillis);
+                        Thread.sleep(retryMillis);
+                        retryMillis = Math.min(retryMillis * 2, MAX_RETRY_MILLIS);
+                        continue;
+                    }
+                    retryMillis = MIN_RETRY_MILLIS;
+                    if (changes == null) {
+                        LOG.i("Server has no change notification channel; checking again in "
+                            + "%d ms", UNSUPPORTED_RETRY_MILLIS);
+                        cursor = null;
+                        Thread.sleep(UNSUPPORTED_RETRY_MILLIS);
+                        continue;
+                    }
+                    if (cursor != null && changes.tables != null && changes.tables.length > 0) {
+                        Set<String> tables = new HashSet<>(Arrays.asList(changes.tables));
+                        LOG.i("Server reports changes to %s", tables);
+                        if (isCurrent()) {
+                            mListener.onTablesChanged(tables);
+                        }
+                    }
+                    cursor = changes.cursor;
+                }
+            } catch (InterruptedException e) {
+                // stop() was called; just exit.
+            }
+        }
+
+        private boolean isCurrent() {
+            synchronized (mLock) {
+                return mThread == Thread.currentThread();
+            }
+        }
+
+        /**
+         * Makes one request to the channel.  Returns the server's response, or null if the
+         * server doesn't have the channel.
+         */
+        private JsonChanges poll(String cursor) throws IOException, InterruptedException {
+            String url = mConnectionDetails.getBuendiaApiUrl()
+                + "/changes?wait=" + WAIT_SECONDS
+                + (cursor != null ? "&since=" + URLEncoder.encode(cursor, "UTF-8") : "");
+            Request request = new Request.Builder()
+                .url(url)
+                .header("Authorization", Credentials.basic(
+                    mConnectionDetails.getUser(), mConnectionDetails.getPassword()))
+                .build();
+            Call call = mConnectionDetails.getVolley()
+                .getHttpClient(WAIT_SECONDS * 1000 + READ_MARGIN_MILLIS)
+                .newCall(request);
+            synchronized (mLock) {
+                if (mThread != Thread.currentThread()) {
+                    throw new InterruptedException();
+                }
+                mCall = call;
+            }
+
+            Response response = call.execute();
+            try {
+                if (response.code() == HttpURLConnection.HTTP_NOT_FOUND) {
+                    return null;
+                }
+                if (!response.isSuccessful()) {
+                    throw new IOException("HTTP status " + response.code());
+                }
+                JsonChanges changes = mGson.fromJson(
+                    response.body().charStream(), JsonChanges.class);
+                if (changes == null) {
+                    throw new IOException("Empty response");
+                }
+                return changes;
+            } finally {
+                response.body().close();
+            }
+        }
+    }
+}
@@ -14,6 +14,12 @@ package org.projectbuendia.client.net;
 /** Common constants and helper methods for the network layer. */
 public final class Common {
 
+    /**
+     * The number of milliseconds before a health check request is considered timed out.  Health
+     * checks are repeated every 10 to 20 seconds, so each one should give up well before the next.
+     */
+    public static final int REQUEST_TIMEOUT_MS_HEALTH_CHECK = 5000;
+
     /**
      * The number of milliseconds before a request is considered timed out for requests expected to
      * finish quickly (e.g. updating or deleting a record).
@@ -0,0 +1,53 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.net;
+
+import com.squareup.okhttp.Interceptor;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.RequestBody;
+import com.squareup.okhttp.Response;
+
+import java.io.IOException;
+
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.GzipSink;
+import okio.Okio;
+
+/**
+ * Gzips the body of every request that carries a "Content-Encoding: gzip" header.  Requests opt
+ * in by setting the header themselves, because only servers configured to accept compressed
+ * request bodies can read them.  The compressed body is buffered so that it is sent with a
+ * Content-Length, as the server may not accept a chunked upload.
+ */
+public class GzipRequestInterceptor implements Interceptor {
+
+    public static final String HEADER_NAME = "Content-Encoding";
+    public static final String GZIP = "gzip";
+
+    @Override public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        RequestBody body = request.body();
+        if (body == null || !GZIP.equalsIgnoreCase(request.header(HEADER_NAME))) {
+            return chain.proceed(request);
+        }
+
+        Buffer compressed = new Buffer();
+        BufferedSink sink = Okio.buffer(new GzipSink(compressed));
+        body.writeTo(sink);
+        sink.close();
+        return chain.proceed(request.newBuilder()
+            .method(request.method(),
+                RequestBody.create(body.contentType(), compressed.readByteString()))
+            .build());
+    }
+}
@@ -0,0 +1,266 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.net;
+
+import android.os.SystemClock;
+
+import com.squareup.okhttp.Connection;
+import com.squareup.okhttp.ConnectionPool;
+import com.squareup.okhttp.Interceptor;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.ResponseBody;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+
+import okio.Buffer;
+import okio.ForwardingSource;
+import okio.Okio;
+
+/**
+ * Statistics for the shared {@link com.squareup.okhttp.OkHttpClient}: how many requests reused an
+ * already-open connection, how long each endpoint takes to respond, and how many bytes each
+ * endpoint sends and receives, both on the wire and after decompression, so that connection
+ * reuse, latency, and the effect of compression on the ward network can be seen in the logs.
+ * Latency is measured from sending the request to receiving the response headers.
+ * <p>
+ * The client must install {@link #getApplicationInterceptor()} before any interceptor that
+ * compresses request bodies, and {@link #getNetworkInterceptor()} as a network interceptor.
+ */
+public class HttpStats {
+
+    private final ConnectionPool mPool;
+    private final Set<Connection> mSeenConnections =
+        Collections.newSetFromMap(new WeakHashMap<Connection, Boolean>());
+    private final Map<String, EndpointStats> mEndpoints = new TreeMap<>();
+    private int mNumRequests;
+    private int mNumReused;
+    private int mNumFailures;
+
+    /** Sees requests and responses as the app does, with bodies uncompressed. */
+    private final Interceptor mApplicationInterceptor = new Interceptor() {
+        @Override public Response intercept(Chain chain) throws IOException {
+            Request request = chain.request();
+            String endpoint = getEndpoint(request);
+            if (request.body() != null && request.body().contentLength() > 0) {
+                addSentBytes(endpoint, request.body().contentLength(), false);
+            }
+            return countReceivedBytes(chain.proceed(request), endpoint, false);
+        }
+    };
+
+    /** Sees requests and responses as they go over the wire, with bodies compressed. */
+    private final Interceptor mNetworkInterceptor = new Interceptor() {
+        @Override public Response intercept(Chain chain) throws IOException {
+            Request request = chain.request();
+            String endpoint = getEndpoint(request);
+            boolean reused;
+            synchronized (HttpStats.this) {
+                reused = !mSeenConnections.add(chain.connection());
+            }
+            if (request.body() != null && request.body().contentLength() > 0) {
+                addSentBytes(endpoint, request.body().contentLength(), true);
+            }
+            long start = SystemClock.elapsedRealtime();
+            try {
+                Response response = chain.proceed(request);
+                record(endpoint, reused, SystemClock.elapsedRealtime() - start, false);
+                return countReceivedBytes(response, endpoint, true);
+            } catch (IOException e) {
+                record(endpoint, reused, SystemClock.elapsedRealtime() - start, true);
+                throw e;
+            }
+        }
+    };
+
+    public HttpStats(ConnectionPool pool) {
+        mPool = pool;
+    }
+
+    /** Returns the interceptor that counts the bytes the app sends and receives. */
+    public Interceptor getApplicationInterceptor() {
+        return mApplicationInterceptor;
+    }
+
+    /** Returns the interceptor that counts connections, latency, and bytes on the wire. */
+    public Interceptor getNetworkInterceptor() {
+        return mNetworkInterceptor;
+    }
+
+    private synchronized void record(
+        String endpoint, boolean reused, long millis, boolean failed) {
+        mNumRequests++;
+        if (reused) mNumReused++;
+        if (failed) mNumFailures++;
+        EndpointStats stats = getEndpointStats(endpoint);
+        stats.count++;
+        stats.totalMillis += millis;
+        stats.maxMillis = Math.max(stats.maxMillis, millis);
+    }
+
+    /** Wraps a response so that the bytes read from its body are added to the endpoint's count. */
+    private Response countReceivedBytes(
+        Response response, final String endpoint, final boolean onWire) throws IOException {
+        ResponseBody body = response.body();
+        if (body == null) return response;
+        ForwardingSource counter = new ForwardingSource(body.source()) {
+            @Override public long read(Buffer sink, long byteCount) throws IOException {
+                long numRead = super.read(sink, byteCount);
+                if (numRead > 0) {
+                    addReceivedBytes(endpoint, numRead, onWire);
+                }
+                return numRead;
+            }
+        };
+        return response.newBuilder()
+            .body(ResponseBody.create(
+                body.contentType(), body.contentLength(), Okio.buffer(counter)))
+            .build();
+    }
+
+    private synchronized void addSentBytes(String endpoint, long numBytes, boolean onWire) {
+        ByteCounts bytes = getEndpointStats(endpoint).bytes;
+        if (onWire) {
+            bytes.sentOnWire += numBytes;
+        } else {
+            bytes.sent += numBytes;
+        }
+    }
+
+    private synchronized void addReceivedBytes(String endpoint, long numBytes, boolean onWire) {
+        ByteCounts bytes = getEndpointStats(endpoint).bytes;
+        if (onWire) {
+            bytes.receivedOnWire += numBytes;
+        } else {
+            bytes.received += numBytes;
+        }
+    }
+
+    private synchronized EndpointStats getEndpointStats(String endpoint) {
+        EndpointStats stats = mEndpoints.get(endpoint);
+        if (stats == null) {
+            stats = new EndpointStats();
+            mEndpoints.put(endpoint, stats);
+        }
+        return stats;
+    }
+
+    /**
+     * Returns the method and path of a request with every path segment that contains a digit
+     * (e.g. a UUID or an ID) replaced by "*", so that requests for different items of the same
+     * kind are counted together.
+     */
+    static String getEndpoint(Request request) {
+        StringBuilder endpoint = new StringBuilder(request.method()).append(' ');
+        for (String segment : request.url().getPath().split("/")) {
+            if (segment.isEmpty()) continue;
+            endpoint.append('/').append(segment.matches(".*[0-9].*") ? "*" : segment);
+        }
+        return endpoint.toString();
+    }
+
+    /** Returns a one-line summary of the connection pool and the requests made so far. */
+    public synchronized String getSummary() {
+        return String.format("%d requests, %d on reused connections, %d failed;"
+                + " pool has %d connections, %d idle",
+            mNumRequests, mNumReused, mNumFailures,
+            mPool.getConnectionCount(), mPool.getIdleConnectionCount());
+    }
+
+    /** Returns a copy of the byte counts so far for each endpoint. */
+    public synchronized Map<String, ByteCounts> getByteCounts() {
+        Map<String, ByteCounts> counts = new HashMap<>();
+        for (Map.Entry<String, EndpointStats> entry : mEndpoints.entrySet()) {
+            counts.put(entry.getKey(), new ByteCounts(entry.getValue().bytes));
+        }
+        return counts;
+    }
+
+    /**
+     * Describes the bytes transferred for each endpoint since the given counts were taken by
+     * {@link #getByteCounts()}, one endpoint per line, omitting endpoints with no traffic.
+     */
+    public synchronized String describeBytesSince(Map<String, ByteCounts> earlier) {
+        StringBuilder result = new StringBuilder();
+        for (Map.Entry<String, EndpointStats> entry : mEndpoints.entrySet()) {
+            ByteCounts bytes = entry.getValue().bytes.minus(earlier.get(entry.getKey()));
+            if (!bytes.isEmpty()) {
+                result.append('\n').append(entry.getKey()).append(": ").append(bytes);
+            }
+        }
+        return result.toString();
+    }
+
+    @Override public synchronized String toString() {
+        StringBuilder result = new StringBuilder(getSummary());
+        for (Map.Entry<String, EndpointStats> entry : mEndpoints.entrySet()) {
+            result.append('\n').append(entry.getKey()).append(": ").append(entry.getValue());
+        }
+        return result.toString();
+    }
+
+    /** Numbers of body bytes sent and received, before and after compression. */
+    public static class ByteCounts {
+        long sent;
+        long sentOnWire;
+        long received;
+        long receivedOnWire;
+
+        ByteCounts() { }
+
+        ByteCounts(ByteCounts other) {
+            sent = other.sent;
+            sentOnWire = other.sentOnWire;
+            received = other.received;
+            receivedOnWire = other.receivedOnWire;
+        }
+
+        /** Returns the counts with the given earlier counts (if any) subtracted. */
+        ByteCounts minus(ByteCounts earlier) {
+            ByteCounts result = new ByteCounts(this);
+            if (earlier != null) {
+                result.sent -= earlier.sent;
+                result.sentOnWire -= earlier.sentOnWire;
+                result.received -= earlier.received;
+                result.receivedOnWire -= earlier.receivedOnWire;
+            }
+            return result;
+        }
+
+        boolean isEmpty() {
+            return sent == 0 && sentOnWire == 0 && received == 0 && receivedOnWire == 0;
+        }
+
+        @Override public String toString() {
+            return String.format("sent %d bytes as %d, received %d bytes as %d",
+                sent, sentOnWire, received, receivedOnWire);
+        }
+    }
+
+    private static class EndpointStats {
+        int count;
+        long totalMillis;
+        long maxMillis;
+        final ByteCounts bytes = new ByteCounts();
+
+        @Override public String toString() {
+            return String.format("%d requests, %d ms average, %d ms max; %s",
+                count, count > 0 ? totalMillis / count : 0, maxMillis, bytes);
+        }
+    }
+}
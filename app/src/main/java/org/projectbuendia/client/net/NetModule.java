@@ -12,6 +12,8 @@
 package org.projectbuendia.client.net;
 
 import android.app.Application;
+import android.content.ContentResolver;
+import android.content.Context;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
@@ -22,6 +24,9 @@ import org.projectbuendia.client.AppSettings;
 import org.projectbuendia.client.json.DateTimeSerializer;
 import org.projectbuendia.client.json.LocalDateSerializer;
 import org.projectbuendia.client.json.Serializers;
+import org.projectbuendia.client.sync.SyncManager;
+
+import java.util.Set;
 
 import javax.inject.Singleton;
 
@@ -33,6 +38,9 @@ import dagger.Provides;
     library = true)
 public class NetModule {
 
+    /** The SharedPreferences file that holds the HTTP validators of downloaded xforms. */
+    private static final String XFORM_VALIDATORS_PREFS_NAME = "xform_validators";
+
     @Provides
     @Singleton VolleySingleton provideVolleySingleton(Application app) {
         return VolleySingleton.getInstance(app);
@@ -62,6 +70,40 @@ public class NetModule {
         return builder.create();
     }
 
+    @Provides
+    @Singleton ChangeNotifier provideChangeNotifier(
+        OpenMrsConnectionDetails connectionDetails, Gson gson, final SyncManager syncManager) {
+        return new ChangeNotifier(connectionDetails, gson, new ChangeNotifier.Listener() {
+            @Override public void onTablesChanged(Set<String> tables) {
+                syncManager.startSyncForTables(tables);
+            }
+        });
+    }
+
+    @Provides
+    @Singleton Outbox provideOutbox(
+        ContentResolver contentResolver,
+        OpenMrsConnectionDetails connectionDetails,
+        Gson gson,
+        final SyncManager syncManager) {
+        return new Outbox(contentResolver, connectionDetails, gson, new Outbox.Listener() {
+            @Override public void onTablesChanged(Set<String> tables) {
+                syncManager.startSyncForTables(tables);
+            }
+        });
+    }
+
+    @Provides
+    @Singleton XformCacheManager provideXformCacheManager(
+        Application app,
+        ContentResolver contentResolver,
+        OpenMrsConnectionDetails connectionDetails) {
+        return new XformCacheManager(
+            contentResolver,
+            app.getSharedPreferences(XFORM_VALIDATORS_PREFS_NAME, Context.MODE_PRIVATE),
+            connectionDetails);
+    }
+
     @Provides
     @Singleton Server provideServer(
         OpenMrsConnectionDetails connectionDetails,
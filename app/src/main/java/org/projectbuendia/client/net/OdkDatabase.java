@@ -17,6 +17,9 @@ import android.util.Log;
 
 import com.google.common.base.Preconditions;
 
+import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.provider.FormsProviderAPI;
+
 import java.io.File;
 
 /** A wrapper around basic ODK database operations. */
@@ -32,7 +35,7 @@ public class OdkDatabase {
         long formId = -1;
         Cursor cursor = null;
         try {
-            cursor = OdkXformSyncTask.getCursorForFormFile(
+            cursor = getCursorForFormFile(
                 path, new String[] {
                     BaseColumns._ID
                 });
@@ -58,4 +61,23 @@ public class OdkDatabase {
 
         return formId;
     }
+
+    /**
+     * Get a Cursor for the form from the filename. If there is more than one they are ordered
+     * descending by id, so most recent is first.
+     * @param proposedPath the path for the forms file
+     * @param projection   a projection of fields to get
+     * @return the Cursor pointing to ideally one form.
+     */
+    public static Cursor getCursorForFormFile(File proposedPath, String[] projection) {
+        String[] selectionArgs = {
+            proposedPath.getAbsolutePath()
+        };
+        String selection = FormsProviderAPI.FormsColumns.FORM_FILE_PATH + "=?";
+        return Collect.getInstance()
+            .getApplication()
+            .getContentResolver()
+            .query(FormsProviderAPI.FormsColumns.CONTENT_URI, projection, selection,
+                selectionArgs, FormsProviderAPI.FormsColumns._ID + " DESC");
+    }
 }
@@ -48,6 +48,11 @@ public class OpenMrsConnectionDetails {
         return mSettings.getOpenmrsUrl("/ws/rest/v1");
     }
 
+    /** Returns true if request bodies sent to OpenMRS should be gzipped. */
+    public boolean shouldCompressRequests() {
+        return mSettings.getCompressRequests();
+    }
+
     /**
      * Adds an authentication header to an existing map of HTTP headers.
      * @param params the header map to be modified
@@ -27,6 +27,7 @@ public class OpenMrsJsonRequest extends JsonObjectRequest {
 
     private final String mUsername;
     private final String mPassword;
+    private final boolean mCompressBody;
 
     /**
      * Constructs a GET request to OpenMRS.
@@ -41,17 +42,11 @@ public class OpenMrsJsonRequest extends JsonObjectRequest {
                               JSONObject jsonRequest,
                               Response.Listener<JSONObject> listener,
                               Response.ErrorListener errorListener) {
-        this(connectionDetails.getUser(), connectionDetails.getPassword(),
-            connectionDetails.getBuendiaApiUrl() + urlSuffix,
+        super(connectionDetails.getBuendiaApiUrl() + urlSuffix,
             jsonRequest, listener, errorListener);
-    }
-
-    private OpenMrsJsonRequest(String username, String password, String url, JSONObject jsonRequest,
-                               Response.Listener<JSONObject> listener,
-                               Response.ErrorListener errorListener) {
-        super(url, jsonRequest, listener, errorListener);
-        this.mUsername = username;
-        this.mPassword = password;
+        this.mUsername = connectionDetails.getUser();
+        this.mPassword = connectionDetails.getPassword();
+        this.mCompressBody = jsonRequest != null && connectionDetails.shouldCompressRequests();
     }
 
     /**
@@ -71,6 +66,7 @@ public class OpenMrsJsonRequest extends JsonObjectRequest {
             jsonRequest, listener, errorListener);
         this.mUsername = connectionDetails.getUser();
         this.mPassword = connectionDetails.getPassword();
+        this.mCompressBody = jsonRequest != null && connectionDetails.shouldCompressRequests();
     }
 
     @Override public Map<String, String> getHeaders() throws AuthFailureError {
@@ -78,6 +74,9 @@ public class OpenMrsJsonRequest extends JsonObjectRequest {
         HashMap<String, String> params = new HashMap<>();
         OpenMrsConnectionDetails.addAuthHeader(mUsername, mPassword, params);
         params.put("Connection-Type", "application/json");
+        if (mCompressBody) {
+            params.put(GzipRequestInterceptor.HEADER_NAME, GzipRequestInterceptor.GZIP);
+        }
         return params;
     }
 
@@ -44,36 +44,6 @@ public class OpenMrsXformsConnection {
         this.mConnectionDetails = connection;
     }
 
-    /**
-     * Get a single (full) Xform from the OpenMRS server.
-     * @param uuid           the uuid of the form to fetch
-     * @param resultListener the listener to be informed of the form asynchronously
-     * @param errorListener  a listener to be informed of any errors
-     */
-    public void getXform(String uuid, final Response.Listener<String> resultListener,
-                         Response.ErrorListener errorListener) {
-        Request request = new OpenMrsJsonRequest(mConnectionDetails,
-            "/xforms/" + uuid + "?v=full",
-            null, // null implies GET
-            new Response.Listener<JSONObject>() {
-                @Override public void onResponse(JSONObject response) {
-                    try {
-                        String xml = response.getString("xml");
-                        resultListener.onResponse(xml);
-                    } catch (JSONException e) {
-                        // The result was not in the expected format. Just log, and return
-                        // results so far.
-                        LOG.e(e, "response was in bad format: " + response);
-                    }
-                }
-            }, errorListener
-        );
-        // Typical response times should be close to 10s, but as the number of users grows, this
-        // number scales up quickly, so use a 30s timeout to be safe.
-        request.setRetryPolicy(new DefaultRetryPolicy(Common.REQUEST_TIMEOUT_MS_MEDIUM, 1, 1f));
-        mConnectionDetails.getVolley().addToRequestQueue(request);
-    }
-
     /**
      * List all xforms on the server, but not their contents.
      * @param listener      a listener to be told about the index entries for all forms asynchronously.
@@ -126,19 +96,12 @@ public class OpenMrsXformsConnection {
     }
 
     /**
-     * Send a single Xform to the OpenMRS server.
-     * @param patientUuid    null if this is to add a new patient, non-null for observation on existing
-     *                       patient
-     * @param resultListener the listener to be informed of the form asynchronously
-     * @param errorListener  a listener to be informed of any errors
+     * Builds the request body that submits a single Xform instance to the server.
+     * @param patientUuid null if this is to add a new patient, non-null for observation on existing
+     *                    patient
      */
-    public void postXformInstance(
-        @Nullable String patientUuid,
-        String entererUuid,
-        String xform,
-        final Response.Listener<JSONObject> resultListener,
-        Response.ErrorListener errorListener) {
-
+    public static JSONObject getXformInstanceJson(
+        @Nullable String patientUuid, String entererUuid, String xform) throws JSONException {
         // The JsonObject members in the API as written at the moment.
         // int "patient_id"
         // int "enterer_id"
@@ -153,11 +116,27 @@ public class OpenMrsXformsConnection {
         post.addProperty("enterer_uuid", entererUuid);
 
         post.addProperty("date_entered", ISODateTimeFormat.dateTime().print(new DateTime()));
+        return new JSONObject(post.toString());
+    }
+
+    /**
+     * Send a single Xform to the OpenMRS server.
+     * @param patientUuid    null if this is to add a new patient, non-null for observation on existing
+     *                       patient
+     * @param resultListener the listener to be informed of the form asynchronously
+     * @param errorListener  a listener to be informed of any errors
+     */
+    public void postXformInstance(
+        @Nullable String patientUuid,
+        String entererUuid,
+        String xform,
+        final Response.Listener<JSONObject> resultListener,
+        Response.ErrorListener errorListener) {
         JSONObject postBody = null;
         try {
-            postBody = new JSONObject(post.toString());
+            postBody = getXformInstanceJson(patientUuid, entererUuid, xform);
         } catch (JSONException e) {
-            LOG.e(e, "This should never happen converting one JSON object to another. " + post);
+            LOG.e(e, "This should never happen converting one JSON object to another.");
             errorListener.onErrorResponse(new VolleyError("failed to convert to JSON", e));
         }
         OpenMrsJsonRequest request = new OpenMrsJsonRequest(
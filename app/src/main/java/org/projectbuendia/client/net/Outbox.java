@@ -0,0 +1,583 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.net;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.squareup.okhttp.Credentials;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.RequestBody;
+import com.squareup.okhttp.Response;
+
+import org.json.JSONObject;
+import org.projectbuendia.client.events.OutboxWriteRejectedEvent;
+import org.projectbuendia.client.json.JsonBatchResponse;
+import org.projectbuendia.client.json.JsonBatchResult;
+import org.projectbuendia.client.json.JsonOrder;
+import org.projectbuendia.client.models.Order;
+import org.projectbuendia.client.providers.Contracts;
+import org.projectbuendia.client.providers.Contracts.Observations;
+import org.projectbuendia.client.providers.Contracts.Orders;
+import org.projectbuendia.client.providers.Contracts.Table;
+import org.projectbuendia.client.utils.Logger;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import de.greenrobot.event.EventBus;
+
+/**
+ * A durable queue of writes to the server, so that charting keeps working while the server is
+ * unreachable.  Each write is applied to the local database by its caller, then queued here in
+ * the outbox table, and sent in the background as soon as the server can be reached.
+ * <p>
+ * Writes for each patient are sent in the order they were made; if one can't be sent yet, the
+ * later writes for that patient wait for it.  Consecutive new encounters, which don't depend on
+ * one another, are sent together in one request when the server accepts batches (see
+ * {@link #sendBatch}), so a round of charting costs one round trip instead of one per patient.
+ * Each request holds at most one encounter per patient, so that a patient's encounters can't be
+ * applied out of order when only some of a batch succeed.
+ * Every attempt at a write carries the same {@link #IDEMPOTENCY_KEY_HEADER}, so a server that
+ * honours it won't apply a write twice when a response is lost and the write is retried.  Writes
+ * that the server rejects outright are never resent, but they stay in the outbox, marked with the
+ * server's explanation, and so do their local stand-in rows; an {@link OutboxWriteRejectedEvent}
+ * lets the user know, so that the data isn't lost without anyone noticing.
+ * <p>
+ * Sending happens on a background thread after each write is queued, with backoff while the
+ * server is unreachable, and at the start of every sync (see {@link #sendPending()}), so that
+ * local writes reach the server before the sync fetches newer data.
+ */
+public class Outbox {
+
+    private static final Logger LOG = Logger.create();
+
+    /** The header that identifies each write across retries. */
+    static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+
+    /** The number of queued writes read from the database at a time. */
+    static final int BATCH_SIZE = 20;
+
+    /** The first delay after a failed send, doubled with each further failure. */
+    static final long MIN_RETRY_MILLIS = 5000;
+
+    /** The longest delay after a run of failed sends. */
+    static final long MAX_RETRY_MILLIS = 5 * 60 * 1000;
+
+    /** The endpoint that takes a batch of new encounters; see {@link #sendBatch}. */
+    static final String ENCOUNTER_BATCH_PATH = "/encounters/batch";
+
+    /** How long to send encounters one at a time after the server refuses a batch. */
+    static final long BATCH_UNSUPPORTED_RETRY_MILLIS = 10 * 60 * 1000;
+
+    private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+
+    /** The kinds of write, each with the table that holds its local stand-in rows. */
+    public enum Kind {
+        /** A new encounter; the local UUID is the encounter UUID of its temporary observations. */
+        ENCOUNTER(Table.OBSERVATIONS),
+        /** A submitted xform; the local UUID is as for {@link #ENCOUNTER}. */
+        XFORM(Table.OBSERVATIONS),
+        /** A new order; the local UUID is the placeholder UUID of its local row. */
+        NEW_ORDER(Table.ORDERS),
+        /** A change to an existing order. */
+        ORDER_UPDATE(Table.ORDERS),
+        /** A change to an existing patient. */
+        PATIENT_UPDATE(Table.PATIENTS);
+
+        public final Table table;
+
+        Kind(Table table) {
+            this.table = table;
+        }
+    }
+
+    /** What became of an attempt to send a write, given the HTTP status of the response. */
+    enum Disposition {
+        SENT, RETRY, REJECTED
+    }
+
+    /** Receives the tables changed on the server by writes sent in the background. */
+    public interface Listener {
+        void onTablesChanged(Set<String> tables);
+    }
+
+    private final ContentResolver mContentResolver;
+    private final OpenMrsConnectionDetails mConnectionDetails;
+    private final Gson mGson;
+    private final Listener mListener;
+    private final ScheduledExecutorService mExecutor =
+        Executors.newSingleThreadScheduledExecutor();
+
+    /** Held while sending, so that the background thread and the sync thread take turns. */
+    private final Object mSendLock = new Object();
+    /** The background send that hasn't started yet, if any.  Guarded by this. */
+    private ScheduledFuture<?> mScheduledSend;
+    /** When to next try sending a batch of encounters.  Guarded by mSendLock. */
+    private long mBatchUnsupportedUntilMillis = 0;
+    /** Whether a write has been rejected since the last event was posted.  Guarded by mSendLock. */
+    private boolean mRejectedSinceLastEvent = false;
+    /** The delay before the next background retry.  Used only on the background thread. */
+    private long mRetryMillis = MIN_RETRY_MILLIS;
+
+    public Outbox(
+        ContentResolver contentResolver,
+        OpenMrsConnectionDetails connectionDetails,
+        Gson gson,
+        Listener listener) {
+        mContentResolver = contentResolver;
+        mConnectionDetails = connectionDetails;
+        mGson = gson;
+        mListener = listener;
+    }
+
+    /**
+     * Queues a write to the server and starts sending it in the background.  The caller should
+     * already have applied the write locally.
+     * @param kind        the kind of write
+     * @param patientUuid the patient whose writes this must be sent in order with, if any
+     * @param localUuid   the UUID identifying the write's local stand-in rows, if any
+     * @param urlPath     the path to POST to, relative to the Buendia API URL
+     * @param body        the JSON request body
+     */
+    public void enqueue(
+        Kind kind,
+        @Nullable String patientUuid,
+        @Nullable String localUuid,
+        String urlPath,
+        JSONObject body) {
+        ContentValues values = new ContentValues();
+        values.put(Contracts.Outbox.IDEMPOTENCY_KEY, UUID.randomUUID().toString());
+        values.put(Contracts.Outbox.KIND, kind.name());
+        values.put(Contracts.Outbox.PATIENT_UUID, patientUuid);
+        values.put(Contracts.Outbox.LOCAL_UUID, localUuid);
+        values.put(Contracts.Outbox.URL_PATH, urlPath);
+        values.put(Contracts.Outbox.BODY, body.toString());
+        values.put(Contracts.Outbox.CREATED_MILLIS, System.currentTimeMillis());
+        mContentResolver.insert(Contracts.Outbox.CONTENT_URI, values);
+        LOG.i("Queued %s write to %s", kind, urlPath);
+        requestSend();
+    }
+
+    /** Starts sending any queued writes in the background. */
+    public void requestSend() {
+        scheduleSend(0);
+    }
+
+    private synchronized void scheduleSend(long delayMillis) {
+        if (mScheduledSend != null) {
+            if (mScheduledSend.getDelay(TimeUnit.MILLISECONDS) <= delayMillis) return;
+            mScheduledSend.cancel(false);
+        }
+        mScheduledSend = mExecutor.schedule(
+            new BackgroundSend(), delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private class BackgroundSend implements Runnable {
+        @Override public void run() {
+            synchronized (Outbox.this) {
+                mScheduledSend = null;
+            }
+            Set<String> changedTables = new HashSet<>();
+            boolean done;
+            try {
+                done = send(changedTables);
+            } catch (RuntimeException e) {
+                // Nothing else would see this, and without a retry the writes would wait for
+                // the next sync or the next write.
+                LOG.e(e, "Unexpected error while sending queued writes");
+                done = false;
+            }
+            if (!changedTables.isEmpty()) {
+                mListener.onTablesChanged(changedTables);
+            }
+            if (done) {
+                mRetryMillis = MIN_RETRY_MILLIS;
+            } else {
+                LOG.i("Some queued writes were not sent; retrying in %d ms", mRetryMillis);
+                scheduleSend(mRetryMillis);
+                mRetryMillis = Math.min(mRetryMillis * 2, MAX_RETRY_MILLIS);
+            }
+        }
+    }
+
+    /**
+     * Sends as many queued writes as possible, on the calling thread.  Returns true if none are
+     * left waiting to be retried.
+     */
+    public boolean sendPending() {
+        return send(new HashSet<String>());
+    }
+
+    /**
+     * Sends queued writes in order until they are all sent or the server can't be reached,
+     * adding the names of the tables they changed to {@code changedTables}.  Returns true if
+     * none are left waiting to be retried.
+     */
+    private boolean send(Set<String> changedTables) {
+        synchronized (mSendLock) {
+            // Patients (or "null", for writes with no patient) with a write waiting to be retried.
+            Set<String> blockedPatients = new HashSet<>();
+            long lastRowid = -1;
+            try {
+                while (true) {
+                    List<Item> batch = readBatch(lastRowid);
+                    if (batch.isEmpty()) break;
+                    lastRowid = batch.get(batch.size() - 1).rowid;
+
+                    // Runs of encounters are sent together; any other write is sent on its own,
+                    // after the encounters queued before it.
+                    List<Item> encounters = new ArrayList<>();
+                    for (Item item : batch) {
+                        if (blockedPatients.contains(item.getPatientKey())) continue;
+                        if (item.kind == Kind.ENCOUNTER) {
+                            encounters.add(item);
+                            continue;
+                        }
+                        sendEncounters(encounters, blockedPatients, changedTables);
+                        encounters.clear();
+                        if (blockedPatients.contains(item.getPatientKey())) continue;
+                        finish(item, send(item), blockedPatients, changedTables);
+                        if (item.kind == Kind.NEW_ORDER) {
+                            // replaceOrder() may have rewritten the later writes in this batch
+                            // with the order's new UUID, so read them again.
+                            lastRowid = item.rowid;
+                            break;
+                        }
+                    }
+                    sendEncounters(encounters, blockedPatients, changedTables);
+                }
+            } catch (IOException e) {
+                LOG.w("Could not send queued writes (%s)", e.getMessage());
+                return false;
+            } finally {
+                if (mRejectedSinceLastEvent) {
+                    mRejectedSinceLastEvent = false;
+                    EventBus.getDefault().postSticky(new OutboxWriteRejectedEvent(countRejected()));
+                }
+            }
+            return blockedPatients.isEmpty();
+        }
+    }
+
+    /**
+     * Sends a run of queued encounters in rounds, each holding at most one encounter per patient.
+     * The server may apply some encounters in a batch and not others, so a patient's later
+     * encounter is only sent once the earlier ones have been sent.
+     */
+    private void sendEncounters(
+        List<Item> items, Set<String> blockedPatients, Set<String> changedTables)
+        throws IOException {
+        List<Item> remaining = items;
+        while (!remaining.isEmpty()) {
+            List<Item> round = new ArrayList<>();
+            List<Item> deferred = new ArrayList<>();
+            Set<String> patientsInRound = new HashSet<>();
+            for (Item item : remaining) {
+                if (blockedPatients.contains(item.getPatientKey())) continue;
+                if (patientsInRound.add(item.getPatientKey())) {
+                    round.add(item);
+                } else {
+                    deferred.add(item);
+                }
+            }
+            sendEncounterRound(round, blockedPatients, changedTables);
+            remaining = deferred;
+        }
+    }
+
+    /**
+     * Sends queued encounters for distinct patients, in one request if there are several and the
+     * server accepts batches, or else one at a time.
+     */
+    private void sendEncounterRound(
+        List<Item> items, Set<String> blockedPatients, Set<String> changedTables)
+        throws IOException {
+        if (items.isEmpty()) return;
+        if (items.size() > 1 && SystemClock.elapsedRealtime() >= mBatchUnsupportedUntilMillis) {
+            Disposition[] dispositions = sendBatch(ENCOUNTER_BATCH_PATH, items);
+            if (dispositions != null) {
+                for (int i = 0; i < items.size(); i++) {
+                    finish(items.get(i), dispositions[i], blockedPatients, changedTables);
+                }
+                return;
+            }
+            LOG.i("Server doesn't accept batches of encounters; sending them one at a time");
+            mBatchUnsupportedUntilMillis =
+                SystemClock.elapsedRealtime() + BATCH_UNSUPPORTED_RETRY_MILLIS;
+        }
+        for (Item item : items) {
+            if (blockedPatients.contains(item.getPatientKey())) continue;
+            finish(item, send(item), blockedPatients, changedTables);
+        }
+    }
+
+    /** Updates the outbox and local data after an attempt to send a queued write. */
+    private void finish(Item item, Disposition disposition,
+                        Set<String> blockedPatients, Set<String> changedTables) {
+        switch (disposition) {
+            case SENT:
+                changedTables.add(item.kind.table.name);
+                delete(item);
+                break;
+            case RETRY:
+                blockedPatients.add(item.getPatientKey());
+                recordAttempt(item);
+                break;
+            case REJECTED:
+                // Already marked as rejected, so it stays in the outbox but isn't resent.
+                break;
+        }
+    }
+
+    /** Classifies a response to a write by its HTTP status. */
+    static Disposition getDisposition(int status) {
+        if (status >= 200 && status < 300) return Disposition.SENT;
+        if (status >= 500
+            || status == HttpURLConnection.HTTP_CLIENT_TIMEOUT
+            || status == HttpURLConnection.HTTP_UNAUTHORIZED
+            || status == 429 /* Too Many Requests */) {
+            return Disposition.RETRY;
+        }
+        return Disposition.REJECTED;
+    }
+
+    /** POSTs a JSON body to a path under the Buendia API URL. */
+    private Response post(String urlPath, @Nullable String idempotencyKey, String body)
+        throws IOException {
+        Request.Builder builder = new Request.Builder()
+            .url(mConnectionDetails.getBuendiaApiUrl() + urlPath)
+            .header("Authorization", Credentials.basic(
+                mConnectionDetails.getUser(), mConnectionDetails.getPassword()))
+            .post(RequestBody.create(JSON, body));
+        if (idempotencyKey != null) {
+            builder.header(IDEMPOTENCY_KEY_HEADER, idempotencyKey);
+        }
+        if (mConnectionDetails.shouldCompressRequests()) {
+            builder.header(GzipRequestInterceptor.HEADER_NAME, GzipRequestInterceptor.GZIP);
+        }
+        return mConnectionDetails.getVolley()
+            .getHttpClient(Common.REQUEST_TIMEOUT_MS_MEDIUM)
+            .newCall(builder.build())
+            .execute();
+    }
+
+    private Disposition send(Item item) throws IOException {
+        Response response = post(item.urlPath, item.idempotencyKey, item.body);
+        try {
+            Disposition disposition = getDisposition(response.code());
+            switch (disposition) {
+                case SENT:
+                    LOG.i("Sent queued %s write to %s", item.kind, item.urlPath);
+                    if (item.kind == Kind.NEW_ORDER) {
+                        replaceOrder(item, response.body().string());
+                    }
+                    break;
+                case RETRY:
+                    LOG.w("Server could not take queued %s write to %s (HTTP %d); will retry",
+                        item.kind, item.urlPath, response.code());
+                    break;
+                case REJECTED:
+                    String error = response.body().string();
+                    LOG.e("Server rejected queued %s write to %s (HTTP %d): %s",
+                        item.kind, item.urlPath, response.code(), error);
+                    markRejected(item, response.code(), error);
+                    break;
+            }
+            return disposition;
+        } finally {
+            response.body().close();
+        }
+    }
+
+    /**
+     * Sends several queued writes in one request to a batch endpoint, whose body is
+     * <pre>{"writes": [{"idempotency_key": ..., "body": ...}, ...]}</pre>
+     * with the body each write would have been sent with on its own.  The server applies them
+     * in order and answers with a {@link JsonBatchResponse}.  Returns the disposition of each
+     * write, or null if the server doesn't accept the batch, in which case none of the writes
+     * have been applied and they should be sent one at a time.
+     */
+    private Disposition[] sendBatch(String urlPath, List<Item> items) throws IOException {
+        StringBuilder body = new StringBuilder("{\"writes\": [");
+        for (int i = 0; i < items.size(); i++) {
+            Item item = items.get(i);
+            body.append(i == 0 ? "" : ", ")
+                .append("{\"idempotency_key\": ").append(JSONObject.quote(item.idempotencyKey))
+                .append(", \"body\": ").append(item.body).append("}");
+        }
+        body.append("]}");
+
+        Response response = post(urlPath, null, body.toString());
+        try {
+            Disposition[] dispositions = new Disposition[items.size()];
+            Disposition overall = getDisposition(response.code());
+            if (overall == Disposition.RETRY) {
+                LOG.w("Server could not take batch of %d writes to %s (HTTP %d); will retry",
+                    items.size(), urlPath, response.code());
+                Arrays.fill(dispositions, Disposition.RETRY);
+                return dispositions;
+            }
+            if (overall == Disposition.REJECTED) return null;
+
+            JsonBatchResponse json;
+            try {
+                json = mGson.fromJson(response.body().charStream(), JsonBatchResponse.class);
+            } catch (JsonParseException e) {
+                json = null;
+            }
+            if (json == null || json.results == null || json.results.length != items.size()) {
+                LOG.e("Malformed response to batch of %d writes to %s", items.size(), urlPath);
+                return null;
+            }
+            for (int i = 0; i < items.size(); i++) {
+                JsonBatchResult result = json.results[i];
+                dispositions[i] = getDisposition(result.status);
+                if (dispositions[i] == Disposition.REJECTED) {
+                    LOG.e("Server rejected queued %s write to %s (HTTP %d): %s",
+                        items.get(i).kind, items.get(i).urlPath, result.status, result.error);
+                    markRejected(items.get(i), result.status, result.error);
+                }
+            }
+            LOG.i("Sent batch of %d writes to %s", items.size(), urlPath);
+            return dispositions;
+        } finally {
+            response.body().close();
+        }
+    }
+
+    /**
+     * Replaces a new order's placeholder UUID with the UUID the server assigned, in the local
+     * order and in every queued write and observation that refers to it.
+     */
+    private void replaceOrder(Item item, String responseBody) {
+        JsonOrder json;
+        try {
+            json = mGson.fromJson(responseBody, JsonOrder.class);
+        } catch (JsonParseException e) {
+            LOG.e(e, "Could not parse response to new order; it will arrive with the next sync");
+            json = null;
+        }
+        if (json == null || json.uuid == null) return;
+        mContentResolver.delete(Orders.CONTENT_URI,
+            Orders.UUID + " = ?", new String[] {item.localUuid});
+        mContentResolver.insert(Orders.CONTENT_URI, Order.fromJson(json).toContentValues());
+
+        ContentValues values = new ContentValues();
+        values.put(Observations.VALUE, json.uuid);
+        mContentResolver.update(Observations.CONTENT_URI, values,
+            Observations.VALUE + " = ?", new String[] {item.localUuid});
+
+        if (item.patientUuid == null) return;
+        try (Cursor cursor = mContentResolver.query(Contracts.Outbox.CONTENT_URI, null,
+            Contracts.Outbox.PATIENT_UUID + " = ?", new String[] {item.patientUuid}, null)) {
+            while (cursor.moveToNext()) {
+                Item pending = new Item(cursor);
+                values = new ContentValues();
+                values.put(Contracts.Outbox.URL_PATH,
+                    pending.urlPath.replace(item.localUuid, json.uuid));
+                values.put(Contracts.Outbox.BODY, pending.body.replace(item.localUuid, json.uuid));
+                mContentResolver.update(Contracts.Outbox.CONTENT_URI, values,
+                    Contracts.Outbox.ROWID + " = ?", new String[] {"" + pending.rowid});
+            }
+        }
+    }
+
+    private List<Item> readBatch(long afterRowid) {
+        List<Item> items = new ArrayList<>();
+        try (Cursor cursor = mContentResolver.query(Contracts.Outbox.CONTENT_URI, null,
+            Contracts.Outbox.ROWID + " > ? AND " + Contracts.Outbox.REJECTED_STATUS + " IS NULL",
+            new String[] {"" + afterRowid},
+            Contracts.Outbox.ROWID)) {
+            while (items.size() < BATCH_SIZE && cursor.moveToNext()) {
+                items.add(new Item(cursor));
+            }
+        }
+        return items;
+    }
+
+    private void recordAttempt(Item item) {
+        ContentValues values = new ContentValues();
+        values.put(Contracts.Outbox.ATTEMPTS, item.attempts + 1);
+        mContentResolver.update(Contracts.Outbox.CONTENT_URI, values,
+            Contracts.Outbox.ROWID + " = ?", new String[] {"" + item.rowid});
+    }
+
+    /** Marks a write as rejected, so that it's kept but never resent. */
+    private void markRejected(Item item, int status, @Nullable String error) {
+        ContentValues values = new ContentValues();
+        values.put(Contracts.Outbox.REJECTED_STATUS, status);
+        values.put(Contracts.Outbox.REJECTED_ERROR, error);
+        mContentResolver.update(Contracts.Outbox.CONTENT_URI, values,
+            Contracts.Outbox.ROWID + " = ?", new String[] {"" + item.rowid});
+        mRejectedSinceLastEvent = true;
+    }
+
+    /** Returns the number of rejected writes held in the outbox. */
+    private int countRejected() {
+        try (Cursor cursor = mContentResolver.query(Contracts.Outbox.CONTENT_URI,
+            new String[] {Contracts.Outbox.ROWID},
+            Contracts.Outbox.REJECTED_STATUS + " IS NOT NULL", null, null)) {
+            return cursor.getCount();
+        }
+    }
+
+    private void delete(Item item) {
+        mContentResolver.delete(Contracts.Outbox.CONTENT_URI,
+            Contracts.Outbox.ROWID + " = ?", new String[] {"" + item.rowid});
+    }
+
+    /** A queued write, as read from the outbox table. */
+    private static class Item {
+        final long rowid;
+        final String idempotencyKey;
+        final Kind kind;
+        final String patientUuid;
+        final String localUuid;
+        final String urlPath;
+        final String body;
+        final int attempts;
+
+        Item(Cursor cursor) {
+            rowid = cursor.getLong(cursor.getColumnIndex(Contracts.Outbox.ROWID));
+            idempotencyKey = cursor.getString(
+                cursor.getColumnIndex(Contracts.Outbox.IDEMPOTENCY_KEY));
+            kind = Kind.valueOf(cursor.getString(cursor.getColumnIndex(Contracts.Outbox.KIND)));
+            patientUuid = cursor.getString(cursor.getColumnIndex(Contracts.Outbox.PATIENT_UUID));
+            localUuid = cursor.getString(cursor.getColumnIndex(Contracts.Outbox.LOCAL_UUID));
+            urlPath = cursor.getString(cursor.getColumnIndex(Contracts.Outbox.URL_PATH));
+            body = cursor.getString(cursor.getColumnIndex(Contracts.Outbox.BODY));
+            attempts = cursor.getInt(cursor.getColumnIndex(Contracts.Outbox.ATTEMPTS));
+        }
+
+        /** Identifies the writes that must be sent in order with this one. */
+        String getPatientKey() {
+            return String.valueOf(patientUuid);
+        }
+    }
+}
@@ -18,13 +18,29 @@ import com.android.volley.RequestQueue;
 import com.android.volley.toolbox.Volley;
 import com.circle.android.api.OkHttpStack;
 import com.facebook.stetho.okhttp.StethoInterceptor;
+import com.squareup.okhttp.ConnectionPool;
 import com.squareup.okhttp.OkHttpClient;
 
-/** Wraps Volley up in a singleton object. */
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wraps Volley up in a singleton object, together with the one {@link OkHttpClient} that carries
+ * all of the app's HTTP traffic, so that every request shares the same pool of kept-alive
+ * connections.  OkHttp asks for and transparently decompresses gzipped responses; request bodies
+ * are gzipped only for requests that ask for it (see {@link GzipRequestInterceptor}).
+ */
 public class VolleySingleton {
     private static VolleySingleton sInstance;
 
+    /** The maximum number of idle connections kept open to the servers. */
+    private static final int MAX_IDLE_CONNECTIONS = 5;
+
+    /** How long an idle connection is kept open for reuse. */
+    private static final long KEEP_ALIVE_MS = 5 * 60 * 1000;
+
     private final RequestQueue mRequestQueue;
+    private final OkHttpClient mClient;
+    private final HttpStats mStats;
 
     /**
      * Get the VolleySingleton instance for doing multiple operations on a single context.
@@ -51,14 +67,39 @@ public class VolleySingleton {
         return mRequestQueue;
     }
 
+    /**
+     * Returns a client for making requests directly, outside the Volley queue, with the given
+     * timeout.  It shares the connection pool and statistics of all other requests.
+     */
+    public OkHttpClient getHttpClient(int timeoutMs) {
+        OkHttpClient client = mClient.clone();
+        client.setConnectTimeout(timeoutMs, TimeUnit.MILLISECONDS);
+        client.setReadTimeout(timeoutMs, TimeUnit.MILLISECONDS);
+        client.setWriteTimeout(timeoutMs, TimeUnit.MILLISECONDS);
+        return client;
+    }
+
+    /** Returns the connection reuse, latency, and byte count statistics for all requests. */
+    public HttpStats getStats() {
+        return mStats;
+    }
+
     private VolleySingleton(Context context) {
+        ConnectionPool pool = new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MS);
+        mStats = new HttpStats(pool);
+        mClient = new OkHttpClient();
+        mClient.setConnectionPool(pool);
+        // The statistics interceptor goes first so that it sees request bodies uncompressed.
+        mClient.interceptors().add(mStats.getApplicationInterceptor());
+        mClient.interceptors().add(new GzipRequestInterceptor());
+        mClient.networkInterceptors().add(mStats.getNetworkInterceptor());
         // Let Stetho inspect all our network requests.
-        final OkHttpClient client = new OkHttpClient();
-        client.networkInterceptors().add(new StethoInterceptor());
+        mClient.networkInterceptors().add(new StethoInterceptor());
 
         // getApplicationContext() is key, it keeps you from leaking the
         // Activity or BroadcastReceiver if someone passes one in.
+        // OkHttpStack applies each Volley request's own timeout to a clone of the client.
         mRequestQueue = Volley.newRequestQueue(
-            context.getApplicationContext(), new OkHttpStack(client));
+            context.getApplicationContext(), new OkHttpStack(mClient));
     }
 }
@@ -0,0 +1,418 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.net;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.Nullable;
+
+import com.squareup.okhttp.Credentials;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.logic.FormDefCache;
+import org.odk.collect.android.provider.FormsProviderAPI;
+import org.odk.collect.android.provider.FormsProviderAPI.FormsColumns;
+import org.odk.collect.android.tasks.DiskSyncTask;
+import org.odk.collect.android.utilities.FileHashCache;
+import org.projectbuendia.client.App;
+import org.projectbuendia.client.events.FetchXformFailedEvent;
+import org.projectbuendia.client.events.FetchXformSucceededEvent;
+import org.projectbuendia.client.utils.Logger;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import de.greenrobot.event.EventBus;
+
+/**
+ * Keeps the OpenMRS xforms in ODK's form storage up to date with the server.  Each form is
+ * written to {$uuid}.xml in the ODK forms directory and registered in ODK's forms database.
+ * <p>
+ * A form is fetched only if it isn't stored yet, if the server lists it as changed since it was
+ * stored, or if the set of users has changed (the server embeds the users in every form).  Forms
+ * are fetched on a small thread pool, so that a full refresh isn't limited to one round trip at
+ * a time, and concurrent requests for the same form share a single fetch.  A form that is already
+ * stored is fetched conditionally, with the ETag and Last-Modified validators from its last
+ * download, so a form whose content hasn't changed costs only a "304 Not Modified" response.
+ */
+public class XformCacheManager {
+
+    private static final Logger LOG = Logger.create();
+
+    /** The most forms fetched from the server at once. */
+    static final int MAX_CONCURRENT_FETCHES = 3;
+
+    private static final String ETAG_KEY_SUFFIX = ".etag";
+    private static final String LAST_MODIFIED_KEY_SUFFIX = ".last_modified";
+
+    /** Receives the outcome of bringing a form up to date, on the main thread. */
+    public interface Listener {
+        /** Called when the form at the given path is up to date and registered with ODK. */
+        void onFormReady(File path, String uuid);
+
+        /** Called when the form couldn't be brought up to date. */
+        void onFormFailed(String uuid);
+    }
+
+    private final ContentResolver mContentResolver;
+    private final SharedPreferences mValidators;
+    private final OpenMrsConnectionDetails mConnectionDetails;
+    private final ExecutorService mExecutor =
+        Executors.newFixedThreadPool(MAX_CONCURRENT_FETCHES);
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /** Listeners waiting for each form being fetched, by form UUID.  Guarded by itself. */
+    private final Map<String, List<Listener>> mPendingFetches = new HashMap<>();
+
+    /**
+     * @param contentResolver   resolver for ODK's forms database
+     * @param validators        where to keep the ETag and Last-Modified value of each form
+     * @param connectionDetails the server to fetch forms from
+     */
+    public XformCacheManager(ContentResolver contentResolver, SharedPreferences validators,
+                             OpenMrsConnectionDetails connectionDetails) {
+        mContentResolver = contentResolver;
+        mValidators = validators;
+        mConnectionDetails = connectionDetails;
+    }
+
+    /**
+     * Brings one form up to date in the background, then tells the listener.  A
+     * {@link FetchXformSucceededEvent} or {@link FetchXformFailedEvent} is also posted.
+     */
+    public void getForm(final OpenMrsXformIndexEntry entry, final Listener listener) {
+        mExecutor.execute(new Runnable() {
+            @Override public void run() {
+                File path = entry.makeFileForForm();
+                Long localDate;
+                try {
+                    localDate = getLocalFormDates(path).get(path.getAbsolutePath());
+                    if (isCurrent(entry, localDate, App.getUserManager().isDirty())) {
+                        LOG.i("Using form " + entry.uuid + " from local cache.");
+                        FormDefCache.prewarm(path);
+                        EventBus.getDefault().post(new FetchXformSucceededEvent());
+                        notifyListeners(Collections.singletonList(listener), entry.uuid, path);
+                        return;
+                    }
+                } catch (RuntimeException e) {
+                    // E.g. the forms database is unavailable; the caller still has to hear back.
+                    LOG.e(e, "Failed to look up stored form " + entry.uuid);
+                    EventBus.getDefault().post(new FetchXformFailedEvent(
+                        FetchXformFailedEvent.Reason.UNKNOWN, e));
+                    notifyListeners(Collections.singletonList(listener), entry.uuid, null);
+                    return;
+                }
+                fetch(entry, localDate, listener);
+            }
+        });
+    }
+
+    /**
+     * Brings all the given forms up to date in the background, fetching only the ones that
+     * need it.  Once every form has been checked successfully, the users are no longer
+     * considered changed.
+     */
+    public void prefetch(final List<OpenMrsXformIndexEntry> entries) {
+        mExecutor.execute(new Runnable() {
+            @Override public void run() {
+                boolean usersChanged = App.getUserManager().isDirty();
+                Map<String, Long> localDates;
+                List<OpenMrsXformIndexEntry> toFetch = new ArrayList<>();
+                try {
+                    localDates = getLocalFormDates(null);
+                    for (OpenMrsXformIndexEntry entry : entries) {
+                        File path = entry.makeFileForForm();
+                        if (isCurrent(
+                            entry, localDates.get(path.getAbsolutePath()), usersChanged)) {
+                            FormDefCache.prewarm(path);
+                        } else {
+                            toFetch.add(entry);
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    // An uncaught exception here would take down the whole app.
+                    LOG.e(e, "Failed to look up stored forms for prefetching");
+                    EventBus.getDefault().post(new FetchXformFailedEvent(
+                        FetchXformFailedEvent.Reason.UNKNOWN, e));
+                    return;
+                }
+                LOG.i("%d of %d forms need to be checked with the server",
+                    toFetch.size(), entries.size());
+                if (toFetch.isEmpty()) {
+                    return;
+                }
+                Listener round = new PrefetchRound(toFetch.size(), usersChanged);
+                for (OpenMrsXformIndexEntry entry : toFetch) {
+                    fetch(entry, localDates.get(entry.makeFileForForm().getAbsolutePath()), round);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns true if a stored form can be used without checking with the server.
+     * @param localDate when the form was stored, or null if it isn't stored
+     */
+    static boolean isCurrent(
+        OpenMrsXformIndexEntry entry, @Nullable Long localDate, boolean usersChanged) {
+        return localDate != null && localDate >= entry.dateChanged && !usersChanged
+            && entry.makeFileForForm().exists();
+    }
+
+    /** Counts down the forms in one {@link #prefetch}, to tell when they're all done. */
+    private static class PrefetchRound implements Listener {
+        private final boolean mUsersChanged;
+        private int mRemaining;
+        private boolean mFailed;
+
+        PrefetchRound(int count, boolean usersChanged) {
+            mRemaining = count;
+            mUsersChanged = usersChanged;
+        }
+
+        @Override public void onFormReady(File path, String uuid) {
+            finishOne();
+        }
+
+        @Override public void onFormFailed(String uuid) {
+            mFailed = true;
+            finishOne();
+        }
+
+        private void finishOne() {
+            mRemaining--;
+            if (mRemaining == 0 && !mFailed && mUsersChanged) {
+                // Every form now reflects the current users.
+                App.getUserManager().setDirty(false);
+            }
+        }
+    }
+
+    /**
+     * Fetches a form on the thread pool, or just adds the listener if the form is already
+     * being fetched.
+     * @param localDate when the stored copy of the form was stored, or null if there is none
+     */
+    private void fetch(final OpenMrsXformIndexEntry entry, @Nullable final Long localDate,
+                       Listener listener) {
+        synchronized (mPendingFetches) {
+            List<Listener> listeners = mPendingFetches.get(entry.uuid);
+            if (listeners != null) {
+                LOG.i("Form " + entry.uuid + " is already being fetched");
+                listeners.add(listener);
+                return;
+            }
+            listeners = new ArrayList<>();
+            listeners.add(listener);
+            mPendingFetches.put(entry.uuid, listeners);
+        }
+
+        mExecutor.execute(new Runnable() {
+            @Override public void run() {
+                File path = null;
+                try {
+                    path = fetchAndStore(entry, localDate);
+                    EventBus.getDefault().post(new FetchXformSucceededEvent());
+                } catch (IOException e) {
+                    LOG.e(e, "Failed to fetch form " + entry.uuid);
+                    EventBus.getDefault().post(new FetchXformFailedEvent(
+                        FetchXformFailedEvent.Reason.SERVER_FAILED_TO_FETCH, e));
+                } catch (RuntimeException e) {
+                    // E.g. the SD card is unmounted; the listeners still have to hear back.
+                    LOG.e(e, "Failed to store form " + entry.uuid);
+                    EventBus.getDefault().post(new FetchXformFailedEvent(
+                        FetchXformFailedEvent.Reason.UNKNOWN, e));
+                } finally {
+                    List<Listener> listeners;
+                    synchronized (mPendingFetches) {
+                        listeners = mPendingFetches.remove(entry.uuid);
+                    }
+                    notifyListeners(listeners, entry.uuid, path);
+                }
+            }
+        });
+    }
+
+    /** Tells listeners on the main thread that a form is ready (or, if path is null, failed). */
+    private void notifyListeners(
+        final List<Listener> listeners, final String uuid, @Nullable final File path) {
+        mMainHandler.post(new Runnable() {
+            @Override public void run() {
+                for (Listener listener : listeners) {
+                    if (path != null) {
+                        listener.onFormReady(path, uuid);
+                    } else {
+                        listener.onFormFailed(uuid);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Fetches a form from the server and stores it, unless the server says that the stored
+     * copy is unchanged.  Returns the path of the form.
+     */
+    private File fetchAndStore(OpenMrsXformIndexEntry entry, @Nullable Long localDate)
+        throws IOException {
+        File path = entry.makeFileForForm();
+        boolean haveStoredCopy = localDate != null && path.exists();
+        Request.Builder builder = new Request.Builder()
+            .url(mConnectionDetails.getBuendiaApiUrl() + "/xforms/" + entry.uuid + "?v=full")
+            .header("Authorization", Credentials.basic(
+                mConnectionDetails.getUser(), mConnectionDetails.getPassword()));
+        if (haveStoredCopy) {
+            String etag = mValidators.getString(entry.uuid + ETAG_KEY_SUFFIX, null);
+            String lastModified =
+                mValidators.getString(entry.uuid + LAST_MODIFIED_KEY_SUFFIX, null);
+            if (etag != null) {
+                builder.header("If-None-Match", etag);
+            }
+            if (lastModified != null) {
+                builder.header("If-Modified-Since", lastModified);
+            }
+        }
+
+        LOG.i("Fetching form " + entry.uuid);
+        // Typical response times should be close to 10s, but as the number of users grows, this
+        // number scales up quickly, so use a 30s timeout to be safe.
+        Response response = mConnectionDetails.getVolley()
+            .getHttpClient(Common.REQUEST_TIMEOUT_MS_MEDIUM)
+            .newCall(builder.build())
+            .execute();
+        try {
+            if (haveStoredCopy && response.code() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                LOG.i("Form " + entry.uuid + " is unchanged on the server");
+                if (localDate < entry.dateChanged) {
+                    markStoredFormCurrent(path);
+                }
+                FormDefCache.prewarm(path);
+                return path;
+            }
+            if (!response.isSuccessful()) {
+                throw new IOException("HTTP status " + response.code());
+            }
+            String xml;
+            try {
+                xml = new JSONObject(response.body().string()).getString("xml");
+            } catch (JSONException e) {
+                throw new IOException("Response was in bad format", e);
+            }
+            writeForm(xml, path);
+            registerForm(path);
+            mValidators.edit()
+                .putString(entry.uuid + ETAG_KEY_SUFFIX, response.header("ETag"))
+                .putString(entry.uuid + LAST_MODIFIED_KEY_SUFFIX, response.header("Last-Modified"))
+                .apply();
+            // Parse the form now, so that it opens quickly when it's needed.
+            FormDefCache.prewarm(path);
+            return path;
+        } finally {
+            response.body().close();
+        }
+    }
+
+    /** Writes a form by way of a temporary file, so ODK never sees it half-written. */
+    private static void writeForm(String xml, File path) throws IOException {
+        // Create ODK dirs if necessary.
+        Collect.getInstance().createODKDirs();
+
+        // DiskSyncTask only picks up names ending in .xml, so it ignores the temporary file.
+        File temp = new File(path.getPath() + ".tmp");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+        try {
+            writer.write(xml);
+        } finally {
+            writer.close();
+        }
+        if (!temp.renameTo(path)) {
+            temp.delete();
+            throw new IOException("Could not rename " + temp + " to " + path);
+        }
+        // A same-length rewrite can keep the old modification time, so drop the cached hash.
+        FileHashCache.getInstance().invalidate(path);
+    }
+
+    /** Adds or replaces a form in ODK's forms database. */
+    private void registerForm(File path) throws IOException {
+        // Do the equivalent of DownloadFormsTask.findExistingOrCreateNewUri() or
+        // DiskSyncTask step 4 to insert the file into the database.
+        ContentValues values;
+        try {
+            values = DiskSyncTask.buildContentValues(path);
+        } catch (IllegalArgumentException e) {
+            // yuck, but this is what it throws on a bad parse
+            throw new IOException("Failed to parse " + path, e);
+        }
+        try {
+            // Always replace existing forms.
+            values.put(FormsProviderAPI.SQL_INSERT_OR_REPLACE, true);
+            mContentResolver.insert(FormsColumns.CONTENT_URI, values);
+        } catch (SQLException e) {
+            LOG.i(e, "failed to insert fetched file");
+        }
+    }
+
+    /** Records that a stored form is as new as the server's version. */
+    private void markStoredFormCurrent(File path) {
+        ContentValues values = new ContentValues();
+        values.put(FormsColumns.DATE, System.currentTimeMillis());
+        mContentResolver.update(FormsColumns.CONTENT_URI, values,
+            FormsColumns.FORM_FILE_PATH + " = ?", new String[] {path.getAbsolutePath()});
+    }
+
+    /**
+     * Returns the dates when forms were stored, by absolute path, from a single query of ODK's
+     * forms database.
+     * @param path the one form to look up, or null for all forms
+     */
+    private Map<String, Long> getLocalFormDates(@Nullable File path) {
+        Map<String, Long> dates = new HashMap<>();
+        Cursor cursor = path != null
+            ? OdkDatabase.getCursorForFormFile(
+                path, new String[] {FormsColumns.FORM_FILE_PATH, FormsColumns.DATE})
+            : mContentResolver.query(FormsColumns.CONTENT_URI,
+                new String[] {FormsColumns.FORM_FILE_PATH, FormsColumns.DATE},
+                null, null, FormsColumns._ID + " DESC");
+        try {
+            while (cursor.moveToNext()) {
+                // Rows come newest first; if a path has more than one, use the newest.
+                if (!dates.containsKey(cursor.getString(0))) {
+                    dates.put(cursor.getString(0), cursor.getLong(1));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return dates;
+    }
+}
@@ -11,6 +11,8 @@
 
 package org.projectbuendia.client.providers;
 
+import net.sqlcipher.database.SQLiteDatabase;
+
 import org.projectbuendia.client.sync.Database;
 import org.projectbuendia.client.providers.Contracts.Table;
 
@@ -18,11 +20,21 @@ import org.projectbuendia.client.providers.Contracts.Table;
 public class BuendiaProvider extends DelegatingProvider<Database> {
 
     /**
-     * Provides an {@link SQLiteDatabaseTransactionHelper} for beginning and ending savepoints
-     * (nested transactions).
+     * Provides the database that this provider writes to, so that a series of operations made
+     * through the provider on one thread can be grouped into a transaction.  Use
+     * {@link SQLiteDatabase#beginTransaction()} rather than raw savepoints: it holds the database
+     * lock until the transaction ends, so writes from other threads wait instead of joining it.
+     */
+    public SQLiteDatabase getWritableDatabase() {
+        return mDatabaseHelper.getWritableDatabase();
+    }
+
+    /**
+     * Provides a {@link BulkWriter} for writing large numbers of rows directly to the database,
+     * e.g. during sync.  The caller must {@link BulkWriter#close()} it when done.
      */
-    public SQLiteDatabaseTransactionHelper getDbTransactionHelper() {
-        return new SQLiteDatabaseTransactionHelper(getDatabaseHelper());
+    public BulkWriter getBulkWriter() {
+        return new BulkWriter(mDatabaseHelper, mContentResolver);
     }
 
     @Override protected Database getDatabaseHelper() {
@@ -65,15 +77,23 @@ public class BuendiaProvider extends DelegatingProvider<Database> {
                 Contracts.LocationNames.GROUP_CONTENT_TYPE,
                 Table.LOCATION_NAMES));
         registry.registerDelegate(
-            Contracts.Observations.CONTENT_URI.getPath(),
+            Contracts.LatestObservations.CONTENT_URI.getPath(),
             new GroupProviderDelegate(
-                Contracts.Observations.GROUP_CONTENT_TYPE,
-                Table.OBSERVATIONS));
+                Contracts.LatestObservations.GROUP_CONTENT_TYPE,
+                Table.LATEST_OBSERVATIONS));
+        registry.registerDelegate(
+            Contracts.Observations.CONTENT_URI.getPath(),
+            new ObservationsDelegate());
         registry.registerDelegate(
             Contracts.Orders.CONTENT_URI.getPath(),
             new GroupProviderDelegate(
                 Contracts.Orders.GROUP_CONTENT_TYPE,
                 Table.ORDERS));
+        registry.registerDelegate(
+            Contracts.Outbox.CONTENT_URI.getPath(),
+            new GroupProviderDelegate(
+                Contracts.Outbox.GROUP_CONTENT_TYPE,
+                Table.OUTBOX));
         registry.registerDelegate(
             Contracts.Patients.CONTENT_URI.getPath(),
             new GroupProviderDelegate(
@@ -142,6 +162,9 @@ public class BuendiaProvider extends DelegatingProvider<Database> {
         registry.registerDelegate(
             Contracts.LocalizedLocations.CONTENT_URI.getPath() + "/*",
             new LocalizedLocationsDelegate());
+        registry.registerDelegate(
+            Contracts.PatientSearch.CONTENT_URI.getPath() + "/*",
+            new PatientSearchDelegate());
         // Content provider for our single item table for storing miscellaneous values.
         registry.registerDelegate(
             Contracts.Misc.CONTENT_URI.getPath(),
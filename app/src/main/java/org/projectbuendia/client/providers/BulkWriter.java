@@ -0,0 +1,182 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.providers;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.support.annotation.Nullable;
+
+import net.sqlcipher.database.SQLiteDatabase;
+import net.sqlcipher.database.SQLiteStatement;
+
+import org.projectbuendia.client.providers.Contracts.Table;
+import org.projectbuendia.client.sync.Database;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes rows directly to the database with precompiled statements, bypassing the
+ * {@link BuendiaProvider} and its per-row statement compilation and change notifications.
+ * Intended for sync phases that write large numbers of rows.
+ * <p>
+ * Each distinct statement is compiled once and reused for the lifetime of the writer.  Writes are
+ * grouped into a transaction that is committed by {@link #flush()}.  The transaction can also be
+ * opened early with {@link #begin()}, so that content provider operations made on the same thread
+ * in the meantime are committed (or rolled back) together with the writer's own writes.
+ * {@link #close()} rolls back anything not yet flushed, releases the statements, and sends a
+ * single change notification for each content URI that was written to.
+ */
+public class BulkWriter {
+
+    private final SQLiteDatabase mDb;
+    private final ContentResolver mContentResolver;
+    private final Map<String, Statement> mStatements = new HashMap<>();
+    private final Set<Uri> mChangedUris = new HashSet<>();
+    private boolean mInTransaction = false;
+
+    BulkWriter(Database dbHelper, ContentResolver contentResolver) {
+        mDb = dbHelper.getWritableDatabase();
+        mContentResolver = contentResolver;
+    }
+
+    /**
+     * Returns a statement that inserts a row into a table, replacing any row that conflicts with
+     * it.  Values are bound in the same order as the given columns.
+     * @param table     the table to insert into
+     * @param notifyUri the content URI to notify when the writer is closed
+     * @param columns   the columns to be bound
+     */
+    public Statement insertOrReplace(Table table, Uri notifyUri, String... columns) {
+        StringBuilder sql = new StringBuilder("INSERT OR REPLACE INTO ")
+            .append(table.name).append(" (");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i > 0 ? "," : "").append(columns[i]);
+        }
+        sql.append(") VALUES (");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i > 0 ? ",?" : "?");
+        }
+        sql.append(')');
+        return compile(sql.toString(), notifyUri);
+    }
+
+    /**
+     * Returns a statement that deletes the rows of a table whose key column has the bound value.
+     * @param table     the table to delete from
+     * @param notifyUri the content URI to notify when the writer is closed
+     * @param keyColumn the column to match against the single bound value
+     */
+    public Statement delete(Table table, Uri notifyUri, String keyColumn) {
+        return compile(
+            "DELETE FROM " + table.name + " WHERE " + keyColumn + " = ?", notifyUri);
+    }
+
+    /**
+     * Returns a statement for arbitrary SQL, such as an INSERT ... SELECT that derives rows from
+     * other tables.  Values are bound in the order of the statement's parameters.
+     * @param sql       the SQL statement to compile
+     * @param notifyUri the content URI to notify when the writer is closed
+     */
+    public Statement compile(String sql, Uri notifyUri) {
+        Statement statement = mStatements.get(sql);
+        if (statement == null) {
+            statement = new Statement(mDb.compileStatement(sql), notifyUri);
+            mStatements.put(sql, statement);
+        }
+        return statement;
+    }
+
+    /** Opens a transaction for subsequent writes, if one is not already open. */
+    public void begin() {
+        beginTransactionIfNeeded();
+    }
+
+    /** Commits all the writes made since the last flush. */
+    public void flush() {
+        if (mInTransaction) {
+            mDb.setTransactionSuccessful();
+            mDb.endTransaction();
+            mInTransaction = false;
+        }
+    }
+
+    /**
+     * Rolls back any writes that have not been flushed, releases all compiled statements, and
+     * notifies observers of every content URI that was written to.
+     */
+    public void close() {
+        if (mInTransaction) {
+            mDb.endTransaction();
+            mInTransaction = false;
+        }
+        for (Statement statement : mStatements.values()) {
+            statement.mStatement.close();
+        }
+        mStatements.clear();
+        for (Uri uri : mChangedUris) {
+            mContentResolver.notifyChange(uri, null, false);
+        }
+        mChangedUris.clear();
+    }
+
+    private void beginTransactionIfNeeded() {
+        if (!mInTransaction) {
+            mDb.beginTransaction();
+            mInTransaction = true;
+        }
+    }
+
+    /** A compiled statement whose parameters are bound positionally, starting from 1. */
+    public class Statement {
+        private final SQLiteStatement mStatement;
+        private final Uri mNotifyUri;
+
+        private Statement(SQLiteStatement statement, Uri notifyUri) {
+            mStatement = statement;
+            mNotifyUri = notifyUri;
+        }
+
+        public Statement bind(int index, @Nullable String value) {
+            if (value == null) {
+                mStatement.bindNull(index);
+            } else {
+                mStatement.bindString(index, value);
+            }
+            return this;
+        }
+
+        public Statement bind(int index, @Nullable Long value) {
+            if (value == null) {
+                mStatement.bindNull(index);
+            } else {
+                mStatement.bindLong(index, value);
+            }
+            return this;
+        }
+
+        public Statement bind(int index, long value) {
+            mStatement.bindLong(index, value);
+            return this;
+        }
+
+        /** Executes the statement with the current bindings, then clears the bindings. */
+        public void execute() {
+            beginTransactionIfNeeded();
+            mStatement.execute();
+            mStatement.clearBindings();
+            mChangedUris.add(mNotifyUri);
+        }
+    }
+}
@@ -29,12 +29,16 @@ public class Contracts {
         CONCEPT_NAMES("concept_names"),
         CONCEPTS("concepts"),
         FORMS("forms"),
+        LATEST_OBSERVATIONS("latest_observations"),
         LOCATION_NAMES("location_names"),
+        LOCATION_PATIENT_COUNTS("location_patient_counts"),
         LOCATIONS("locations"),
         MISC("misc"),
         OBSERVATIONS("observations"),
         ORDERS("orders"),
+        OUTBOX("outbox"),
         PATIENTS("patients"),
+        PATIENT_SEARCH("patient_search"),
         USERS("users"),
         SYNC_TOKENS("sync_tokens");
 
@@ -118,6 +122,15 @@ public class Contracts {
         String NAME = "name";
     }
 
+    /**
+     * The number of patients directly in each location.  Maintained by triggers on the patients
+     * table and read through {@link LocalizedLocations}, so it has no content URI of its own.
+     */
+    public interface LocationPatientCounts {
+        String LOCATION_UUID = "location_uuid";
+        String PATIENT_COUNT = "patient_count";
+    }
+
     public interface Locations {
         Uri CONTENT_URI = buildContentUri("locations");
         String GROUP_CONTENT_TYPE = buildGroupType("location");
@@ -133,8 +146,8 @@ public class Contracts {
 
         /**
          * The start time of the last full sync operation, according to the
-         * local (client's) clock.  Since sync operations are transactional,
-         * this should only be set if this sync was completed successfully.
+         * local (client's) clock.  This is set even if the sync later fails,
+         * in which case it will be later than {@link #FULL_SYNC_END_MILLIS}.
          * <p/>
          * <p>Updated at the very beginning of full sync operations.
          */
@@ -179,6 +192,22 @@ public class Contracts {
         String VOIDED = "voided";
     }
 
+    /**
+     * The latest non-voided observation of each concept for each patient, kept up to date as
+     * observations are written, so that the latest values can be read without scanning the
+     * observations table.  The columns have the same meanings as in {@link Observations}.
+     */
+    public interface LatestObservations {
+        Uri CONTENT_URI = buildContentUri("latest-observations");
+        String GROUP_CONTENT_TYPE = buildGroupType("latest-observation");
+
+        String PATIENT_UUID = "patient_uuid";
+        String CONCEPT_UUID = "concept_uuid";
+        String UUID = "uuid";  // UUID of the observation, or null for a temporary observation
+        String ENCOUNTER_MILLIS = "encounter_millis";  // milliseconds since epoch
+        String VALUE = "value";
+    }
+
     public interface Orders {
         Uri CONTENT_URI = buildContentUri("orders");
         String GROUP_CONTENT_TYPE = buildGroupType("order");
@@ -191,6 +220,27 @@ public class Contracts {
         String STOP_MILLIS = "stop_millis";  // milliseconds since epoch
     }
 
+    public interface Outbox {
+        Uri CONTENT_URI = buildContentUri("outbox");
+        String GROUP_CONTENT_TYPE = buildGroupType("outbox-item");
+
+        // Writes made on this tablet that have not yet reached the server, sent in rowid order.
+        // Writes that the server rejects stay here, marked with the rejection, and are not resent.
+        // Unlike the other tables, this is not a cache of server data, and it survives clearing.
+
+        String ROWID = "rowid";
+        String IDEMPOTENCY_KEY = "idempotency_key";  // sent with every attempt at this write
+        String KIND = "kind";  // name of an org.projectbuendia.client.net.Outbox.Kind
+        String PATIENT_UUID = "patient_uuid";  // writes for one patient are sent in order
+        String LOCAL_UUID = "local_uuid";  // encounter or order UUID of the local stand-in rows
+        String URL_PATH = "url_path";  // relative to the Buendia API URL
+        String BODY = "body";  // JSON request body
+        String ATTEMPTS = "attempts";
+        String CREATED_MILLIS = "created_millis";  // milliseconds since epoch
+        String REJECTED_STATUS = "rejected_status";  // HTTP status of the rejection, or null
+        String REJECTED_ERROR = "rejected_error";  // the server's explanation of the rejection
+    }
+
     public interface Patients {
         Uri CONTENT_URI = buildContentUri("patients");
         String GROUP_CONTENT_TYPE = buildGroupType("patient");
@@ -230,6 +280,23 @@ public class Contracts {
         String PATIENT_COUNT = "patient_count";
     }
 
+    /**
+     * Patients matching a search string, ranked by where the match was found: ID matches first,
+     * then family name, given name, and location name.  Each word of the search string matches
+     * any word in those fields that begins with it.  The result rows have the same columns as
+     * {@link Patients}.  Use {@link #getPatientSearchUri(String)} to build the URI.
+     */
+    public interface PatientSearch {
+        Uri CONTENT_URI = buildContentUri("patient-search");
+        String GROUP_CONTENT_TYPE = buildGroupType("patient-search");
+
+        // Columns of the underlying full-text index, whose docid is the patients rowid.
+        String ID = "id";
+        String FAMILY_NAME = "family_name";
+        String GIVEN_NAME = "given_name";
+        String LOCATION_NAME = "location_name";  // names of the location in all locales
+    }
+
     public interface PatientCounts {
         Uri CONTENT_URI = buildContentUri("patient-counts");
         String GROUP_CONTENT_TYPE = buildGroupType("patient-count");
@@ -258,5 +325,12 @@ public class Contracts {
             .build();
     }
 
+    /** Returns the content URI for the patients matching a search string. */
+    public static Uri getPatientSearchUri(String query) {
+        return PatientSearch.CONTENT_URI.buildUpon()
+            .appendPath(query)
+            .build();
+    }
+
     private Contracts() { /* prevent instantiation */ }
 }
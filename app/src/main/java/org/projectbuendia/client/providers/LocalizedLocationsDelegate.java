@@ -36,6 +36,8 @@ public class LocalizedLocationsDelegate implements ProviderDelegate<Database> {
      * <li>string location_uuid, the UUID of a location</li>
      * <li>string parent_uuid, the UUID of the location's parent</li>
      * <li>string name, the localized name of the location</li>
+     * <li>long patient_count, the number of patients directly in the location, as maintained
+     * in the location_patient_counts table</li>
      * </ul>
      */
     private static final String QUERY = ""
@@ -43,14 +45,13 @@ public class LocalizedLocationsDelegate implements ProviderDelegate<Database> {
         + "     locations.uuid AS uuid,"
         + "     locations.parent_uuid AS parent_uuid,"
         + "     location_names.name AS name,"
-        + "     COUNT(patients.location_uuid) AS patient_count"
+        + "     coalesce(location_patient_counts.patient_count, 0) AS patient_count"
         + " FROM locations"
         + "     INNER JOIN location_names"
         + "     ON locations.uuid = location_names.location_uuid"
-        + "     LEFT JOIN patients"
-        + "     ON locations.uuid = patients.location_uuid"
-        + " WHERE location_names.locale = ?"
-        + " GROUP BY locations.uuid";
+        + "     LEFT JOIN location_patient_counts"
+        + "     ON locations.uuid = location_patient_counts.location_uuid"
+        + " WHERE location_names.locale = ?";
 
     @Override public String getType() {
         return Contracts.LocalizedLocations.GROUP_CONTENT_TYPE;
@@ -0,0 +1,128 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.providers;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.SetMultimap;
+
+import net.sqlcipher.database.SQLiteDatabase;
+
+import org.projectbuendia.client.providers.Contracts.LatestObservations;
+import org.projectbuendia.client.providers.Contracts.Observations;
+import org.projectbuendia.client.sync.Database;
+import org.projectbuendia.client.sync.QueryBuilder;
+
+import java.util.Map;
+
+/**
+ * A {@link GroupProviderDelegate} for the observations table that keeps the latest_observations
+ * table up to date.  After each write, the latest observation is recomputed for every patient and
+ * concept that the write could have affected.  This covers observations saved locally after a
+ * form is submitted, voided observations, and the removal of temporary observations after a sync.
+ */
+class ObservationsDelegate extends GroupProviderDelegate {
+
+    public ObservationsDelegate() {
+        super(Observations.GROUP_CONTENT_TYPE, Contracts.Table.OBSERVATIONS);
+    }
+
+    @Override public Uri insert(
+        Database dbHelper, ContentResolver contentResolver, Uri uri, ContentValues values) {
+        Uri result = super.insert(dbHelper, contentResolver, uri, values);
+        refresh(dbHelper, contentResolver, getConceptsByPatient(values));
+        return result;
+    }
+
+    @Override public int bulkInsert(
+        Database dbHelper, ContentResolver contentResolver, Uri uri, ContentValues[] allValues) {
+        int count = super.bulkInsert(dbHelper, contentResolver, uri, allValues);
+        refresh(dbHelper, contentResolver, getConceptsByPatient(allValues));
+        return count;
+    }
+
+    @Override public int delete(
+        Database dbHelper, ContentResolver contentResolver, Uri uri,
+        String selection, String[] selectionArgs) {
+        SetMultimap<String, String> affected =
+            getConceptsByPatient(dbHelper, selection, selectionArgs);
+        int count = super.delete(dbHelper, contentResolver, uri, selection, selectionArgs);
+        refresh(dbHelper, contentResolver, affected);
+        return count;
+    }
+
+    @Override public int update(
+        Database dbHelper, ContentResolver contentResolver, Uri uri,
+        ContentValues values, String selection, String[] selectionArgs) {
+        SetMultimap<String, String> affected =
+            getConceptsByPatient(dbHelper, selection, selectionArgs);
+        int count = super.update(
+            dbHelper, contentResolver, uri, values, selection, selectionArgs);
+        affected.putAll(getConceptsByPatient(values));
+        refresh(dbHelper, contentResolver, affected);
+        return count;
+    }
+
+    private static SetMultimap<String, String> getConceptsByPatient(ContentValues... allValues) {
+        SetMultimap<String, String> result = HashMultimap.create();
+        for (ContentValues values : allValues) {
+            String patientUuid = values.getAsString(Observations.PATIENT_UUID);
+            String conceptUuid = values.getAsString(Observations.CONCEPT_UUID);
+            if (patientUuid != null && conceptUuid != null) {
+                result.put(patientUuid, conceptUuid);
+            }
+        }
+        return result;
+    }
+
+    private SetMultimap<String, String> getConceptsByPatient(
+        Database dbHelper, String selection, String[] selectionArgs) {
+        SetMultimap<String, String> result = HashMultimap.create();
+        try (Cursor c = new QueryBuilder(Contracts.Table.OBSERVATIONS)
+            .where(selection, selectionArgs)
+            .select(dbHelper.getReadableDatabase(),
+                new String[] {Observations.PATIENT_UUID, Observations.CONCEPT_UUID})) {
+            while (c.moveToNext()) {
+                if (!c.isNull(0) && !c.isNull(1)) {
+                    result.put(c.getString(0), c.getString(1));
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Recomputes the latest observation for each of the given patients and concepts. */
+    private void refresh(Database dbHelper, ContentResolver contentResolver,
+                         SetMultimap<String, String> conceptsByPatient) {
+        if (conceptsByPatient.isEmpty()) {
+            return;
+        }
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (Map.Entry<String, String> entry : conceptsByPatient.entries()) {
+                String[] args = {entry.getKey(), entry.getValue()};
+                for (String sql : Database.REFRESH_LATEST_OBSERVATION) {
+                    db.execSQL(sql, args);
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        contentResolver.notifyChange(LatestObservations.CONTENT_URI, null, false);
+    }
+}
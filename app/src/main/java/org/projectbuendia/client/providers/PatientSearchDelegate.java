@@ -0,0 +1,145 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.providers;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.text.TextUtils;
+
+import org.projectbuendia.client.providers.Contracts.Patients;
+import org.projectbuendia.client.providers.Contracts.Table;
+import org.projectbuendia.client.sync.Database;
+import org.projectbuendia.client.sync.QueryBuilder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A {@link ProviderDelegate} that searches patients using the patient_search full-text index.
+ * The selection and sort order, if given, apply to the columns of the patients table.
+ */
+public class PatientSearchDelegate implements ProviderDelegate<Database> {
+
+    /**
+     * Query that fetches the patients whose index entry matches a full-text query.
+     * <p/>
+     * <p>Parameters:
+     * <ul>
+     * <li>string, the full-text query (see {@link #toMatchQuery(String)})</li>
+     * </ul>
+     * <p/>
+     * <p>The offsets() function lists matches in column order, so its first number is the first
+     * column that matched, which serves as the rank: 0 for id, 1 for family_name, and so on.
+     */
+    private static final String MATCHES_QUERY = ""
+        + " SELECT"
+        + "     docid AS patient_rowid,"
+        + "     CAST(substr(offsets(patient_search), 1, 1) AS INTEGER) AS search_rank"
+        + " FROM patient_search"
+        + " WHERE patient_search MATCH ?";
+
+    @Override public String getType() {
+        return Contracts.PatientSearch.GROUP_CONTENT_TYPE;
+    }
+
+    @Override public Cursor query(
+        Database dbHelper, ContentResolver contentResolver, Uri uri, String[] projection,
+        String selection, String[] selectionArgs, String sortOrder) {
+        // URI expected to be of form ../patient-search/{query}.
+        List<String> pathSegments = uri.getPathSegments();
+        if (pathSegments.size() != 2) {
+            throw new UnsupportedOperationException("URI '" + uri + "' is malformed.");
+        }
+
+        Cursor cursor;
+        String matchQuery = toMatchQuery(pathSegments.get(1));
+        if (matchQuery == null) {
+            // Nothing to search for; every patient matches.
+            cursor = new QueryBuilder(Table.PATIENTS)
+                .where(selection, selectionArgs)
+                .orderBy(sortOrder)
+                .select(dbHelper.getReadableDatabase(), projection);
+        } else {
+            List<String> args = new ArrayList<>();
+            args.add(matchQuery);
+            StringBuilder sql = new StringBuilder("SELECT ")
+                .append(projection != null ? TextUtils.join(",", projection) : "patients.*")
+                .append(" FROM patients INNER JOIN (").append(MATCHES_QUERY).append(") AS matches")
+                .append(" ON patients.rowid = matches.patient_rowid");
+            if (selection != null && !selection.isEmpty()) {
+                sql.append(" WHERE (").append(selection).append(")");
+                if (selectionArgs != null) {
+                    Collections.addAll(args, selectionArgs);
+                }
+            }
+            sql.append(" ORDER BY matches.search_rank");
+            sql.append(", ").append(sortOrder != null && !sortOrder.isEmpty() ? sortOrder
+                : Patients.FAMILY_NAME + ", " + Patients.GIVEN_NAME);
+            cursor = dbHelper.getReadableDatabase().rawQuery(
+                sql.toString(), args.toArray(new String[args.size()]));
+        }
+        // Search results change whenever the patients do.
+        cursor.setNotificationUri(contentResolver, Patients.CONTENT_URI);
+        return cursor;
+    }
+
+    /**
+     * Converts a search string into an FTS query that requires every word of the search string
+     * to be a prefix of some indexed word, or returns null if there are no words to search for.
+     * Words are split the same way the FTS "simple" tokenizer splits the indexed text, at any
+     * ASCII character other than a letter or digit, so that e.g. "KL.12" becomes "kl* 12*".
+     */
+    static String toMatchQuery(String text) {
+        StringBuilder query = new StringBuilder();
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            if (c >= 128) {
+                word.append(c);  // the tokenizer treats all non-ASCII characters as letters
+            } else if (Character.isLetterOrDigit(c)) {
+                word.append(Character.toLowerCase(c));
+            } else if (word.length() > 0) {
+                query.append(query.length() > 0 ? " " : "").append(word).append('*');
+                word.setLength(0);
+            }
+        }
+        return query.length() > 0 ? query.toString() : null;
+    }
+
+    @Override public Uri insert(
+        Database dbHelper, ContentResolver contentResolver, Uri uri,
+        ContentValues values) {
+        throw new UnsupportedOperationException("Insert is not supported for URI '" + uri + "'.");
+    }
+
+    @Override public int bulkInsert(
+        Database dbHelper, ContentResolver contentResolver, Uri uri,
+        ContentValues[] values) {
+        throw new UnsupportedOperationException(
+            "Bulk insert is not supported for URI '" + uri + "'.");
+    }
+
+    @Override public int delete(
+        Database dbHelper, ContentResolver contentResolver, Uri uri, String selection,
+        String[] selectionArgs) {
+        throw new UnsupportedOperationException("Delete is not supported for URI '" + uri + "'.");
+    }
+
+    @Override public int update(
+        Database dbHelper, ContentResolver contentResolver, Uri uri,
+        ContentValues values, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Update is not supported for URI '" + uri + "'.");
+    }
+}
@@ -19,11 +19,6 @@ import org.projectbuendia.client.sync.Database;
 public final class SQLiteDatabaseTransactionHelper { // @nolint
     private final Database mDbHelper;
 
-    /** Closes the database resources in use by this object. */
-    public void close() {
-        mDbHelper.getWritableDatabase().close();
-    }
-
     /**
      * Starts a named transaction by creating a savepoint with the given name.
      * @see <a>http://www.sqlite.org/lang_savepoint.html</a>.
@@ -0,0 +1,132 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.sync;
+
+import org.projectbuendia.client.sync.SyncAdapter.SyncPhase;
+
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decides how often each sync phase runs, based on how recently the phase found anything new on
+ * the server.  A periodic sync only runs the phases that are due.  A phase that finds changes is
+ * synced again on the next periodic sync.  Each sync that finds nothing doubles its interval, up
+ * to {@link #MAX_PHASE_INTERVAL_MILLIS}.  While the server is unreachable or syncs keep failing,
+ * periodic syncs are skipped with exponential backoff.
+ * <p>
+ * The same record of activity sets how often an open patient chart asks for observations and
+ * orders (see {@link #getObservationPollMillis()}).
+ * <p>
+ * All times are in the {@link android.os.SystemClock#elapsedRealtime()} time base.
+ */
+public class AdaptiveSyncPolicy {
+
+    /** How often Android runs the periodic sync, which then runs only the phases that are due. */
+    public static final long PERIODIC_SYNC_SECONDS = 60;
+
+    /** The interval for a phase that found changes on its last sync. */
+    static final long MIN_PHASE_INTERVAL_MILLIS = PERIODIC_SYNC_SECONDS * 1000;
+
+    /** The longest a phase goes without syncing, however quiet it is. */
+    static final long MAX_PHASE_INTERVAL_MILLIS = 30 * 60 * 1000;
+
+    /** The first delay after a failed sync, doubled with each further failure. */
+    static final long MIN_FAILURE_BACKOFF_MILLIS = 60 * 1000;
+
+    /** The longest delay after a run of failed syncs. */
+    static final long MAX_FAILURE_BACKOFF_MILLIS = 30 * 60 * 1000;
+
+    /** The period between observation syncs while a chart is open and they are finding changes. */
+    static final long MIN_OBSERVATION_POLL_MILLIS = 10 * 1000;
+
+    /** The longest period between observation syncs while a chart is open. */
+    static final long MAX_OBSERVATION_POLL_MILLIS = 60 * 1000;
+
+    private static final AdaptiveSyncPolicy sInstance = new AdaptiveSyncPolicy();
+
+    private final Map<SyncPhase, PhaseState> mPhaseStates = new EnumMap<>(SyncPhase.class);
+    private long mFailureBackoffMillis = 0;
+    private long mNextAttemptMillis = 0;
+    private long mObservationPollMillis = MIN_OBSERVATION_POLL_MILLIS;
+
+    /** Gets the policy shared by the sync adapter and the UI. */
+    public static AdaptiveSyncPolicy getInstance() {
+        return sInstance;
+    }
+
+    AdaptiveSyncPolicy() {
+        for (SyncPhase phase : SyncPhase.values()) {
+            mPhaseStates.put(phase, new PhaseState());
+        }
+    }
+
+    /** Returns true if periodic syncs should be skipped because recent syncs have failed. */
+    public synchronized boolean isBackingOff(long nowMillis) {
+        return nowMillis < mNextAttemptMillis;
+    }
+
+    /** Returns the phases that are due for a periodic sync. */
+    public synchronized Set<SyncPhase> getDuePhases(long nowMillis) {
+        Set<SyncPhase> due = EnumSet.noneOf(SyncPhase.class);
+        for (Map.Entry<SyncPhase, PhaseState> entry : mPhaseStates.entrySet()) {
+            PhaseState state = entry.getValue();
+            if (state.lastSyncMillis == null
+                || nowMillis - state.lastSyncMillis >= state.intervalMillis) {
+                due.add(entry.getKey());
+            }
+        }
+        return due;
+    }
+
+    /** Records the outcome of a phase that completed, whether or not it was periodic. */
+    public synchronized void recordPhaseCompleted(
+        SyncPhase phase, boolean foundChanges, long nowMillis) {
+        PhaseState state = mPhaseStates.get(phase);
+        state.lastSyncMillis = nowMillis;
+        state.intervalMillis = foundChanges ? MIN_PHASE_INTERVAL_MILLIS
+            : Math.min(state.intervalMillis * 2, MAX_PHASE_INTERVAL_MILLIS);
+        if (phase == SyncPhase.SYNC_OBSERVATIONS || phase == SyncPhase.SYNC_ORDERS) {
+            mObservationPollMillis = foundChanges ? MIN_OBSERVATION_POLL_MILLIS
+                : Math.min(mObservationPollMillis * 2, MAX_OBSERVATION_POLL_MILLIS);
+        }
+    }
+
+    /** Records that a sync completed successfully, ending any backoff. */
+    public synchronized void recordSyncSucceeded() {
+        mFailureBackoffMillis = 0;
+        mNextAttemptMillis = 0;
+    }
+
+    /** Records that a sync failed or the server was unavailable, extending the backoff. */
+    public synchronized void recordSyncFailed(long nowMillis) {
+        mFailureBackoffMillis = mFailureBackoffMillis == 0 ? MIN_FAILURE_BACKOFF_MILLIS
+            : Math.min(mFailureBackoffMillis * 2, MAX_FAILURE_BACKOFF_MILLIS);
+        mNextAttemptMillis = nowMillis + mFailureBackoffMillis;
+        mObservationPollMillis = MAX_OBSERVATION_POLL_MILLIS;
+    }
+
+    /**
+     * Returns the period at which an open patient chart should request observation and order
+     * syncs: short while they are finding changes, longer while they are not or syncs are failing.
+     */
+    public synchronized long getObservationPollMillis() {
+        return mObservationPollMillis;
+    }
+
+    private static class PhaseState {
+        /** When the phase last completed, or null if it hasn't since the app started. */
+        Long lastSyncMillis = null;
+        long intervalMillis = MIN_PHASE_INTERVAL_MILLIS;
+    }
+}
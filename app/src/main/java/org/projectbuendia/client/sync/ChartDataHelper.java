@@ -13,6 +13,7 @@ package org.projectbuendia.client.sync;
 
 import android.content.ContentResolver;
 import android.database.Cursor;
+import android.util.SparseArray;
 
 import com.google.common.collect.ImmutableSet;
 
@@ -29,6 +30,7 @@ import org.projectbuendia.client.providers.Contracts;
 import org.projectbuendia.client.providers.Contracts.ChartItems;
 import org.projectbuendia.client.providers.Contracts.ConceptNames;
 import org.projectbuendia.client.providers.Contracts.Concepts;
+import org.projectbuendia.client.providers.Contracts.LatestObservations;
 import org.projectbuendia.client.providers.Contracts.Observations;
 import org.projectbuendia.client.providers.Contracts.Orders;
 import org.projectbuendia.client.utils.Logger;
@@ -70,6 +72,8 @@ public class ChartDataHelper {
 
     private static Map<String, String> sConceptNames;
     private static Map<String, ConceptType> sConceptTypes;
+    /** Concept UUIDs by XForm concept ID, or null when out of date. */
+    private static volatile SparseArray<String> sConceptUuidsByXformId;
 
     public ChartDataHelper(ContentResolver contentResolver) {
         mContentResolver = checkNotNull(contentResolver);
@@ -78,6 +82,7 @@ public class ChartDataHelper {
     /** Marks in-memory concept data out of date.  Call this when concepts change in the app db. */
     public static void invalidateLoadedConceptData() {
         sLoadedLocale = null;
+        sConceptUuidsByXformId = null;
     }
 
     /** Loads concept names and types from the app db into HashMaps in memory. */
@@ -92,23 +97,58 @@ public class ChartDataHelper {
                         sConceptNames.put(c.getString(0), c.getString(1));
                     }
                 }
-                sConceptTypes = new HashMap<>();
-                try (Cursor c = mContentResolver.query(
-                    Concepts.CONTENT_URI, new String[] {Concepts.UUID, Concepts.CONCEPT_TYPE},
-                    null, null, null)) {
-                    while (c.moveToNext()) {
-                        try {
-                            sConceptTypes.put(c.getString(0), ConceptType.valueOf(c.getString(1)));
-                        } catch (IllegalArgumentException e) { /* bad concept type name */ }
-                    }
-                }
-                // Special case: we know this is a date even if it's not in any forms or charts.
-                sConceptTypes.put(ConceptUuids.ADMISSION_DATE_UUID, ConceptType.DATE);
+                loadConcepts();
                 sLoadedLocale = locale;
             }
         }
     }
 
+    /**
+     * Returns an index from XForm concept IDs (as in "5088^Temperature (C)^99DCT") to concept
+     * UUIDs.  The index is loaded along with the rest of the concept data, so it is usually
+     * ready by the time a form is submitted from a chart.  Don't modify the returned array.
+     */
+    public SparseArray<String> getConceptUuidsByXformId() {
+        SparseArray<String> index = sConceptUuidsByXformId;
+        if (index == null) {
+            synchronized (sLoadingLock) {
+                index = sConceptUuidsByXformId;
+                if (index == null) {
+                    index = loadConcepts();
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Loads concept types and the XForm concept ID index from the app db.  Returns the index.
+     * Must be called while holding sLoadingLock.
+     */
+    private SparseArray<String> loadConcepts() {
+        Map<String, ConceptType> types = new HashMap<>();
+        SparseArray<String> uuidsByXformId = new SparseArray<>();
+        try (Cursor c = mContentResolver.query(
+            Concepts.CONTENT_URI,
+            new String[] {Concepts.UUID, Concepts.CONCEPT_TYPE, Concepts.XFORM_ID},
+            null, null, null)) {
+            while (c.moveToNext()) {
+                // getInt() reads NULL as 0, which would claim xform ID 0 for a concept.
+                if (!c.isNull(2)) {
+                    uuidsByXformId.put(c.getInt(2), c.getString(0));
+                }
+                try {
+                    types.put(c.getString(0), ConceptType.valueOf(c.getString(1)));
+                } catch (IllegalArgumentException e) { /* bad concept type name */ }
+            }
+        }
+        // Special case: we know this is a date even if it's not in any forms or charts.
+        types.put(ConceptUuids.ADMISSION_DATE_UUID, ConceptType.DATE);
+        sConceptTypes = types;
+        sConceptUuidsByXformId = uuidsByXformId;
+        return uuidsByXformId;
+    }
+
     /** Gets all the orders for a given patient. */
     public List<Order> getOrders(String patientUuid) {
         Cursor c = mContentResolver.query(
@@ -128,12 +168,47 @@ public class ChartDataHelper {
         return orders;
     }
 
+    /** A snapshot of everything shown in a patient's chart, read together in one pass. */
+    public static final class PatientChartData {
+        public final List<Obs> observations;
+        public final Map<String, Obs> latestObservations;
+        public final List<Order> orders;
+
+        public PatientChartData(
+            List<Obs> observations, Map<String, Obs> latestObservations, List<Order> orders) {
+            this.observations = observations;
+            this.latestObservations = latestObservations;
+            this.orders = orders;
+        }
+    }
+
+    /**
+     * Gets a patient's observations, the latest observation of each concept, and orders, reading
+     * the observations table only once.  This can take a while for a patient with many
+     * observations, so call it on a background thread.
+     */
+    public PatientChartData getPatientChartData(String patientUuid) {
+        List<Obs> observations = getObservations(patientUuid);
+        Map<String, Obs> latest = new HashMap<>();
+        for (Obs obs : observations) {
+            Obs existing = latest.get(obs.conceptUuid);
+            if (existing == null || obs.time.isAfter(existing.time)) {
+                latest.put(obs.conceptUuid, obs);
+            }
+        }
+        return new PatientChartData(observations, latest, getOrders(patientUuid));
+    }
+
     /** Gets all observations for a given patient from the local cache, localized to English. */
     // TODO/cleanup: Consider returning a SortedSet<Obs> or a Map<String, SortedSet<ObsPoint>>.
     public List<Obs> getObservations(String patientUuid) {
         return getObservations(patientUuid, ENGLISH_LOCALE);
     }
 
+    /**
+     * Reads an observation from a cursor over either the observations table or the
+     * latest_observations table, which have the same names for the columns used here.
+     */
     private Obs obsFromCursor(Cursor c) {
         long millis = c.getLong(c.getColumnIndex(Observations.ENCOUNTER_MILLIS));
         String conceptUuid = c.getString(c.getColumnIndex(Observations.CONCEPT_UUID));
@@ -256,10 +331,13 @@ public class ChartDataHelper {
     /** Gets the latest observation of each concept for a given patient from the app db. */
     // TODO/cleanup: Have this return a Map<String, ObsPoint>.
     public Map<String, Obs> getLatestObservations(String patientUuid, String locale) {
+        loadConceptData(locale);
         Map<String, Obs> result = new HashMap<>();
-        for (Obs obs : getObservations(patientUuid, locale)) {
-            Obs existing = result.get(obs.conceptUuid);
-            if (existing == null || obs.time.isAfter(existing.time)) {
+        try (Cursor c = mContentResolver.query(
+            LatestObservations.CONTENT_URI, null,
+            LatestObservations.PATIENT_UUID + " = ?", new String[] {patientUuid}, null)) {
+            while (c.moveToNext()) {
+                Obs obs = obsFromCursor(c);
                 result.put(obs.conceptUuid, obs);
             }
         }
@@ -272,16 +350,11 @@ public class ChartDataHelper {
         String conceptUuid, String locale) {
         loadConceptData(locale);
         try (Cursor c = mContentResolver.query(
-            Observations.CONTENT_URI, null,
-                Observations.VOIDED + " IS NOT ? and "
-                    + Observations.CONCEPT_UUID + " = ?",
-                new String[] {"1",conceptUuid},
-            Observations.ENCOUNTER_MILLIS + " DESC")) {
+            LatestObservations.CONTENT_URI, null,
+            LatestObservations.CONCEPT_UUID + " = ?", new String[] {conceptUuid}, null)) {
             Map<String, Obs> result = new HashMap<>();
             while (c.moveToNext()) {
-                String patientUuid = Utils.getString(c, Observations.PATIENT_UUID);
-                if (result.containsKey(patientUuid)) continue;
-                result.put(patientUuid, obsFromCursor(c));
+                result.put(Utils.getString(c, LatestObservations.PATIENT_UUID), obsFromCursor(c));
             }
             return result;
         }
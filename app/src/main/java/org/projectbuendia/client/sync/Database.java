@@ -22,8 +22,13 @@ import org.projectbuendia.client.providers.Contracts.Table;
 import org.projectbuendia.client.utils.Logger;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Schema definition for the app's database, which contains patient attributes,
@@ -34,7 +39,13 @@ public class Database extends SQLiteOpenHelper {
     private static final Logger LOG = Logger.create();
 
     /** Schema version. */
-    public static final int DATABASE_VERSION = 29;
+    public static final int DATABASE_VERSION = 34;
+
+    /**
+     * The oldest schema version that {@link #MIGRATIONS} can upgrade from.  Databases older than
+     * this are cleared and rebuilt by the next sync.
+     */
+    static final int OLDEST_MIGRATABLE_VERSION = 29;
 
     /** Filename for SQLite file. */
     public static final String DATABASE_FILENAME = "buendia.db";
@@ -88,6 +99,14 @@ public class Database extends SQLiteOpenHelper {
             + "birthdate TEXT,"
             + "gender TEXT");
 
+        // A full-text index of the searchable patient fields; its docid is the patients rowid.
+        // Created with CREATE VIRTUAL TABLE (see FTS_TABLES) and kept up to date by PATIENT_SEARCH_TRIGGERS.
+        SCHEMAS.put(Table.PATIENT_SEARCH, ""
+            + "id,"
+            + "family_name,"
+            + "given_name,"
+            + "location_name");
+
         SCHEMAS.put(Table.CONCEPTS, ""
             + "uuid TEXT PRIMARY KEY NOT NULL,"
             + "xform_id INTEGER UNIQUE NOT NULL,"
@@ -114,6 +133,12 @@ public class Database extends SQLiteOpenHelper {
             + "name TEXT,"
             + "UNIQUE (location_uuid, locale)");
 
+        // The number of patients directly in each location (not counting child locations),
+        // kept up to date by PATIENT_COUNT_TRIGGERS.
+        SCHEMAS.put(Table.LOCATION_PATIENT_COUNTS, ""
+            + "location_uuid TEXT PRIMARY KEY NOT NULL,"
+            + "patient_count INTEGER NOT NULL");
+
         SCHEMAS.put(Table.OBSERVATIONS, ""
             // uuid intentionally allows null values, because temporary observations inserted
             // locally after submitting a form don't have UUIDs. Note that PRIMARY KEY in SQLite
@@ -129,6 +154,14 @@ public class Database extends SQLiteOpenHelper {
             + "voided INTEGER,"
             + "UNIQUE (patient_uuid, encounter_uuid, concept_uuid)");
 
+        SCHEMAS.put(Table.LATEST_OBSERVATIONS, ""
+            + "patient_uuid TEXT NOT NULL,"
+            + "concept_uuid TEXT NOT NULL,"
+            + "uuid TEXT,"
+            + "encounter_millis INTEGER,"
+            + "value STRING,"
+            + "PRIMARY KEY (patient_uuid, concept_uuid)");
+
         SCHEMAS.put(Table.ORDERS, ""
             + "uuid TEXT PRIMARY KEY NOT NULL,"
             + "patient_uuid TEXT,"
@@ -136,6 +169,19 @@ public class Database extends SQLiteOpenHelper {
             + "start_millis INTEGER,"
             + "stop_millis INTEGER");
 
+        SCHEMAS.put(Table.OUTBOX, ""
+            + "rowid INTEGER PRIMARY KEY AUTOINCREMENT,"
+            + "idempotency_key TEXT UNIQUE NOT NULL,"
+            + "kind TEXT NOT NULL,"
+            + "patient_uuid TEXT,"
+            + "local_uuid TEXT,"
+            + "url_path TEXT NOT NULL,"
+            + "body TEXT NOT NULL,"
+            + "attempts INTEGER NOT NULL DEFAULT 0,"
+            + "created_millis INTEGER NOT NULL,"
+            + "rejected_status INTEGER,"
+            + "rejected_error TEXT");
+
         SCHEMAS.put(Table.CHART_ITEMS, ""
             + "rowid INTEGER PRIMARY KEY NOT NULL,"
             + "chart_uuid TEXT,"
@@ -167,21 +213,245 @@ public class Database extends SQLiteOpenHelper {
             + "sync_token TEXT NOT NULL");
     }
 
+    /** Tables that are SQLite full-text search (FTS4) virtual tables rather than plain tables. */
+    static final Set<Table> FTS_TABLES = EnumSet.of(Table.PATIENT_SEARCH);
+
+    // For the patient chart: all of a patient's observations, or those of one concept in
+    // time order; also covers the per-patient, per-concept max(encounter_millis) lookups.
+    private static final String OBSERVATIONS_PATIENT_INDEX =
+        "CREATE INDEX IF NOT EXISTS observations_patient_concept_millis"
+            + " ON observations (patient_uuid, concept_uuid, encounter_millis)";
+
+    // For the per-concept scans over all patients, such as rebuilding latest_observations.
+    private static final String OBSERVATIONS_CONCEPT_INDEX =
+        "CREATE INDEX IF NOT EXISTS observations_concept_patient_millis"
+            + " ON observations (concept_uuid, patient_uuid, encounter_millis)";
+
+    // For the patient list: the patients whose latest value of a concept is a given value, as
+    // used by ConceptFilter and ChartDataHelper.getLatestObservationsForConcept.
+    private static final String LATEST_OBSERVATIONS_CONCEPT_INDEX =
+        "CREATE INDEX IF NOT EXISTS latest_observations_concept_value"
+            + " ON latest_observations (concept_uuid, value, patient_uuid)";
+
+    /**
+     * Statements that create the indexes on the tables above, run whenever the tables are created.
+     * Each index should also be added in a migration, so that existing databases get it too.
+     */
+    static final String[] INDEXES = {
+        OBSERVATIONS_PATIENT_INDEX,
+        OBSERVATIONS_CONCEPT_INDEX,
+        LATEST_OBSERVATIONS_CONCEPT_INDEX
+    };
+
+    // The value of patient_search.location_name for the patients in a given location.
+    private static final String LOCATION_NAMES_FOR_SEARCH =
+        "SELECT group_concat(name, ' ') FROM location_names WHERE location_uuid = ";
+
+    /**
+     * Triggers that keep patient_search up to date with every write to the patients and
+     * location_names tables, whichever code path makes it.  The patients table is written with
+     * INSERT OR REPLACE, which deletes the old row without firing delete triggers, so the old
+     * index entry is removed before each insert.
+     */
+    static final String[] PATIENT_SEARCH_TRIGGERS = {
+        "CREATE TRIGGER IF NOT EXISTS patient_search_before_insert"
+            + " BEFORE INSERT ON patients BEGIN"
+            + "     DELETE FROM patient_search"
+            + "     WHERE docid IN (SELECT rowid FROM patients WHERE uuid = NEW.uuid);"
+            + " END",
+        "CREATE TRIGGER IF NOT EXISTS patient_search_after_insert"
+            + " AFTER INSERT ON patients BEGIN"
+            + "     INSERT INTO patient_search"
+            + "         (docid, id, family_name, given_name, location_name)"
+            + "     VALUES (NEW.rowid, NEW.id, NEW.family_name, NEW.given_name,"
+            + "         (" + LOCATION_NAMES_FOR_SEARCH + "NEW.location_uuid));"
+            + " END",
+        "CREATE TRIGGER IF NOT EXISTS patient_search_after_update"
+            + " AFTER UPDATE ON patients BEGIN"
+            + "     DELETE FROM patient_search WHERE docid = OLD.rowid;"
+            + "     INSERT INTO patient_search"
+            + "         (docid, id, family_name, given_name, location_name)"
+            + "     VALUES (NEW.rowid, NEW.id, NEW.family_name, NEW.given_name,"
+            + "         (" + LOCATION_NAMES_FOR_SEARCH + "NEW.location_uuid));"
+            + " END",
+        "CREATE TRIGGER IF NOT EXISTS patient_search_after_delete"
+            + " AFTER DELETE ON patients BEGIN"
+            + "     DELETE FROM patient_search WHERE docid = OLD.rowid;"
+            + " END",
+        "CREATE TRIGGER IF NOT EXISTS patient_search_location_name_insert"
+            + " AFTER INSERT ON location_names BEGIN"
+            + "     UPDATE patient_search"
+            + "     SET location_name = (" + LOCATION_NAMES_FOR_SEARCH + "NEW.location_uuid)"
+            + "     WHERE docid IN"
+            + "         (SELECT rowid FROM patients WHERE location_uuid = NEW.location_uuid);"
+            + " END",
+        "CREATE TRIGGER IF NOT EXISTS patient_search_location_name_update"
+            + " AFTER UPDATE ON location_names BEGIN"
+            + "     UPDATE patient_search"
+            + "     SET location_name = (" + LOCATION_NAMES_FOR_SEARCH + "OLD.location_uuid)"
+            + "     WHERE docid IN"
+            + "         (SELECT rowid FROM patients WHERE location_uuid = OLD.location_uuid);"
+            + "     UPDATE patient_search"
+            + "     SET location_name = (" + LOCATION_NAMES_FOR_SEARCH + "NEW.location_uuid)"
+            + "     WHERE docid IN"
+            + "         (SELECT rowid FROM patients WHERE location_uuid = NEW.location_uuid);"
+            + " END",
+        "CREATE TRIGGER IF NOT EXISTS patient_search_location_name_delete"
+            + " AFTER DELETE ON location_names BEGIN"
+            + "     UPDATE patient_search"
+            + "     SET location_name = (" + LOCATION_NAMES_FOR_SEARCH + "OLD.location_uuid)"
+            + "     WHERE docid IN"
+            + "         (SELECT rowid FROM patients WHERE location_uuid = OLD.location_uuid);"
+            + " END"
+    };
+
+    // Statements used in PATIENT_COUNT_TRIGGERS to adjust the count for one location; format them
+    // with an expression for the location UUID, such as NEW.location_uuid.
+    private static final String INCREMENT_PATIENT_COUNT = ""
+        + " INSERT OR IGNORE INTO location_patient_counts (location_uuid, patient_count)"
+        + "     SELECT %1$s, 0 WHERE %1$s IS NOT NULL;"
+        + " UPDATE location_patient_counts SET patient_count = patient_count + 1"
+        + "     WHERE location_uuid = %1$s;";
+    private static final String DECREMENT_PATIENT_COUNT = ""
+        + " UPDATE location_patient_counts SET patient_count = patient_count - 1"
+        + "     WHERE location_uuid = %1$s;";
+
+    /**
+     * Triggers that keep location_patient_counts up to date as patients are added, moved, and
+     * deleted.  As for patient_search, an INSERT OR REPLACE of an existing patient first takes
+     * the old row out of its location's count.
+     */
+    static final String[] PATIENT_COUNT_TRIGGERS = {
+        "CREATE TRIGGER IF NOT EXISTS location_patient_counts_before_insert"
+            + " BEFORE INSERT ON patients BEGIN"
+            + String.format(DECREMENT_PATIENT_COUNT,
+                "(SELECT location_uuid FROM patients WHERE uuid = NEW.uuid)")
+            + " END",
+        "CREATE TRIGGER IF NOT EXISTS location_patient_counts_after_insert"
+            + " AFTER INSERT ON patients BEGIN"
+            + String.format(INCREMENT_PATIENT_COUNT, "NEW.location_uuid")
+            + " END",
+        "CREATE TRIGGER IF NOT EXISTS location_patient_counts_after_update"
+            + " AFTER UPDATE OF location_uuid ON patients"
+            + " WHEN OLD.location_uuid IS NOT NEW.location_uuid BEGIN"
+            + String.format(DECREMENT_PATIENT_COUNT, "OLD.location_uuid")
+            + String.format(INCREMENT_PATIENT_COUNT, "NEW.location_uuid")
+            + " END",
+        "CREATE TRIGGER IF NOT EXISTS location_patient_counts_after_delete"
+            + " AFTER DELETE ON patients BEGIN"
+            + String.format(DECREMENT_PATIENT_COUNT, "OLD.location_uuid")
+            + " END"
+    };
+
+    /** Statements that recompute all of location_patient_counts from the patients table. */
+    static final String[] REBUILD_LOCATION_PATIENT_COUNTS = {
+        "DELETE FROM location_patient_counts",
+        "INSERT INTO location_patient_counts (location_uuid, patient_count)"
+            + " SELECT location_uuid, count(*) FROM patients"
+            + " WHERE location_uuid IS NOT NULL GROUP BY location_uuid"
+    };
+
+    /** Statements that recompute the entire patient_search index from the patients table. */
+    static final String[] REBUILD_PATIENT_SEARCH = {
+        "DELETE FROM patient_search",
+        "INSERT INTO patient_search (docid, id, family_name, given_name, location_name)"
+            + " SELECT rowid, id, family_name, given_name,"
+            + "     (" + LOCATION_NAMES_FOR_SEARCH + "patients.location_uuid)"
+            + " FROM patients"
+    };
+
+    /**
+     * Statements that bring the latest_observations row for one patient and concept up to date
+     * with the observations table.  Each statement takes the patient UUID and the concept UUID
+     * as its two arguments, and they must be run in order.
+     */
+    public static final String[] REFRESH_LATEST_OBSERVATION = {
+        "DELETE FROM latest_observations WHERE patient_uuid = ? AND concept_uuid = ?",
+        "INSERT INTO latest_observations"
+            + " (patient_uuid, concept_uuid, uuid, encounter_millis, value)"
+            + " SELECT patient_uuid, concept_uuid, uuid, encounter_millis, value"
+            + " FROM observations"
+            + " WHERE patient_uuid = ? AND concept_uuid = ? AND voided IS NOT 1"
+            + " ORDER BY encounter_millis DESC LIMIT 1"
+    };
+
+    /** Statements that recompute the entire latest_observations table from the observations. */
+    static final String[] REBUILD_LATEST_OBSERVATIONS = {
+        "DELETE FROM latest_observations",
+        // SQLite takes the bare columns from the row that has the max(encounter_millis).
+        "INSERT INTO latest_observations"
+            + " (patient_uuid, concept_uuid, uuid, encounter_millis, value)"
+            + " SELECT patient_uuid, concept_uuid, uuid, max(encounter_millis), value"
+            + " FROM observations"
+            + " WHERE voided IS NOT 1 AND patient_uuid IS NOT NULL AND concept_uuid IS NOT NULL"
+            + " GROUP BY patient_uuid, concept_uuid"
+    };
+
+    /**
+     * Migrations that upgrade the schema in place, keeping the data.  The statements for key N
+     * upgrade a database from version N to version N + 1.
+     */
+    static final Map<Integer, String[]> MIGRATIONS = new HashMap<>();
+
+    static {
+        MIGRATIONS.put(29, new String[] {
+            OBSERVATIONS_PATIENT_INDEX,
+            OBSERVATIONS_CONCEPT_INDEX
+        });
+        MIGRATIONS.put(30, new String[] {
+            "CREATE TABLE " + Table.LATEST_OBSERVATIONS
+                + " (" + SCHEMAS.get(Table.LATEST_OBSERVATIONS) + ")",
+            LATEST_OBSERVATIONS_CONCEPT_INDEX,
+            REBUILD_LATEST_OBSERVATIONS[0],
+            REBUILD_LATEST_OBSERVATIONS[1]
+        });
+        List<String> addPatientSearch = new ArrayList<>();
+        addPatientSearch.add(getCreateStatement(Table.PATIENT_SEARCH));
+        addPatientSearch.addAll(Arrays.asList(PATIENT_SEARCH_TRIGGERS));
+        addPatientSearch.addAll(Arrays.asList(REBUILD_PATIENT_SEARCH));
+        MIGRATIONS.put(31, addPatientSearch.toArray(new String[0]));
+        List<String> addPatientCounts = new ArrayList<>();
+        addPatientCounts.add(getCreateStatement(Table.LOCATION_PATIENT_COUNTS));
+        addPatientCounts.addAll(Arrays.asList(PATIENT_COUNT_TRIGGERS));
+        addPatientCounts.addAll(Arrays.asList(REBUILD_LOCATION_PATIENT_COUNTS));
+        MIGRATIONS.put(32, addPatientCounts.toArray(new String[0]));
+        MIGRATIONS.put(33, new String[] {
+            getCreateStatement(Table.OUTBOX)
+        });
+    }
+
     public Database(Context context) {
-        super(context, DATABASE_FILENAME, null, DATABASE_VERSION);
-        file = context.getDatabasePath(DATABASE_FILENAME);
+        this(context, DATABASE_FILENAME);
+    }
+
+    /** Opens a database with this schema in the given file, e.g. a scratch file for tests. */
+    public Database(Context context, String filename) {
+        super(context, filename, null, DATABASE_VERSION);
+        file = context.getDatabasePath(filename);
     }
 
     @Override public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // This database is only a cache of data on the server, so its upgrade
-        // policy is to discard all the data and start over.
-        clear(db);
+        if (oldVersion < OLDEST_MIGRATABLE_VERSION) {
+            // This database is only a cache of data on the server, so when it
+            // can't be migrated, the policy is to discard all the data and start over.
+            clear(db);
+            return;
+        }
+        LOG.i("Migrating database from version %d to %d", oldVersion, newVersion);
+        for (int version = oldVersion; version < newVersion; version++) {
+            for (String sql : MIGRATIONS.get(version)) {
+                db.execSQL(sql);
+            }
+        }
     }
 
     public void clear(SQLiteDatabase db) {
         LOG.i("Clearing database.");
         for (Table table : Table.values()) {
-            db.execSQL("DROP TABLE IF EXISTS " + table);
+            // The outbox holds writes that aren't on the server yet, so they can't be re-synced.
+            if (table != Table.OUTBOX) {
+                db.execSQL("DROP TABLE IF EXISTS " + table);
+            }
         }
         onCreate(db);
     }
@@ -189,8 +459,25 @@ public class Database extends SQLiteOpenHelper {
     @Override public void onCreate(SQLiteDatabase db) {
         LOG.i("Initializing database");
         for (Table table : Table.values()) {
-            db.execSQL("CREATE TABLE " + table + " (" + SCHEMAS.get(table) + ");");
+            db.execSQL(getCreateStatement(table));
         }
+        for (String sql : INDEXES) {
+            db.execSQL(sql);
+        }
+        for (String sql : PATIENT_SEARCH_TRIGGERS) {
+            db.execSQL(sql);
+        }
+        for (String sql : PATIENT_COUNT_TRIGGERS) {
+            db.execSQL(sql);
+        }
+    }
+
+    /** Returns the statement that creates a table, if it doesn't already exist. */
+    static String getCreateStatement(Table table) {
+        return FTS_TABLES.contains(table)
+            ? "CREATE VIRTUAL TABLE IF NOT EXISTS " + table + " USING fts4("
+                + SCHEMAS.get(table) + ")"
+            : "CREATE TABLE IF NOT EXISTS " + table + " (" + SCHEMAS.get(table) + ")";
     }
 
     public void clear() {
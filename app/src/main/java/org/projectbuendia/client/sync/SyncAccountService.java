@@ -32,6 +32,9 @@ import org.projectbuendia.client.sync.SyncAdapter.SyncPhase;
 import org.projectbuendia.client.providers.Contracts;
 import org.projectbuendia.client.utils.Logger;
 
+import java.util.EnumSet;
+import java.util.Set;
+
 import javax.inject.Inject;
 
 /**
@@ -44,7 +47,6 @@ public class SyncAccountService extends Service {
 
     public static final String ACCOUNT_NAME = "sync";
     private static final Logger LOG = Logger.create();
-    private static final long SYNC_PERIOD = 5*60;  // 5 minutes (in seconds)
     @Inject static AppSettings sSettings;
 
     private Authenticator mAuthenticator;
@@ -55,6 +57,19 @@ public class SyncAccountService extends Service {
             startFullSync();
             sSettings.setSyncAccountInitialized(true);
         }
+        // Accounts created by older versions have a longer period; this updates it.
+        addPeriodicSync();
+    }
+
+    /**
+     * Registers the periodic sync.  Each periodic sync only does the phases that
+     * {@link AdaptiveSyncPolicy} says are due, so it runs often but usually does little.
+     */
+    private static void addPeriodicSync() {
+        Bundle b = new Bundle();
+        b.putBoolean(SyncOption.FULL_SYNC.name(), true);
+        ContentResolver.addPeriodicSync(getAccount(), Contracts.CONTENT_AUTHORITY, b,
+            AdaptiveSyncPolicy.PERIODIC_SYNC_SECONDS);
     }
 
     /**
@@ -65,12 +80,9 @@ public class SyncAccountService extends Service {
         Account account = getAccount();
         AccountManager accountManager = (AccountManager) context.getSystemService(ACCOUNT_SERVICE);
         if (accountManager.addAccountExplicitly(account, null, null)) {
-            // Enable automatic sync for the account with a period of SYNC_PERIOD.
+            // Enable automatic sync for the account; initialize() sets up the periodic sync.
             ContentResolver.setIsSyncable(account, Contracts.CONTENT_AUTHORITY, 1);
             ContentResolver.setSyncAutomatically(account, Contracts.CONTENT_AUTHORITY, true);
-            Bundle b = new Bundle();
-            b.putBoolean(SyncOption.FULL_SYNC.name(), true);
-            ContentResolver.addPeriodicSync(account, Contracts.CONTENT_AUTHORITY, b, SYNC_PERIOD);
             return true;
         }
         return false;
@@ -99,15 +111,21 @@ public class SyncAccountService extends Service {
         // Start by canceling any existing syncs, which may delay this one.
         ContentResolver.cancelSync(getAccount(), Contracts.CONTENT_AUTHORITY);
 
+        // Fetch just the newly added observations.
+        startPhasesSync(EnumSet.of(SyncPhase.SYNC_OBSERVATIONS, SyncPhase.SYNC_ORDERS));
+    }
+
+    /** Starts a sync of just the given phases. */
+    public static void startPhasesSync(Set<SyncPhase> phases) {
         Bundle b = new Bundle();
         // Request aggressively that the sync should start straight away.
         b.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
         b.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
 
-        // Fetch just the newly added observations.
-        b.putBoolean(SyncPhase.SYNC_OBSERVATIONS.name(), true);
-        b.putBoolean(SyncPhase.SYNC_ORDERS.name(), true);
-        LOG.i("Requesting incremental observations / orders sync");
+        for (SyncPhase phase : phases) {
+            b.putBoolean(phase.name(), true);
+        }
+        LOG.i("Requesting sync of %s", phases);
         ContentResolver.requestSync(getAccount(), Contracts.CONTENT_AUTHORITY, b);
     }
 
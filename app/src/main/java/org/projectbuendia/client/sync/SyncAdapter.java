@@ -23,18 +23,18 @@ import android.content.SyncResult;
 import android.database.Cursor;
 import android.os.Bundle;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.support.annotation.Nullable;
 import android.support.annotation.StringRes;
-import android.util.TimingLogger;
 
 import org.joda.time.Instant;
 import org.projectbuendia.client.App;
 import org.projectbuendia.client.R;
+import org.projectbuendia.client.net.HttpStats;
 import org.projectbuendia.client.providers.BuendiaProvider;
 import org.projectbuendia.client.providers.Contracts;
 import org.projectbuendia.client.providers.Contracts.Misc;
 import org.projectbuendia.client.providers.Contracts.SyncTokens;
-import org.projectbuendia.client.providers.SQLiteDatabaseTransactionHelper;
 import org.projectbuendia.client.sync.controllers.ChartsSyncPhaseRunnable;
 import org.projectbuendia.client.sync.controllers.ConceptsSyncPhaseRunnable;
 import org.projectbuendia.client.sync.controllers.FormsSyncPhaseRunnable;
@@ -56,9 +56,6 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
 
     private static final Logger LOG = Logger.create();
 
-    /** Named used during the sync process for SQL savepoints. */
-    private static final String SYNC_SAVEPOINT_NAME = "SYNC_SAVEPOINT";
-
     /** Content resolver, for performing database operations. */
     private final ContentResolver mContentResolver;
     /** Tracks whether the sync has been canceled. */
@@ -67,24 +64,34 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
     /**
      * Keys in the extras bundle used to select which sync phases to do.
      * Select a phase by setting a boolean value of true for the appropriate key.
+     * <p>
+     * Each phase lists the phases whose database updates must be applied before its own, when
+     * both are requested.  A phase can only depend on phases declared before it.
      */
     public enum SyncPhase {
         SYNC_USERS(R.string.syncing_users, new UsersSyncPhaseRunnable()),
         SYNC_LOCATIONS(R.string.syncing_locations, new LocationsSyncPhaseRunnable()),
         SYNC_CHART_ITEMS(R.string.syncing_charts, new ChartsSyncPhaseRunnable()),
         SYNC_CONCEPTS(R.string.syncing_concepts, new ConceptsSyncPhaseRunnable()),
-        SYNC_PATIENTS(R.string.syncing_patients, new PatientsSyncPhaseRunnable()),
-        SYNC_OBSERVATIONS(R.string.syncing_observations, new ObservationsSyncPhaseRunnable()),
-        SYNC_ORDERS(R.string.syncing_orders, new OrdersSyncPhaseRunnable()),
-        SYNC_FORMS(R.string.syncing_forms, new FormsSyncPhaseRunnable());
+        SYNC_PATIENTS(R.string.syncing_patients, new PatientsSyncPhaseRunnable(),
+            SYNC_LOCATIONS),
+        SYNC_OBSERVATIONS(R.string.syncing_observations, new ObservationsSyncPhaseRunnable(),
+            SYNC_PATIENTS, SYNC_CONCEPTS),
+        SYNC_ORDERS(R.string.syncing_orders, new OrdersSyncPhaseRunnable(),
+            SYNC_PATIENTS),
+        // Forms embed the list of known users, so they are cached after the users are synced.
+        SYNC_FORMS(R.string.syncing_forms, new FormsSyncPhaseRunnable(),
+            SYNC_USERS);
 
         @StringRes
         public final int message;
         public final SyncPhaseRunnable runnable;
+        public final SyncPhase[] dependencies;
 
-        SyncPhase(int message, SyncPhaseRunnable runnable) {
+        SyncPhase(int message, SyncPhaseRunnable runnable, SyncPhase... dependencies) {
             this.message = message;
             this.runnable = runnable;
+            this.dependencies = dependencies;
         }
     }
 
@@ -119,6 +126,36 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
         String authority,
         ContentProviderClient provider,
         SyncResult syncResult) {
+        // Decide which phases to do.  If FULL_SYNC is set or no phases
+        // are specified, do them all.
+        Set<SyncPhase> phases = new HashSet<>();
+        for (SyncPhase phase : SyncPhase.values()) {
+            if (extras.getBoolean(phase.name())) {
+                phases.add(phase);
+            }
+        }
+        boolean fullSync = phases.isEmpty() || extras.getBoolean(SyncOption.FULL_SYNC.name());
+        if (fullSync) {
+            Collections.addAll(phases, SyncPhase.values());
+        }
+
+        // Periodic syncs only do the phases that the adaptive policy says are due, and are
+        // skipped entirely while backing off after failures.  Requested syncs do everything.
+        final AdaptiveSyncPolicy policy = AdaptiveSyncPolicy.getInstance();
+        if (!extras.getBoolean(ContentResolver.SYNC_EXTRAS_MANUAL)) {
+            long now = SystemClock.elapsedRealtime();
+            if (policy.isBackingOff(now)) {
+                LOG.i("Skipping periodic sync: backing off after failed syncs.");
+                return;
+            }
+            phases.retainAll(policy.getDuePhases(now));
+            if (phases.isEmpty()) {
+                LOG.i("Skipping periodic sync: no phases are due.");
+                return;
+            }
+            fullSync = fullSync && phases.size() == SyncPhase.values().length;
+        }
+
         // Broadcast that sync is starting.
         Intent syncStartedIntent =
             new Intent(getContext(), SyncManager.SyncStatusBroadcastReceiver.class);
@@ -139,6 +176,7 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
         // made a determination that the server is definitely accessible.
         if (App.getInstance().getHealthMonitor().isApiUnavailable()) {
             LOG.e("Abort sync: Buendia API is unavailable.");
+            policy.recordSyncFailed(SystemClock.elapsedRealtime());
             getContext().sendBroadcast(syncFailedIntent);
             return;
         }
@@ -150,53 +188,41 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
             return;
         }
 
-        // Decide which phases to do.  If FULL_SYNC is set or no phases
-        // are specified, do them all.
-        Set<SyncPhase> phases = new HashSet<>();
-        for (SyncPhase phase : SyncPhase.values()) {
-            if (extras.getBoolean(phase.name())) {
-                phases.add(phase);
-            }
-        }
-        boolean fullSync = phases.isEmpty() || extras.getBoolean(SyncOption.FULL_SYNC.name());
-        if (fullSync) {
-            Collections.addAll(phases, SyncPhase.values());
-        }
-
         LOG.i("Requested phases are: %s", phases);
         reportProgress(0, R.string.sync_in_progress);
 
+        // There is no transaction around the sync as a whole.  Full-snapshot phases are each
+        // applied atomically, and incremental phases commit each page along with its sync token,
+        // so a sync that fails partway through keeps its progress and the next one resumes.
         BuendiaProvider buendiaProvider =
             (BuendiaProvider) (provider.getLocalContentProvider());
-        SQLiteDatabaseTransactionHelper dbTransactionHelper =
-            buendiaProvider.getDbTransactionHelper();
-        LOG.i("Setting savepoint %s", SYNC_SAVEPOINT_NAME);
-        dbTransactionHelper.startNamedTransaction(SYNC_SAVEPOINT_NAME);
-
-        TimingLogger timings = new TimingLogger(LOG.tag, "onPerformSync");
 
         try {
+            // Send writes made on this tablet first, so that the data fetched below includes
+            // them and doesn't overwrite their local copies with older values.
+            App.getInstance().getOutbox().sendPending();
+
             if (fullSync) {
                 Instant syncStartTime = Instant.now();
                 LOG.i("Recording full sync start time: " + syncStartTime);
                 storeFullSyncStartTime(provider, syncStartTime);
             }
 
-            float progressIncrement = 100.0f/phases.size();
-            int completedPhases = 0;
-            for (SyncPhase phase : SyncPhase.values()) {
-                if (!phases.contains(phase)) {
-                    continue;
-                }
-                checkCancellation("before " + phase);
-                LOG.i("--- Begin %s ---", phase);
-                reportProgress((int) (completedPhases * progressIncrement), phase.message);
-
-                phase.runnable.sync(mContentResolver, syncResult, provider);
-
-                timings.addSplit(phase.name() + " phase completed");
-                completedPhases++;
-            }
+            final float progressIncrement = 100.0f/phases.size();
+            HttpStats httpStats = App.getConnectionDetails().getVolley().getStats();
+            new SyncPhaseScheduler(phases, httpStats).run(
+                mContentResolver, syncResult, provider, buendiaProvider.getWritableDatabase(),
+                new SyncPhaseScheduler.PhaseListener() {
+                    @Override public void onPhaseStarting(SyncPhase phase, int numCompleted) {
+                        checkCancellation("before " + phase);
+                        reportProgress((int) (numCompleted * progressIncrement), phase.message);
+                    }
+
+                    @Override public void onPhaseCompleted(SyncPhase phase, boolean foundChanges) {
+                        policy.recordPhaseCompleted(
+                            phase, foundChanges, SystemClock.elapsedRealtime());
+                    }
+                });
             reportProgress(100, R.string.completing_sync);
 
             if (fullSync) {
@@ -205,29 +231,24 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
                 storeFullSyncEndTime(provider, syncEndTime);
             }
         } catch (CancellationException e) {
-            rollbackSavepoint(dbTransactionHelper);
             // Reset canceled state so that it doesn't interfere with next sync.
             LOG.i(e, "Sync canceled");
             getContext().sendBroadcast(syncCanceledIntent);
             return;
         } catch (OperationApplicationException e) {
-            rollbackSavepoint(dbTransactionHelper);
             LOG.e(e, "Error updating database during sync");
+            policy.recordSyncFailed(SystemClock.elapsedRealtime());
             syncResult.databaseError = true;
             getContext().sendBroadcast(syncFailedIntent);
             return;
         } catch (Throwable e) {
-            rollbackSavepoint(dbTransactionHelper);
             LOG.e(e, "Error during sync");
+            policy.recordSyncFailed(SystemClock.elapsedRealtime());
             syncResult.stats.numIoExceptions++;
             getContext().sendBroadcast(syncFailedIntent);
             return;
-        } finally {
-            LOG.i("Releasing savepoint %s", SYNC_SAVEPOINT_NAME);
-            dbTransactionHelper.releaseNamedTransaction(SYNC_SAVEPOINT_NAME);
-            dbTransactionHelper.close();
         }
-        timings.dumpToLog();
+        policy.recordSyncSucceeded();
 
         // Fire a broadcast indicating that sync has completed.
         Intent syncCompletedIntent =
@@ -272,11 +293,6 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
         provider.insert(Misc.CONTENT_URI, cv);
     }
 
-    private void rollbackSavepoint(SQLiteDatabaseTransactionHelper dbTransactionHelper) {
-        LOG.i("Rolling back savepoint %s", SYNC_SAVEPOINT_NAME);
-        dbTransactionHelper.rollbackNamedTransaction(SYNC_SAVEPOINT_NAME);
-    }
-
     /** Returns the server timestamp corresponding to the last observation sync. */
     @Nullable
     public static String getLastSyncToken(ContentProviderClient provider, Contracts.Table table)
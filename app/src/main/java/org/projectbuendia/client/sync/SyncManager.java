@@ -23,8 +23,15 @@ import org.projectbuendia.client.events.sync.SyncProgressEvent;
 import org.projectbuendia.client.events.sync.SyncStartedEvent;
 import org.projectbuendia.client.events.sync.SyncSucceededEvent;
 import org.projectbuendia.client.providers.Contracts;
+import org.projectbuendia.client.providers.Contracts.Table;
+import org.projectbuendia.client.sync.SyncAdapter.SyncPhase;
 import org.projectbuendia.client.utils.Logger;
 
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
 import javax.annotation.Nullable;
 
 import de.greenrobot.event.EventBus;
@@ -51,6 +58,21 @@ public class SyncManager {
      */
     static final String SYNC_PROGRESS_LABEL = "sync-progress-label";
 
+    /** The phase that fetches each table. */
+    private static final Map<String, SyncPhase> TABLE_PHASES = new HashMap<>();
+    static {
+        TABLE_PHASES.put(Table.USERS.name, SyncPhase.SYNC_USERS);
+        TABLE_PHASES.put(Table.LOCATIONS.name, SyncPhase.SYNC_LOCATIONS);
+        TABLE_PHASES.put(Table.LOCATION_NAMES.name, SyncPhase.SYNC_LOCATIONS);
+        TABLE_PHASES.put(Table.CHART_ITEMS.name, SyncPhase.SYNC_CHART_ITEMS);
+        TABLE_PHASES.put(Table.CONCEPTS.name, SyncPhase.SYNC_CONCEPTS);
+        TABLE_PHASES.put(Table.CONCEPT_NAMES.name, SyncPhase.SYNC_CONCEPTS);
+        TABLE_PHASES.put(Table.PATIENTS.name, SyncPhase.SYNC_PATIENTS);
+        TABLE_PHASES.put(Table.OBSERVATIONS.name, SyncPhase.SYNC_OBSERVATIONS);
+        TABLE_PHASES.put(Table.ORDERS.name, SyncPhase.SYNC_ORDERS);
+        TABLE_PHASES.put(Table.FORMS.name, SyncPhase.SYNC_FORMS);
+    }
+
     @Nullable private final AppSettings mSettings;
 
     public SyncManager(@Nullable AppSettings settings) {
@@ -92,6 +114,37 @@ public class SyncManager {
         SyncAccountService.startObservationsAndOrdersSync();
     }
 
+    /**
+     * Starts a sync of the phases that fetch the given tables, e.g. when the server reports
+     * changes to them.  Tables that no phase fetches are ignored.
+     */
+    public void startSyncForTables(Set<String> tableNames) {
+        Set<SyncPhase> phases = getPhasesForTables(tableNames);
+        if (!phases.isEmpty()) {
+            SyncAccountService.startPhasesSync(phases);
+        }
+    }
+
+    /** Returns the phases that fetch the given tables. */
+    static Set<SyncPhase> getPhasesForTables(Set<String> tableNames) {
+        Set<SyncPhase> phases = EnumSet.noneOf(SyncPhase.class);
+        for (String name : tableNames) {
+            SyncPhase phase = TABLE_PHASES.get(name);
+            if (phase != null) {
+                phases.add(phase);
+            }
+        }
+        return phases;
+    }
+
+    /**
+     * Returns how long to wait between observation and order syncs while a patient chart is
+     * open, which lengthens while they find nothing new or syncs are failing.
+     */
+    public long getObservationSyncPeriodMillis() {
+        return AdaptiveSyncPolicy.getInstance().getObservationPollMillis();
+    }
+
     /**
      * A {@link BroadcastReceiver} that listens for sync status broadcasts sent by
      * {@link SyncAdapter}.
@@ -0,0 +1,259 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.sync;
+
+import android.content.ContentProviderClient;
+import android.content.ContentResolver;
+import android.content.SyncResult;
+import android.os.SystemClock;
+
+import net.sqlcipher.database.SQLiteDatabase;
+
+import org.projectbuendia.client.net.HttpStats;
+import org.projectbuendia.client.sync.SyncAdapter.SyncPhase;
+import org.projectbuendia.client.sync.controllers.PrefetchingSyncPhaseRunnable;
+import org.projectbuendia.client.utils.Logger;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs a set of {@link SyncPhase}s.  The server data for every
+ * {@link PrefetchingSyncPhaseRunnable} phase is fetched up front, concurrently, on a small thread
+ * pool.  Database updates are then applied one phase at a time on the calling thread, each phase
+ * only after all the requested phases it depends on have been applied.  Among the phases that are
+ * ready, one whose data has already arrived is applied first, so a slow response doesn't hold up
+ * unrelated phases.
+ * <p>
+ * Each prefetched phase replaces a complete snapshot of its data, so it is applied within its own
+ * database transaction and rolled back if it fails.  The transaction holds the database lock, so
+ * writes from other threads wait for the phase to finish rather than joining it; since the data
+ * was fetched beforehand, the lock is only held while the phase writes.  Other phases commit their
+ * own progress: incremental phases page by page, and the users phase in one transaction once its
+ * users have been fetched.
+ * <p>
+ * Along with the time spent on each phase, the bytes transferred during the sync are logged for
+ * each server endpoint, as sent and received by the app and as carried on the wire.  Each phase
+ * fetches from its own endpoints, so this shows the effect of compression on each phase.
+ */
+class SyncPhaseScheduler {
+
+    private static final Logger LOG = Logger.create();
+
+    /** The maximum number of phases whose data is fetched at the same time. */
+    private static final int MAX_CONCURRENT_FETCHES = 3;
+
+    /** Receives notice of each phase just before its database update begins and after it ends. */
+    interface PhaseListener {
+        /**
+         * Called before each phase is applied.  Throwing a {@link CancellationException} stops
+         * the sync; no further phases are applied.
+         */
+        void onPhaseStarting(SyncPhase phase, int numCompletedPhases)
+            throws CancellationException;
+
+        /**
+         * Called after each phase has been applied successfully.
+         * @param foundChanges true if the phase inserted, updated, or deleted anything
+         */
+        void onPhaseCompleted(SyncPhase phase, boolean foundChanges);
+    }
+
+    private final EnumSet<SyncPhase> mPhases;
+    private final HttpStats mHttpStats;
+
+    SyncPhaseScheduler(Set<SyncPhase> phases, HttpStats httpStats) {
+        mPhases = EnumSet.noneOf(SyncPhase.class);
+        mPhases.addAll(phases);
+        mHttpStats = httpStats;
+    }
+
+    /** Runs all the phases, logging the time and bytes spent on each one. */
+    void run(ContentResolver contentResolver, SyncResult syncResult,
+             ContentProviderClient providerClient,
+             SQLiteDatabase db,
+             PhaseListener listener) throws Throwable {
+        ExecutorService executor = Executors.newFixedThreadPool(MAX_CONCURRENT_FETCHES);
+        Map<SyncPhase, Fetch<?>> fetches = new EnumMap<>(SyncPhase.class);
+        Map<SyncPhase, PhaseTiming> timings = new EnumMap<>(SyncPhase.class);
+        Map<String, HttpStats.ByteCounts> bytesBefore = mHttpStats.getByteCounts();
+        try {
+            for (SyncPhase phase : mPhases) {
+                if (phase.runnable instanceof PrefetchingSyncPhaseRunnable) {
+                    fetches.put(phase, Fetch.start(
+                        (PrefetchingSyncPhaseRunnable<?>) phase.runnable, executor));
+                }
+            }
+
+            Set<SyncPhase> remaining = EnumSet.copyOf(mPhases);
+            int numCompleted = 0;
+            while (!remaining.isEmpty()) {
+                SyncPhase phase = chooseNextPhase(remaining, fetches);
+                listener.onPhaseStarting(phase, numCompleted);
+                LOG.i("--- Begin %s ---", phase);
+
+                PhaseTiming timing = new PhaseTiming();
+                long numChangesBefore = countChanges(syncResult);
+                long start = SystemClock.elapsedRealtime();
+                Fetch<?> fetch = fetches.get(phase);
+                if (fetch != null) {
+                    fetch.apply(contentResolver, syncResult, providerClient, db, timing);
+                } else {
+                    phase.runnable.sync(contentResolver, syncResult, providerClient);
+                }
+                timing.totalMillis = SystemClock.elapsedRealtime() - start;
+                timings.put(phase, timing);
+                listener.onPhaseCompleted(phase, countChanges(syncResult) > numChangesBefore);
+
+                remaining.remove(phase);
+                numCompleted++;
+            }
+        } finally {
+            executor.shutdownNow();
+            for (Map.Entry<SyncPhase, PhaseTiming> entry : timings.entrySet()) {
+                LOG.i("%s: %s", entry.getKey(), entry.getValue());
+            }
+            LOG.i("Bytes transferred, by endpoint:%s", mHttpStats.describeBytesSince(bytesBefore));
+            LOG.i("HTTP stats: %s", mHttpStats.getSummary());
+        }
+    }
+
+    private static long countChanges(SyncResult syncResult) {
+        return syncResult.stats.numInserts + syncResult.stats.numUpdates
+            + syncResult.stats.numDeletes;
+    }
+
+    /**
+     * Chooses the next phase to apply: the first phase (in declaration order) whose dependencies
+     * are all applied and whose data is already available, or failing that, the first phase whose
+     * dependencies are all applied.
+     */
+    private SyncPhase chooseNextPhase(Set<SyncPhase> remaining, Map<SyncPhase, Fetch<?>> fetches) {
+        List<SyncPhase> ready = new ArrayList<>();
+        for (SyncPhase phase : remaining) {
+            boolean dependenciesApplied = true;
+            for (SyncPhase dependency : phase.dependencies) {
+                if (remaining.contains(dependency)) {
+                    dependenciesApplied = false;
+                    break;
+                }
+            }
+            if (dependenciesApplied) {
+                ready.add(phase);
+            }
+        }
+        if (ready.isEmpty()) {
+            throw new IllegalStateException("Circular dependency among sync phases " + remaining);
+        }
+        for (SyncPhase phase : ready) {
+            Fetch<?> fetch = fetches.get(phase);
+            if (fetch != null && fetch.mFuture.isDone()) {
+                return phase;
+            }
+        }
+        return ready.get(0);
+    }
+
+    /** Times spent on one phase, in milliseconds. */
+    private static class PhaseTiming {
+        /** Time spent fetching the phase's data on the thread pool, or -1 if not prefetched. */
+        long fetchMillis = -1;
+        /** Time the sync thread spent blocked waiting for the prefetched data. */
+        long waitMillis;
+        /** Total time the sync thread spent on the phase, including any waiting. */
+        long totalMillis;
+
+        @Override public String toString() {
+            return fetchMillis < 0
+                ? String.format("%d ms", totalMillis)
+                : String.format("%d ms (fetched in %d ms, waited %d ms, applied in %d ms)",
+                    totalMillis, fetchMillis, waitMillis, totalMillis - waitMillis);
+        }
+    }
+
+    /** A fetch in progress for a {@link PrefetchingSyncPhaseRunnable}. */
+    private static class Fetch<R> {
+        private final PrefetchingSyncPhaseRunnable<R> mRunnable;
+        private final Future<R> mFuture;
+        private volatile long mFetchMillis;
+
+        static <R> Fetch<R> start(
+            PrefetchingSyncPhaseRunnable<R> runnable, ExecutorService executor) {
+            return new Fetch<>(runnable, executor);
+        }
+
+        private Fetch(final PrefetchingSyncPhaseRunnable<R> runnable, ExecutorService executor) {
+            mRunnable = runnable;
+            mFuture = executor.submit(new Callable<R>() {
+                @Override public R call() throws Exception {
+                    long start = SystemClock.elapsedRealtime();
+                    try {
+                        return runnable.fetch();
+                    } catch (Exception | Error e) {
+                        throw e;
+                    } catch (Throwable t) {
+                        throw new ThrowableWrapper(t);
+                    } finally {
+                        mFetchMillis = SystemClock.elapsedRealtime() - start;
+                    }
+                }
+            });
+        }
+
+        /**
+         * Waits for the fetched data, then applies it to the database in one transaction, which
+         * is rolled back if the update fails.
+         */
+        void apply(ContentResolver contentResolver, SyncResult syncResult,
+                   ContentProviderClient providerClient, SQLiteDatabase db,
+                   PhaseTiming timing) throws Throwable {
+            long start = SystemClock.elapsedRealtime();
+            R fetched;
+            try {
+                fetched = mFuture.get();
+            } catch (ExecutionException e) {
+                // Rethrow the original failure so the caller can classify it.
+                Throwable cause = e.getCause();
+                if (cause instanceof ThrowableWrapper) {
+                    cause = cause.getCause();
+                }
+                throw cause != null ? cause : e;
+            }
+            timing.waitMillis = SystemClock.elapsedRealtime() - start;
+            timing.fetchMillis = mFetchMillis;
+            db.beginTransaction();
+            try {
+                mRunnable.apply(fetched, contentResolver, syncResult, providerClient);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+
+        /** Carries a Throwable that is neither an Exception nor an Error out of a Callable. */
+        private static class ThrowableWrapper extends Exception {
+            ThrowableWrapper(Throwable cause) {
+                super(cause);
+            }
+        }
+    }
+}
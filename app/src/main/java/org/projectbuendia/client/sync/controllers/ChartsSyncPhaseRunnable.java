@@ -15,34 +15,68 @@ import org.projectbuendia.client.json.JsonChartSection;
 import org.projectbuendia.client.models.AppModel;
 import org.projectbuendia.client.net.OpenMrsChartServer;
 import org.projectbuendia.client.providers.Contracts;
+import org.projectbuendia.client.ui.chart.ChartRenderer;
+import org.projectbuendia.client.ui.chart.ObsFormat;
 import org.projectbuendia.client.utils.Logger;
 import org.projectbuendia.client.utils.Utils;
 
 import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
 
 /**
  * Handles syncing charts. Always fetches everything. This is okay because the full set of chart
- * layouts is usually fairly small in size.
+ * layouts is usually fairly small in size, and it is only written when it has changed.
  */
-public class ChartsSyncPhaseRunnable implements SyncPhaseRunnable {
+public class ChartsSyncPhaseRunnable extends SnapshotSyncPhaseRunnable<JsonChart> {
     private static final Logger LOG = Logger.create();
 
+    public ChartsSyncPhaseRunnable() {
+        super(Contracts.Table.CHART_ITEMS);
+    }
+
     @Override
-    public void sync(ContentResolver contentResolver, SyncResult syncResult,
-            ContentProviderClient providerClient)
-            throws Throwable {
+    protected JsonChart fetchSnapshot() throws ExecutionException, InterruptedException {
         OpenMrsChartServer chartServer = new OpenMrsChartServer(App.getConnectionDetails());
         RequestFuture<JsonChart> future = RequestFuture.newFuture();
         // errors handled by caller
         chartServer.getChartStructure(AppModel.CHART_UUID, future, future);
-        final JsonChart chart = future.get();
+        return future.get();
+    }
 
+    @Override
+    protected void applySnapshot(JsonChart chart, ContentResolver contentResolver,
+            SyncResult syncResult, ContentProviderClient providerClient)
+            throws Throwable {
         // When we do a chart update, delete everything first, then insert all the new rows.
         providerClient.delete(Contracts.ChartItems.CONTENT_URI, null, null);
         syncResult.stats.numDeletes++;
         providerClient.applyBatch(getChartUpdateOps(chart, syncResult));
     }
 
+    @Override
+    protected void afterSyncFinished(JsonChart chart, boolean changed,
+            ContentResolver contentResolver, SyncResult syncResult,
+            ContentProviderClient providerClient) {
+        // The caches are empty after a restart even if the chart is unchanged.
+        prepareForRendering(chart);
+    }
+
+    /**
+     * Parses the chart's formats into the ObsFormat cache and compiles the chart templates, so
+     * that this work isn't done on the main thread when a patient chart is opened.
+     */
+    private static void prepareForRendering(JsonChart chart) {
+        for (JsonChartSection section : chart.sections) {
+            for (JsonChartItem item : section.items) {
+                ObsFormat.fromPattern(item.format);
+                ObsFormat.fromPattern(item.caption_format);
+                ObsFormat.fromPattern(item.css_class);
+                ObsFormat.fromPattern(item.css_style);
+            }
+        }
+        ChartRenderer.compileTemplates();
+    }
+
     /** Converts a JsonChart response into appropriate inserts in the chart table. */
     private static ArrayList<ContentProviderOperation> getChartUpdateOps(
             JsonChart response, SyncResult syncResult) {
@@ -17,24 +17,35 @@ import org.projectbuendia.client.utils.Logger;
 
 import java.util.ArrayList;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
 
 /**
  * Handles syncing concepts. All concepts are fetched everytime. This is okay because concepts are
- * not a particularly huge data set.
+ * not a particularly huge data set, and they are only written when they have changed.
  */
-public class ConceptsSyncPhaseRunnable implements SyncPhaseRunnable {
+public class ConceptsSyncPhaseRunnable extends SnapshotSyncPhaseRunnable<JsonConceptResponse> {
     private static final Logger LOG = Logger.create();
 
+    public ConceptsSyncPhaseRunnable() {
+        super(Contracts.Table.CONCEPTS);
+    }
+
     @Override
-    public void sync(ContentResolver contentResolver, SyncResult syncResult,
-            ContentProviderClient providerClient)
-            throws Throwable {
+    protected JsonConceptResponse fetchSnapshot()
+            throws ExecutionException, InterruptedException {
         OpenMrsChartServer chartServer = new OpenMrsChartServer(App.getConnectionDetails());
         RequestFuture<JsonConceptResponse> future = RequestFuture.newFuture();
         chartServer.getConcepts(future, future); // errors handled by caller
+        return future.get();
+    }
+
+    @Override
+    protected void applySnapshot(JsonConceptResponse response, ContentResolver contentResolver,
+            SyncResult syncResult, ContentProviderClient providerClient)
+            throws Throwable {
         ArrayList<ContentValues> conceptInserts = new ArrayList<>();
         ArrayList<ContentValues> conceptNameInserts = new ArrayList<>();
-        for (JsonConcept concept : future.get().results) {
+        for (JsonConcept concept : response.results) {
             // This is safe because we have implemented insert on the content provider
             // with replace.
             ContentValues conceptInsert = new ContentValues();
@@ -26,31 +26,46 @@ import java.util.concurrent.ExecutionException;
 
 /**
  * Handles syncing forms. All forms are always fetched, which is okay because there are only a few
- * forms; usually less than 10.
+ * forms; usually less than 10.  The forms table is only rewritten when the list has changed.
  */
-public class FormsSyncPhaseRunnable implements SyncPhaseRunnable {
+public class FormsSyncPhaseRunnable extends SnapshotSyncPhaseRunnable<List<JsonForm>> {
     private static final Logger LOG = Logger.create();
 
+    public FormsSyncPhaseRunnable() {
+        super(Contracts.Table.FORMS);
+    }
+
     @Override
-    public void sync(ContentResolver contentResolver, SyncResult syncResult,
-            ContentProviderClient providerClient)
+    protected List<JsonForm> fetchSnapshot() throws ExecutionException, InterruptedException {
+        LOG.i("Listing all forms on server");
+        RequestFuture<List<JsonForm>> future = RequestFuture.newFuture();
+        App.getServer().listForms(future, future);
+        return future.get();
+    }
+
+    @Override
+    protected void applySnapshot(List<JsonForm> forms, ContentResolver contentResolver,
+            SyncResult syncResult, ContentProviderClient providerClient)
             throws Throwable {
         ArrayList<ContentProviderOperation> ops = new ArrayList<>();
-        ops.addAll(getFormUpdateOps(syncResult));
+        ops.addAll(getFormUpdateOps(forms, syncResult));
         providerClient.applyBatch(ops);
         LOG.i("Finished updating forms (" + ops.size() + " db ops)");
         contentResolver.notifyChange(Contracts.Forms.CONTENT_URI, null, false);
+    }
 
+    @Override
+    protected void afterSyncFinished(List<JsonForm> forms, boolean changed,
+            ContentResolver contentResolver, SyncResult syncResult,
+            ContentProviderClient providerClient) {
+        // The xforms embed the list of users, which may have changed even if the forms haven't.
         OdkActivityLauncher.fetchAndCacheAllXforms();
     }
 
-    private static List<ContentProviderOperation> getFormUpdateOps(SyncResult syncResult)
-            throws ExecutionException, InterruptedException {
-        LOG.i("Listing all forms on server");
-        RequestFuture<List<JsonForm>> future = RequestFuture.newFuture();
-        App.getServer().listForms(future, future);
+    private static List<ContentProviderOperation> getFormUpdateOps(
+            List<JsonForm> forms, SyncResult syncResult) {
         Map<String, ContentValues> cvs = new HashMap<>();
-        for (JsonForm form : future.get()) {
+        for (JsonForm form : forms) {
             cvs.put(form.id, Form.fromJson(form).toContentValues());
         }
 
@@ -14,30 +14,44 @@
 package org.projectbuendia.client.sync.controllers;
 
 import android.content.ContentProviderClient;
-import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
+import android.content.OperationApplicationException;
 import android.content.SyncResult;
 import android.net.Uri;
+import android.os.RemoteException;
 import android.support.annotation.Nullable;
 
 import com.android.volley.DefaultRetryPolicy;
 import com.android.volley.Response;
 import com.android.volley.toolbox.RequestFuture;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 
 import org.projectbuendia.client.App;
-import org.projectbuendia.client.json.IncrementalSyncResponse;
 import org.projectbuendia.client.json.Serializers;
 import org.projectbuendia.client.net.Common;
-import org.projectbuendia.client.net.GsonRequest;
+import org.projectbuendia.client.net.ByteArrayRequest;
 import org.projectbuendia.client.net.OpenMrsConnectionDetails;
+import org.projectbuendia.client.providers.BuendiaProvider;
+import org.projectbuendia.client.providers.BulkWriter;
 import org.projectbuendia.client.providers.Contracts;
+import org.projectbuendia.client.providers.Contracts.SyncTokens;
 import org.projectbuendia.client.sync.SyncAdapter;
 import org.projectbuendia.client.utils.Logger;
 
-import java.lang.reflect.ParameterizedType;
-import java.lang.reflect.Type;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.Array;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static org.projectbuendia.client.net.OpenMrsServer.wrapErrorListener;
 
@@ -46,7 +60,18 @@ import static org.projectbuendia.client.net.OpenMrsServer.wrapErrorListener;
  * <p>
  * To implement an incremental sync phase, create a subclass, supply the appropriate arguments to
  * {@link IncrementalSyncPhaseRunnable}'s constructor from the subclasses' public, no-arg
- * constructor, and then implement the {@link #getUpdateOps(Object[], SyncResult)} method.
+ * constructor, and then implement the
+ * {@link #writeRecords(Object[], ContentProviderClient, BulkWriter, SyncResult)} method.  Phases
+ * that write through the content provider can instead extend
+ * {@link ProviderOpsSyncPhaseRunnable} and produce content provider operations.
+ * <p>
+ * The next page is requested as soon as the current page's sync token is known, so that
+ * downloading overlaps with writing to the database.  Each page of results is parsed as a stream,
+ * so this method may be called several times per page, each time with a bounded chunk of the
+ * page's records.
+ * <p>
+ * Each page is written in its own transaction, together with the sync token that follows it, so
+ * progress is kept if the sync is cancelled or fails partway through.
  * <p>
  * Note: you may also wish to undertake an action at the start and end of the sync phase - hooks are
  * provided for this. See {@link #beforeSyncStarted(ContentResolver, SyncResult,
@@ -57,6 +82,18 @@ public abstract class IncrementalSyncPhaseRunnable<T> implements SyncPhaseRunnab
 
     private static final Logger LOG = Logger.create();
 
+    /**
+     * The maximum number of records parsed from a response page before they are written to the
+     * database.  This bounds the memory used by a sync phase, however large a page is.
+     */
+    private static final int STREAMING_CHUNK_SIZE = 500;
+
+    /**
+     * The number of fetched pages that may wait to be written to the database.  While one page is
+     * being written, at most this many more pages are held in memory, plus one being downloaded.
+     */
+    private static final int PREFETCH_QUEUE_CAPACITY = 1;
+
     private final String resourceType;
     private final Contracts.Table dbTable;
     private final Class<T> clazz;
@@ -90,23 +127,49 @@ public abstract class IncrementalSyncPhaseRunnable<T> implements SyncPhaseRunnab
         String syncToken = SyncAdapter.getLastSyncToken(providerClient, dbTable);
         LOG.i("Using sync token `%s`", syncToken);
 
-        IncrementalSyncResponse<T> response;
+        GsonBuilder gsonBuilder = new GsonBuilder();
+        Serializers.registerTo(gsonBuilder);
+        Gson gson = gsonBuilder.create();
+        BulkWriter writer =
+                ((BuendiaProvider) providerClient.getLocalContentProvider()).getBulkWriter();
+        Page page;
 
-        do {
-            RequestFuture<IncrementalSyncResponse<T>> future = RequestFuture.newFuture();
-            createRequest(syncToken, future, future);
-            response = future.get();
-            ArrayList<ContentProviderOperation> ops =
-                    getUpdateOps(response.results, syncResult);
-            providerClient.applyBatch(ops);
-            LOG.i("Updated page of %s (%d db ops)", resourceType, ops.size());
+        // Pages are fetched on a separate thread, which requests each page as soon as the
+        // previous page's sync token has been read, while this thread writes to the database.
+        BlockingQueue<FetchedPage> fetchedPages =
+                new ArrayBlockingQueue<>(PREFETCH_QUEUE_CAPACITY);
+        ExecutorService fetchExecutor = Executors.newSingleThreadExecutor();
+        fetchExecutor.execute(new PageFetcher(syncToken, fetchedPages));
+        try {
+            do {
+                FetchedPage fetched = fetchedPages.take();
+                if (fetched.error != null) {
+                    throw fetched.error;
+                }
+                // Each page is committed together with its sync token, so that an interrupted
+                // sync resumes from the last committed page rather than starting over.
+                writer.begin();
+                page = applyPage(fetched.body, gson, syncResult, providerClient, writer);
+                if (page.syncToken != null) {
+                    writer.insertOrReplace(
+                            Contracts.Table.SYNC_TOKENS, SyncTokens.CONTENT_URI,
+                            SyncTokens.TABLE_NAME, SyncTokens.SYNC_TOKEN)
+                            .bind(1, dbTable.name)
+                            .bind(2, page.syncToken)
+                            .execute();
+                }
+                writer.flush();
+                LOG.i("Committed page of %s (%d records) with sync token `%s`",
+                        resourceType, page.numResults, page.syncToken);
 
-            // Update sync token
-            syncToken = response.syncToken;
-        } while (response.more);
-
-        LOG.i("Saving new sync token `%s`", syncToken);
-        SyncAdapter.storeSyncToken(providerClient, dbTable, response.syncToken);
+                // Update sync token
+                syncToken = page.syncToken;
+            } while (page.more);
+        } finally {
+            // Stops the fetcher if we bailed out early; it may be blocked on a full queue.
+            fetchExecutor.shutdownNow();
+            writer.close();
+        }
 
         afterSyncFinished(contentResolver, syncResult, providerClient);
     }
@@ -114,10 +177,14 @@ public abstract class IncrementalSyncPhaseRunnable<T> implements SyncPhaseRunnab
     // Mandatory callback
 
     /**
-     * Produces a list of the operations needed to bring the local database in sync with the server.
+     * Writes one chunk of fetched records to the database, bringing it in sync with the server.
+     * Phases that write large numbers of rows should use the writer's precompiled statements,
+     * which bypass the content provider; change notifications are then sent once, when the
+     * phase ends.
      */
-    protected abstract ArrayList<ContentProviderOperation> getUpdateOps(
-            T[] list, SyncResult syncResult);
+    protected abstract void writeRecords(
+            T[] list, ContentProviderClient providerClient, BulkWriter writer,
+            SyncResult syncResult) throws RemoteException, OperationApplicationException;
 
     // Optional callbacks
 
@@ -136,9 +203,107 @@ public abstract class IncrementalSyncPhaseRunnable<T> implements SyncPhaseRunnab
             SyncResult syncResult,
             ContentProviderClient providerClient) throws Throwable {}
 
+    /**
+     * Reads just the sync token and the "more" flag from a raw response body, skipping over the
+     * results without parsing them into objects.
+     */
+    private static Page scanPage(byte[] body) throws IOException {
+        Page page = new Page();
+        try (JsonReader reader = new JsonReader(
+                new InputStreamReader(new ByteArrayInputStream(body), "UTF-8"))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "syncToken":
+                        page.syncToken = nextNullableString(reader);
+                        break;
+                    case "more":
+                        page.more = reader.nextBoolean();
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+        return page;
+    }
+
+    private static @Nullable String nextNullableString(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextString();
+    }
+
+    /**
+     * Streams a page of results out of the raw response body, applying database operations for
+     * every {@link #STREAMING_CHUNK_SIZE} records as they are read, so that no more than one chunk
+     * of parsed records or database operations is held in memory at a time.
+     */
+    private Page applyPage(
+            byte[] body, Gson gson, SyncResult syncResult, ContentProviderClient providerClient,
+            BulkWriter writer) throws IOException, RemoteException, OperationApplicationException {
+        Page page = new Page();
+        try (JsonReader reader = new JsonReader(
+                new InputStreamReader(new ByteArrayInputStream(body), "UTF-8"))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "results":
+                        page.numResults = applyResults(
+                                reader, gson, syncResult, providerClient, writer);
+                        break;
+                    case "syncToken":
+                        page.syncToken = nextNullableString(reader);
+                        break;
+                    case "more":
+                        page.more = reader.nextBoolean();
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+        return page;
+    }
+
+    private int applyResults(
+            JsonReader reader, Gson gson, SyncResult syncResult,
+            ContentProviderClient providerClient, BulkWriter writer)
+            throws IOException, RemoteException, OperationApplicationException {
+        List<T> chunk = new ArrayList<>(STREAMING_CHUNK_SIZE);
+        int numResults = 0;
+        reader.beginArray();
+        while (reader.hasNext()) {
+            T item = gson.fromJson(reader, clazz);
+            chunk.add(item);
+            numResults++;
+            if (chunk.size() >= STREAMING_CHUNK_SIZE) {
+                applyChunk(chunk, syncResult, providerClient, writer);
+                chunk.clear();
+            }
+        }
+        reader.endArray();
+        if (!chunk.isEmpty()) {
+            applyChunk(chunk, syncResult, providerClient, writer);
+        }
+        return numResults;
+    }
+
+    private void applyChunk(
+            List<T> chunk, SyncResult syncResult, ContentProviderClient providerClient,
+            BulkWriter writer) throws RemoteException, OperationApplicationException {
+        //noinspection unchecked
+        T[] items = chunk.toArray((T[]) Array.newInstance(clazz, chunk.size()));
+        writeRecords(items, providerClient, writer, syncResult);
+    }
+
     private void createRequest(
             @Nullable String lastSyncToken,
-            Response.Listener<IncrementalSyncResponse<T>> successListener,
+            Response.Listener<byte[]> successListener,
             final Response.ErrorListener errorListener) {
         OpenMrsConnectionDetails connectionDetails = App.getConnectionDetails();
         Uri.Builder url = Uri.parse(connectionDetails.getBuendiaApiUrl()).buildUpon();
@@ -146,39 +311,77 @@ public abstract class IncrementalSyncPhaseRunnable<T> implements SyncPhaseRunnab
         if (lastSyncToken != null) {
             url.appendQueryParameter("since", lastSyncToken);
         }
-        GsonRequest<IncrementalSyncResponse<T>> request = new GsonRequest<>(
+        ByteArrayRequest request = new ByteArrayRequest(
                 url.build().toString(),
-                new IncrementalSyncResponseType(clazz),
                 connectionDetails.addAuthHeader(new HashMap<String, String>()),
                 successListener,
                 wrapErrorListener(errorListener));
-        Serializers.registerTo(request.getGson());
         request.setRetryPolicy(
                 new DefaultRetryPolicy(Common.REQUEST_TIMEOUT_MS_MEDIUM, 1, 1f));
         connectionDetails.getVolley().addToRequestQueue(request);
     }
 
-    private static class IncrementalSyncResponseType implements ParameterizedType {
-
-        private final Type[] typeArgs;
+    /**
+     * Fetches successive pages, starting from a given sync token, and hands them to the sync
+     * thread through a bounded queue.  A failure is handed over in place of a page, and ends the
+     * fetching.  The fetcher stops quietly when interrupted.
+     */
+    private class PageFetcher implements Runnable {
+        private final @Nullable String mSyncToken;
+        private final BlockingQueue<FetchedPage> mQueue;
 
-        public IncrementalSyncResponseType(Type innerType) {
-            typeArgs = new Type[] { innerType };
+        PageFetcher(@Nullable String syncToken, BlockingQueue<FetchedPage> queue) {
+            mSyncToken = syncToken;
+            mQueue = queue;
         }
 
-        @Override
-        public Type[] getActualTypeArguments() {
-            return typeArgs;
+        @Override public void run() {
+            String syncToken = mSyncToken;
+            try {
+                Page page;
+                do {
+                    RequestFuture<byte[]> future = RequestFuture.newFuture();
+                    createRequest(syncToken, future, future);
+                    byte[] body = future.get();
+                    page = scanPage(body);
+                    mQueue.put(new FetchedPage(body, null));
+                    syncToken = page.syncToken;
+                } while (page.more);
+            } catch (InterruptedException e) {
+                // The sync thread has stopped consuming pages; nothing more to do.
+            } catch (Throwable t) {
+                try {
+                    mQueue.put(new FetchedPage(null, t));
+                } catch (InterruptedException e) {
+                    // As above.
+                }
+            }
         }
+    }
 
-        @Override
-        public Type getOwnerType() {
-            return null;
-        }
+    /** A raw page body fetched from the server, or the error that occurred fetching it. */
+    private static class FetchedPage {
+        final byte[] body;
+        final Throwable error;
 
-        @Override
-        public Type getRawType() {
-            return IncrementalSyncResponse.class;
+        FetchedPage(byte[] body, Throwable error) {
+            this.body = body;
+            this.error = error;
         }
     }
+
+    /** The metadata of one page of an incremental sync response. */
+    private static class Page {
+        /**
+         * Can be sent to the server with the next request to ensure that only new data will be
+         * returned.
+         */
+        @Nullable String syncToken;
+
+        /** {@code true} if there is more data that remains unfetched. */
+        boolean more;
+
+        /** The number of records in the page. */
+        int numResults;
+    }
 }
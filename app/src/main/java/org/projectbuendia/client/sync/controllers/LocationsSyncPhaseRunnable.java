@@ -11,6 +11,7 @@ import com.android.volley.toolbox.RequestFuture;
 
 import org.projectbuendia.client.App;
 import org.projectbuendia.client.json.JsonLocation;
+import org.projectbuendia.client.providers.Contracts;
 import org.projectbuendia.client.providers.Contracts.LocationNames;
 import org.projectbuendia.client.providers.Contracts.Locations;
 import org.projectbuendia.client.utils.Logger;
@@ -23,27 +24,41 @@ import java.util.concurrent.ExecutionException;
 
 /**
  * Handles syncing locations. All locations are always fetched, which is ok because the full set of
- * locations is fairly smaller.
+ * locations is fairly smaller, and the database is only examined when they have changed.
  */
-public class LocationsSyncPhaseRunnable implements SyncPhaseRunnable {
+public class LocationsSyncPhaseRunnable extends SnapshotSyncPhaseRunnable<List<JsonLocation>> {
     private static final Logger LOG = Logger.create();
 
+    public LocationsSyncPhaseRunnable() {
+        super(Contracts.Table.LOCATIONS);
+    }
+
+    @Override
+    protected List<JsonLocation> fetchSnapshot() throws ExecutionException, InterruptedException {
+        LOG.d("Before network call");
+        RequestFuture<List<JsonLocation>> future = RequestFuture.newFuture();
+        App.getServer().listLocations(future, future);
+        List<JsonLocation> locations = future.get();
+        LOG.d("After network call");
+        return locations;
+    }
+
     @Override
-    public void sync(ContentResolver contentResolver, SyncResult syncResult,
-            ContentProviderClient providerClient)
+    protected void applySnapshot(List<JsonLocation> locations, ContentResolver contentResolver,
+            SyncResult syncResult, ContentProviderClient providerClient)
             throws Throwable {
-        ArrayList<ContentProviderOperation> ops = getLocationUpdateOps(syncResult);
+        ArrayList<ContentProviderOperation> ops = getLocationUpdateOps(locations, syncResult);
         providerClient.applyBatch(ops);
         contentResolver.notifyChange(Locations.CONTENT_URI, null, false);
         contentResolver.notifyChange(LocationNames.CONTENT_URI, null, false);
     }
 
     /**
-     * Requests locations from the server and transforms the response into an {@link ArrayList} of
+     * Transforms the locations fetched from the server into an {@link ArrayList} of
      * {@link ContentProviderOperation}s for updating the database.
      */
-    private static ArrayList<ContentProviderOperation> getLocationUpdateOps(SyncResult syncResult)
-            throws ExecutionException, InterruptedException {
+    private static ArrayList<ContentProviderOperation> getLocationUpdateOps(
+            List<JsonLocation> locations, SyncResult syncResult) {
         final ContentResolver contentResolver = App.getInstance().getContentResolver();
 
         final String[] projection = new String[] {
@@ -56,14 +71,6 @@ public class LocationsSyncPhaseRunnable implements SyncPhaseRunnable {
                 LocationNames.NAME
         };
 
-        LOG.d("Before network call");
-        RequestFuture<List<JsonLocation>> future = RequestFuture.newFuture();
-        App.getServer().listLocations(future, future);
-
-        // No need for callbacks as the {@AbstractThreadedSyncAdapter} code is executed in a
-        // background thread
-        List<JsonLocation> locations = future.get();
-        LOG.d("After network call");
         ArrayList<ContentProviderOperation> batch = new ArrayList<>();
 
         Map<String, JsonLocation> locationsByUuid = new HashMap<>();
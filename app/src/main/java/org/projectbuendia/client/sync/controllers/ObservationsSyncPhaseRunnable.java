@@ -14,23 +14,27 @@
 package org.projectbuendia.client.sync.controllers;
 
 import android.content.ContentProviderClient;
-import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
-import android.content.ContentValues;
 import android.content.SyncResult;
-import android.net.Uri;
 import android.os.RemoteException;
 
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.SetMultimap;
+
 import org.projectbuendia.client.json.JsonObservation;
+import org.projectbuendia.client.providers.BulkWriter;
 import org.projectbuendia.client.providers.Contracts;
+import org.projectbuendia.client.providers.Contracts.LatestObservations;
 import org.projectbuendia.client.providers.Contracts.Observations;
+import org.projectbuendia.client.sync.Database;
 import org.projectbuendia.client.utils.Logger;
 
-import java.util.ArrayList;
+import java.util.Map;
 
 /**
  * Handles syncing observations. Uses an incremental sync mechanism - see
- * {@link IncrementalSyncPhaseRunnable} for details.
+ * {@link IncrementalSyncPhaseRunnable} for details.  The latest_observations table is brought up
+ * to date for every patient and concept touched by each batch of records.
  */
 public class ObservationsSyncPhaseRunnable extends IncrementalSyncPhaseRunnable<JsonObservation> {
     private static final Logger LOG = Logger.create();
@@ -43,41 +47,67 @@ public class ObservationsSyncPhaseRunnable extends IncrementalSyncPhaseRunnable<
     }
 
     @Override
-    protected ArrayList<ContentProviderOperation> getUpdateOps(
-            JsonObservation[] list, SyncResult syncResult) {
+    protected void writeRecords(
+            JsonObservation[] list, ContentProviderClient providerClient, BulkWriter writer,
+            SyncResult syncResult) {
+        BulkWriter.Statement insert = writer.insertOrReplace(
+                Contracts.Table.OBSERVATIONS, Observations.CONTENT_URI,
+                Observations.UUID,
+                Observations.PATIENT_UUID,
+                Observations.ENCOUNTER_UUID,
+                Observations.ENCOUNTER_MILLIS,
+                Observations.CONCEPT_UUID,
+                Observations.ENTERER_UUID,
+                Observations.VALUE);
+        BulkWriter.Statement delete = writer.delete(
+                Contracts.Table.OBSERVATIONS, Observations.CONTENT_URI, Observations.UUID);
+        BulkWriter.Statement deleteLatest = writer.delete(
+                Contracts.Table.LATEST_OBSERVATIONS, LatestObservations.CONTENT_URI,
+                LatestObservations.UUID);
+        SetMultimap<String, String> touched = HashMultimap.create();
         int deletes = 0;
         int inserts = 0;
-        ArrayList<ContentProviderOperation> ops = new ArrayList<>();
         for (JsonObservation observation: list) {
+            if (observation.patient_uuid != null && observation.concept_uuid != null) {
+                touched.put(observation.patient_uuid, observation.concept_uuid);
+            }
             if (observation.voided) {
-                Uri uri = Observations.CONTENT_URI.buildUpon().appendPath(observation.uuid).build();
-                ops.add(ContentProviderOperation.newDelete(uri).build());
+                delete.bind(1, observation.uuid).execute();
+                // In case the server omits the patient or concept of a voided observation.
+                deleteLatest.bind(1, observation.uuid).execute();
                 deletes++;
             } else {
-                ops.add(ContentProviderOperation.newInsert(Observations.CONTENT_URI)
-                        .withValues(getObsValuesToInsert(observation)).build());
+                insert.bind(1, observation.uuid)
+                        .bind(2, observation.patient_uuid)
+                        .bind(3, observation.encounter_uuid)
+                        .bind(4, observation.timestamp.getMillis())
+                        .bind(5, observation.concept_uuid)
+                        .bind(6, observation.enterer_uuid)
+                        .bind(7, observation.value)
+                        .execute();
                 inserts++;
             }
         }
+        refreshLatestObservations(touched, writer);
         LOG.d("Observations processed! Inserts: %d, Deletes: %d", inserts, deletes);
         syncResult.stats.numInserts += inserts;
         syncResult.stats.numDeletes += deletes;
-        return ops;
     }
 
-    /** Converts an encounter data response into appropriate inserts in the encounters table. */
-    public static ContentValues getObsValuesToInsert(
-            JsonObservation observation) {
-        ContentValues cvs = new ContentValues();
-        cvs.put(Observations.UUID, observation.uuid);
-        cvs.put(Observations.PATIENT_UUID, observation.patient_uuid);
-        cvs.put(Observations.ENCOUNTER_UUID, observation.encounter_uuid);
-        cvs.put(Observations.ENCOUNTER_MILLIS, observation.timestamp.getMillis());
-        cvs.put(Observations.CONCEPT_UUID, observation.concept_uuid);
-        cvs.put(Observations.ENTERER_UUID, observation.enterer_uuid);
-        cvs.put(Observations.VALUE, observation.value);
-
-        return cvs;
+    /** Recomputes the latest observation for each of the given patients and concepts. */
+    private void refreshLatestObservations(
+            SetMultimap<String, String> conceptsByPatient, BulkWriter writer) {
+        BulkWriter.Statement[] refresh = new BulkWriter.Statement[
+                Database.REFRESH_LATEST_OBSERVATION.length];
+        for (int i = 0; i < refresh.length; i++) {
+            refresh[i] = writer.compile(
+                    Database.REFRESH_LATEST_OBSERVATION[i], LatestObservations.CONTENT_URI);
+        }
+        for (Map.Entry<String, String> entry : conceptsByPatient.entries()) {
+            for (BulkWriter.Statement statement : refresh) {
+                statement.bind(1, entry.getKey()).bind(2, entry.getValue()).execute();
+            }
+        }
     }
 
     @Override
@@ -85,9 +115,14 @@ public class ObservationsSyncPhaseRunnable extends IncrementalSyncPhaseRunnable<
             ContentResolver contentResolver,
             SyncResult syncResult,
             ContentProviderClient providerClient) throws RemoteException {
-        // Remove all temporary observations now we have the real ones
+        // Remove all temporary observations now we have the real ones, except those whose
+        // encounters are still in the outbox, waiting to be sent or kept after a rejection.
+        // The provider refreshes the latest_observations rows that they were standing in for.
         providerClient.delete(Observations.CONTENT_URI,
-                Observations.UUID + " IS NULL",
+                Observations.UUID + " IS NULL AND (" + Observations.ENCOUNTER_UUID + " IS NULL"
+                        + " OR " + Observations.ENCOUNTER_UUID + " NOT IN (SELECT "
+                        + Contracts.Outbox.LOCAL_UUID + " FROM " + Contracts.Table.OUTBOX
+                        + " WHERE " + Contracts.Outbox.LOCAL_UUID + " IS NOT NULL))",
                 new String[0]);
     }
 }
@@ -1,18 +1,15 @@
 package org.projectbuendia.client.sync.controllers;
 
 import android.content.ContentProviderClient;
-import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.SyncResult;
-import android.net.Uri;
 
 import org.projectbuendia.client.json.JsonOrder;
+import org.projectbuendia.client.providers.BulkWriter;
 import org.projectbuendia.client.providers.Contracts;
 import org.projectbuendia.client.providers.Contracts.Orders;
 import org.projectbuendia.client.utils.Logger;
 
-import java.util.ArrayList;
-
 /**
  * Handles syncing orders. Currently we always fetch all orders. This won't scale; incremental
  * fetch would help a lot.
@@ -28,39 +25,37 @@ public class OrdersSyncPhaseRunnable extends IncrementalSyncPhaseRunnable<JsonOr
     }
 
     @Override
-    protected ArrayList<ContentProviderOperation> getUpdateOps(
-            JsonOrder[] orders, SyncResult syncResult) {
+    protected void writeRecords(
+            JsonOrder[] orders, ContentProviderClient providerClient, BulkWriter writer,
+            SyncResult syncResult) {
+        BulkWriter.Statement insert = writer.insertOrReplace(
+                Contracts.Table.ORDERS, Orders.CONTENT_URI,
+                Orders.UUID,
+                Orders.PATIENT_UUID,
+                Orders.INSTRUCTIONS,
+                Orders.START_MILLIS,
+                Orders.STOP_MILLIS);
+        BulkWriter.Statement delete = writer.delete(
+                Contracts.Table.ORDERS, Orders.CONTENT_URI, Orders.UUID);
         int numDeletes = 0;
         int numInserts = 0;
-        ArrayList<ContentProviderOperation> ops = new ArrayList<>(orders.length);
         for (JsonOrder order : orders) {
             if (order.voided) {
-                ops.add(deleteOrderWithUuid(order.uuid));
+                delete.bind(1, order.uuid).execute();
                 numDeletes++;
             } else {
-                ops.add(insertOrReplaceOrder(order));
+                insert.bind(1, order.uuid)
+                        .bind(2, order.patient_uuid)
+                        .bind(3, order.instructions)
+                        .bind(4, order.start_millis)
+                        .bind(5, order.stop_millis)
+                        .execute();
                 numInserts++;
             }
         }
         syncResult.stats.numDeletes += numDeletes;
         syncResult.stats.numInserts += numInserts;
         LOG.d("Orders processed! Inserts: %d, Deletes: %d", numInserts, numDeletes);
-        return ops;
-    }
-
-    private static ContentProviderOperation insertOrReplaceOrder(JsonOrder order) {
-        return ContentProviderOperation.newInsert(Orders.CONTENT_URI)
-                .withValue(Orders.UUID, order.uuid)
-                .withValue(Orders.PATIENT_UUID, order.patient_uuid)
-                .withValue(Orders.INSTRUCTIONS, order.instructions)
-                .withValue(Orders.START_MILLIS, order.start_millis)
-                .withValue(Orders.STOP_MILLIS, order.stop_millis)
-                .build();
-    }
-
-    private static ContentProviderOperation deleteOrderWithUuid(String uuid) {
-        Uri uri = Orders.CONTENT_URI.buildUpon().appendPath(uuid).build();
-        return ContentProviderOperation.newDelete(uri).build();
     }
 
     @Override
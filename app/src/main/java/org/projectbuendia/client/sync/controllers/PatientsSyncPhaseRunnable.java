@@ -29,7 +29,7 @@ import java.util.ArrayList;
  * Handles syncing patients. Uses an incremental sync mechanism - see
  * {@link IncrementalSyncPhaseRunnable} for details.
  */
-public class PatientsSyncPhaseRunnable extends IncrementalSyncPhaseRunnable<JsonPatient> {
+public class PatientsSyncPhaseRunnable extends ProviderOpsSyncPhaseRunnable<JsonPatient> {
 
     public PatientsSyncPhaseRunnable() {
         super(
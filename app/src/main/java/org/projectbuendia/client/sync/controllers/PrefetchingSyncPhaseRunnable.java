@@ -0,0 +1,44 @@
+/*
+ * Copyright 2015 The Project Buendia Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at: http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distrib-
+ * uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.projectbuendia.client.sync.controllers;
+
+import android.content.ContentProviderClient;
+import android.content.ContentResolver;
+import android.content.SyncResult;
+
+/**
+ * A {@link SyncPhaseRunnable} whose work is split into a network fetch, which touches no local
+ * state and can run on any thread, and a database update that applies the fetched data.  This
+ * lets the {@link org.projectbuendia.client.sync.SyncPhaseScheduler} fetch the data for several
+ * phases concurrently while still applying their writes one at a time.
+ * @param <R> the type of the data fetched from the server
+ */
+public abstract class PrefetchingSyncPhaseRunnable<R> implements SyncPhaseRunnable {
+
+    @Override
+    public final void sync(ContentResolver contentResolver, SyncResult syncResult,
+            ContentProviderClient providerClient) throws Throwable {
+        apply(fetch(), contentResolver, syncResult, providerClient);
+    }
+
+    /**
+     * Fetches this phase's data from the server.  Must not read or write the local database, as
+     * it may run concurrently with other phases.
+     */
+    public abstract R fetch() throws Throwable;
+
+    /** Brings the local database in sync with the data returned by {@link #fetch()}. */
+    public abstract void apply(R fetched, ContentResolver contentResolver, SyncResult syncResult,
+            ContentProviderClient providerClient) throws Throwable;
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2015 The Project Buendia Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at: http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distrib-
+ * uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.projectbuendia.client.sync.controllers;
+
+import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.OperationApplicationException;
+import android.content.SyncResult;
+import android.os.RemoteException;
+
+import org.projectbuendia.client.providers.BulkWriter;
+import org.projectbuendia.client.providers.Contracts;
+
+import java.util.ArrayList;
+
+/**
+ * An {@link IncrementalSyncPhaseRunnable} that writes each chunk of records by applying a batch
+ * of operations through the content provider, so that each write goes through the provider's
+ * delegates and sends its own change notification.  Subclasses only have to implement
+ * {@link #getUpdateOps(Object[], SyncResult)}.  This costs an operation object and a provider
+ * call per row, so phases whose volume makes that matter should extend
+ * {@link IncrementalSyncPhaseRunnable} directly and write through the {@link BulkWriter}.
+ */
+public abstract class ProviderOpsSyncPhaseRunnable<T> extends IncrementalSyncPhaseRunnable<T> {
+
+    protected ProviderOpsSyncPhaseRunnable(
+            String resourceType,
+            Contracts.Table dbTable,
+            Class<T> clazz) {
+        super(resourceType, dbTable, clazz);
+    }
+
+    @Override
+    protected final void writeRecords(
+            T[] list, ContentProviderClient providerClient, BulkWriter writer,
+            SyncResult syncResult) throws RemoteException, OperationApplicationException {
+        providerClient.applyBatch(getUpdateOps(list, syncResult));
+    }
+
+    // Mandatory callback
+
+    /**
+     * Produces a list of the operations needed to bring the local database in sync with the server
+     * for one chunk of fetched records.
+     */
+    protected abstract ArrayList<ContentProviderOperation> getUpdateOps(
+            T[] list, SyncResult syncResult);
+}
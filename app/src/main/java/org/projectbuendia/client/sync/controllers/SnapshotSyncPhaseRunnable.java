@@ -0,0 +1,121 @@
+/*
+ * Copyright 2015 The Project Buendia Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at: http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distrib-
+ * uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.projectbuendia.client.sync.controllers;
+
+import android.content.ContentProviderClient;
+import android.content.ContentResolver;
+import android.content.SyncResult;
+
+import com.google.gson.Gson;
+
+import org.projectbuendia.client.providers.Contracts;
+import org.projectbuendia.client.sync.SyncAdapter;
+import org.projectbuendia.client.utils.Logger;
+
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A {@link PrefetchingSyncPhaseRunnable} for reference data that the server can only return as a
+ * complete snapshot, such as concepts, charts, locations, and forms.
+ * <p>
+ * Each fetched snapshot is reduced to a content hash, which is stored as the phase's sync token in
+ * the sync_tokens table.  When the next snapshot has the same hash, the database is left untouched
+ * and nothing that depends on the data is invalidated.  When the server sends an ETag, Volley's
+ * cache revalidates the snapshot with a conditional GET, so an unchanged snapshot costs only a
+ * "304 Not Modified" round trip.
+ * <p>
+ * Subclasses implement {@link #fetchSnapshot()} and
+ * {@link #applySnapshot(Object, ContentResolver, SyncResult, ContentProviderClient)}, and may
+ * override {@link #afterSyncFinished(Object, boolean, ContentResolver, SyncResult,
+ * ContentProviderClient)} for work to do whether or not the snapshot changed.
+ * @param <R> the type of the snapshot fetched from the server
+ */
+public abstract class SnapshotSyncPhaseRunnable<R>
+        extends PrefetchingSyncPhaseRunnable<SnapshotSyncPhaseRunnable.Snapshot<R>> {
+    private static final Logger LOG = Logger.create();
+
+    private final Contracts.Table mTable;
+
+    /**
+     * @param table the table that the snapshot is stored in, also used as the key under which
+     *              the snapshot's hash is stored in the sync_tokens table
+     */
+    protected SnapshotSyncPhaseRunnable(Contracts.Table table) {
+        mTable = table;
+    }
+
+    @Override
+    public final Snapshot<R> fetch() throws Throwable {
+        R data = fetchSnapshot();
+        return new Snapshot<>(data, getContentHash(data));
+    }
+
+    @Override
+    public final void apply(Snapshot<R> snapshot, ContentResolver contentResolver,
+            SyncResult syncResult, ContentProviderClient providerClient) throws Throwable {
+        boolean changed = !snapshot.hash.equals(
+                SyncAdapter.getLastSyncToken(providerClient, mTable));
+        if (changed) {
+            applySnapshot(snapshot.data, contentResolver, syncResult, providerClient);
+            SyncAdapter.storeSyncToken(providerClient, mTable, snapshot.hash);
+        } else {
+            LOG.i("%s unchanged since the last sync (%s); skipping update", mTable, snapshot.hash);
+        }
+        afterSyncFinished(snapshot.data, changed, contentResolver, syncResult, providerClient);
+    }
+
+    /**
+     * Fetches the complete snapshot from the server.  Must not read or write the local database,
+     * as it may run concurrently with other phases.
+     */
+    protected abstract R fetchSnapshot() throws Throwable;
+
+    /** Replaces the local copy of the data with a snapshot that differs from the last one. */
+    protected abstract void applySnapshot(R data, ContentResolver contentResolver,
+            SyncResult syncResult, ContentProviderClient providerClient) throws Throwable;
+
+    /**
+     * Called at the end of every sync of this phase, after any update has been applied.
+     * @param changed true if the snapshot differed from the last one and was applied
+     */
+    protected void afterSyncFinished(R data, boolean changed, ContentResolver contentResolver,
+            SyncResult syncResult, ContentProviderClient providerClient) throws Throwable {
+        // Do nothing by default.
+    }
+
+    /** Returns a SHA-1 hash of the JSON form of a snapshot, as a hexadecimal string. */
+    static String getContentHash(Object data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(
+                    new Gson().toJson(data).getBytes("UTF-8"));
+            return String.format("%040x", new BigInteger(1, digest));
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            throw new RuntimeException("SHA-1 and UTF-8 are always available", e);
+        }
+    }
+
+    /** A fetched snapshot and its content hash. */
+    public static class Snapshot<R> {
+        final R data;
+        final String hash;
+
+        Snapshot(R data, String hash) {
+            this.data = data;
+            this.hash = hash;
+        }
+    }
+}
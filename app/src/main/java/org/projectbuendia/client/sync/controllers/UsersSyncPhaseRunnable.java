@@ -20,6 +20,6 @@ public class UsersSyncPhaseRunnable implements SyncPhaseRunnable {
     public void sync(ContentResolver contentResolver, SyncResult syncResult, ContentProviderClient providerClient)
             throws InterruptedException, ExecutionException, UserManager.UserSyncException,
             RemoteException, OperationApplicationException {
-        App.getUserManager().syncKnownUsersSynchronously();
+        App.getUserManager().syncKnownUsersSynchronously(syncResult);
     }
 }
@@ -31,6 +31,7 @@ import org.projectbuendia.client.App;
 import org.projectbuendia.client.R;
 import org.projectbuendia.client.diagnostics.HealthIssue;
 import org.projectbuendia.client.diagnostics.TroubleshootingAction;
+import org.projectbuendia.client.events.OutboxWriteRejectedEvent;
 import org.projectbuendia.client.events.diagnostics.TroubleshootingActionsChangedEvent;
 import org.projectbuendia.client.updater.AvailableUpdateInfo;
 import org.projectbuendia.client.updater.DownloadedUpdateInfo;
@@ -405,6 +406,20 @@ public abstract class BaseActivity extends FragmentActivity {
         }
     }
 
+    /** Called when the server rejects changes that were queued to be sent to it. */
+    public void onEventMainThread(final OutboxWriteRejectedEvent event) {
+        snackBar(R.string.outbox_write_rejected,
+            R.string.troubleshoot_action_more_info,
+            new View.OnClickListener() {
+                @Override public void onClick(View view) {
+                    showMoreInfoDialog(
+                        getString(R.string.outbox_write_rejected),
+                        getString(R.string.outbox_write_rejected_details, event.rejectedCount),
+                        false);
+                }
+            }, 994, false);
+    }
+
     private void showMoreInfoDialog(String title, String message,
                                     boolean includeSettingsButton) {
         AlertDialog.Builder builder = new AlertDialog.Builder(BaseActivity.this)
@@ -446,12 +461,14 @@ public abstract class BaseActivity extends FragmentActivity {
         }
         EventBus.getDefault().registerSticky(this);
         App.getInstance().getHealthMonitor().start();
+        App.getInstance().getChangeNotifier().start();
         Utils.logEvent("resumed_activity", "class", this.getClass().getSimpleName());
     }
 
     @Override protected void onPause() {
         EventBus.getDefault().unregister(this);
         App.getInstance().getHealthMonitor().stop();
+        App.getInstance().getChangeNotifier().stop();
         pausedScaleStep = sScaleStep;
 
         super.onPause();
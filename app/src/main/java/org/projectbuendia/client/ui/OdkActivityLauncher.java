@@ -19,18 +19,19 @@ import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
 import android.net.Uri;
+import android.util.SparseArray;
 
 import com.android.volley.Response;
 import com.android.volley.TimeoutError;
 import com.android.volley.VolleyError;
 import com.google.common.base.Charsets;
-import com.google.common.base.Joiner;
 
 import org.javarosa.core.model.data.IAnswerData;
 import org.javarosa.core.model.instance.TreeElement;
 import org.javarosa.xform.parse.XFormParser;
 import org.joda.time.DateTime;
 import org.joda.time.format.ISODateTimeFormat;
+import org.json.JSONException;
 import org.json.JSONObject;
 import org.odk.collect.android.activities.FormEntryActivity;
 import org.odk.collect.android.application.Collect;
@@ -46,26 +47,22 @@ import org.projectbuendia.client.events.SubmitXformSucceededEvent;
 import org.projectbuendia.client.exception.ValidationException;
 import org.projectbuendia.client.json.JsonUser;
 import org.projectbuendia.client.net.OdkDatabase;
-import org.projectbuendia.client.net.OdkXformSyncTask;
 import org.projectbuendia.client.net.OpenMrsXformIndexEntry;
 import org.projectbuendia.client.net.OpenMrsXformsConnection;
+import org.projectbuendia.client.net.Outbox;
+import org.projectbuendia.client.net.XformCacheManager;
 import org.projectbuendia.client.providers.Contracts;
+import org.projectbuendia.client.sync.ChartDataHelper;
 import org.projectbuendia.client.utils.Logger;
 import org.projectbuendia.client.utils.Utils;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
-import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.annotation.Nullable;
 
@@ -81,17 +78,24 @@ public class OdkActivityLauncher {
 
     private static final Logger LOG = Logger.create();
 
+    /** Returned by {@link #getConceptId} for a concept with no valid ID. */
+    private static final int NO_CONCEPT_ID = -1;
+
+    /** Longest concept ID that can't overflow an int. */
+    private static final int MAX_CONCEPT_ID_DIGITS = 9;
+
+    /** Processes submitted form instances one at a time, off the UI thread. */
+    private static final ExecutorService sSubmitExecutor = Executors.newSingleThreadExecutor();
+
     /**
-     * Fetches all xforms from the server and caches them. If any error occurs during fetching,
-     * a failed event is triggered.
+     * Fetches all xforms from the server that are missing or out of date locally, and caches
+     * them. If any error occurs during fetching, a failed event is triggered.
      */
     public static void fetchAndCacheAllXforms() {
         new OpenMrsXformsConnection(App.getConnectionDetails()).listXforms(
             new Response.Listener<List<OpenMrsXformIndexEntry>>() {
                 @Override public void onResponse(final List<OpenMrsXformIndexEntry> response) {
-                    for (OpenMrsXformIndexEntry formEntry : response) {
-                        fetchAndCacheXForm(formEntry);
-                    }
+                    App.getInstance().getXformCacheManager().prefetch(response);
                 }
             }, new Response.ErrorListener() {
                 @Override public void onErrorResponse(VolleyError error) {
@@ -100,16 +104,6 @@ public class OdkActivityLauncher {
             });
     }
 
-    /**
-     * Fetches the xform specified by the form uuid.
-     *
-     * @param formEntry the {@link OpenMrsXformIndexEntry} object containing the uuid form
-     */
-    public static void fetchAndCacheXForm(OpenMrsXformIndexEntry formEntry) {
-        new OdkXformSyncTask(null).fetchAndAddXFormToDb(formEntry.uuid,
-            formEntry.makeFileForForm());
-    }
-
     /**
      * Loads the xform from the cache and launches ODK using it. If the cache is not available,
      * the app tries to fetch it from the server. If no form is got, it is triggered a failed event.
@@ -251,17 +245,22 @@ public class OdkActivityLauncher {
                                  @Nullable final org.odk.collect.android.model.Patient patient,
                                  @Nullable final Preset fields,
                                  final OpenMrsXformIndexEntry formToShow) {
-        new OdkXformSyncTask(new OdkXformSyncTask.FormWrittenListener() {
-            @Override public void formWritten(File path, String uuid) {
-                LOG.i("wrote form " + path);
-                showOdkCollect(
-                    callingActivity,
-                    requestCode,
-                    OdkDatabase.getFormIdForPath(path),
-                    patient,
-                    fields);
-            }
-        }).execute(formToShow);
+        App.getInstance().getXformCacheManager().getForm(formToShow,
+            new XformCacheManager.Listener() {
+                @Override public void onFormReady(File path, String uuid) {
+                    LOG.i("wrote form " + path);
+                    showOdkCollect(
+                        callingActivity,
+                        requestCode,
+                        OdkDatabase.getFormIdForPath(path),
+                        patient,
+                        fields);
+                }
+
+                @Override public void onFormFailed(String uuid) {
+                    // A FetchXformFailedEvent has already been posted.
+                }
+            });
     }
 
     // Out of a list of OpenMRS Xform entries, find the form that matches the given uuid, or
@@ -277,7 +276,9 @@ public class OdkActivityLauncher {
     }
 
     /**
-     * Convenient shared code for handling an ODK activity result.
+     * Convenient shared code for handling an ODK activity result.  The submitted instance is
+     * processed on a background thread; the outcome is reported by posting a
+     * {@link SubmitXformSucceededEvent} or {@link SubmitXformFailedEvent}.
      * @param context           the application context
      * @param settings          the application settings
      * @param patientUuid       the patient to add an observation to, or null to create a new patient
@@ -293,58 +294,92 @@ public class OdkActivityLauncher {
 
         if(isActivityCanceled(resultCode, data)) return;
 
-        try {
-            final Uri uri = data.getData();
-            if(!validateContentUriType(context, uri, CONTENT_ITEM_TYPE)) {
-                throw new ValidationException("Tried to load a content URI of the wrong type: "
-                    + uri);
-            }
-
-            final String filePath = getFormFilePath(context, uri);
-            if(!validateFilePath(filePath, uri)) {
-                throw new ValidationException("No file path for form instance: " + uri);
+        final Context appContext = context.getApplicationContext();
+        final Uri uri = data.getData();
+        sSubmitExecutor.execute(new Runnable() {
+            @Override public void run() {
+                try {
+                    submitInstance(appContext, settings, patientUuid, uri);
+                } catch(ValidationException ve) {
+                    LOG.e(ve.getMessage());
+                    EventBus.getDefault().post(
+                        new SubmitXformFailedEvent(SubmitXformFailedEvent.Reason.CLIENT_ERROR));
+                } catch(RuntimeException e) {
+                    LOG.e(e, "Could not process form instance: " + uri);
+                    EventBus.getDefault().post(
+                        new SubmitXformFailedEvent(SubmitXformFailedEvent.Reason.CLIENT_ERROR));
+                }
             }
+        });
+    }
 
-            final Long formIdToDelete = getIdToDeleteAfterUpload(context, uri);
-            if(!validateIdToDeleteAfterUpload(formIdToDelete, uri)) {
-                throw new ValidationException("No id to delete for after upload: " + uri);
-            }
+    /**
+     * Reads a submitted form instance once and, for an existing patient, parses it once to save
+     * its observations locally before queueing it in the {@link Outbox}.  A new patient needs
+     * the server to register it, so that form is sent directly.  Runs on a background thread.
+     */
+    private static void submitInstance(final Context context, final AppSettings settings,
+                                       @Nullable String patientUuid, Uri uri)
+        throws ValidationException {
+        if(!validateContentUriType(context, uri, CONTENT_ITEM_TYPE)) {
+            throw new ValidationException("Tried to load a content URI of the wrong type: "
+                + uri);
+        }
 
-            // Temporary code for messing about with xform instance, reading values.
-            byte[] fileBytes = FileUtils.getFileAsBytes(new File(filePath));
+        final String filePath = getFormFilePath(context, uri);
+        if(!validateFilePath(filePath, uri)) {
+            throw new ValidationException("No file path for form instance: " + uri);
+        }
 
-            // get the root of the saved and template instances
-            final TreeElement savedRoot = XFormParser.restoreDataModel(fileBytes, null).getRoot();
+        final Long formIdToDelete = getIdToDeleteAfterUpload(context, uri);
+        if(!validateIdToDeleteAfterUpload(formIdToDelete, uri)) {
+            throw new ValidationException("No id to delete for after upload: " + uri);
+        }
 
-            final String xml = readFromPath(filePath);
-            if(!validateXml(xml)) {
-                throw new ValidationException("Xml form is not valid for uri: " + uri);
+        // ODK writes instances in UTF-8; the same bytes serve as both the request body and the
+        // input to the parser, so the file is only read once.
+        byte[] fileBytes = FileUtils.getFileAsBytes(new File(filePath));
+        if (fileBytes == null) {
+            throw new ValidationException("Could not read form instance: " + uri);
+        }
+        String xml = new String(fileBytes, Charsets.UTF_8);
+
+        if (patientUuid != null) {
+            TreeElement savedRoot = XFormParser.restoreDataModel(fileBytes, null).getRoot();
+            String localUuid = updateObservationCache(
+                patientUuid, savedRoot, context.getContentResolver());
+            JsonUser activeUser = App.getUserManager().getActiveUser();
+            JSONObject body;
+            try {
+                body = OpenMrsXformsConnection.getXformInstanceJson(
+                    patientUuid, activeUser.id, xml);
+            } catch (JSONException e) {
+                throw new ValidationException("Could not build request for form: " + uri);
+            }
+            App.getInstance().getOutbox().enqueue(
+                Outbox.Kind.XFORM, patientUuid, localUuid, "/xforminstances", body);
+            if (!settings.getKeepFormInstancesLocally()) {
+                deleteLocalFormInstances(formIdToDelete);
             }
+            EventBus.getDefault().post(new SubmitXformSucceededEvent());
+            return;
+        }
 
-            sendFormToServer(patientUuid, xml,
-                new Response.Listener<JSONObject>() {
-                    @Override public void onResponse(JSONObject response) {
-                        LOG.i("Created new encounter successfully on server" + response.toString());
-                        // Only locally cache new observations, not new patients.
-                        if (patientUuid != null) {
-                            updateObservationCache(patientUuid, savedRoot, context.getContentResolver());
-                        }
-                        if (!settings.getKeepFormInstancesLocally()) {
-                            deleteLocalFormInstances(formIdToDelete);
-                        }
-                        EventBus.getDefault().post(new SubmitXformSucceededEvent());
-                    }
-                }, new Response.ErrorListener() {
-                    @Override public void onErrorResponse(VolleyError error) {
-                        LOG.e(error, "Error submitting form to server");
-                        handleSubmitError(error);
+        sendFormToServer(null, xml,
+            new Response.Listener<JSONObject>() {
+                @Override public void onResponse(JSONObject response) {
+                    LOG.i("Created new patient successfully on server" + response.toString());
+                    if (!settings.getKeepFormInstancesLocally()) {
+                        deleteLocalFormInstances(formIdToDelete);
                     }
-                });
-        } catch(ValidationException ve) {
-            LOG.e(ve.getMessage());
-            EventBus.getDefault().post(
-                new SubmitXformFailedEvent(SubmitXformFailedEvent.Reason.CLIENT_ERROR));
-        }
+                    EventBus.getDefault().post(new SubmitXformSucceededEvent());
+                }
+            }, new Response.ErrorListener() {
+                @Override public void onErrorResponse(VolleyError error) {
+                    LOG.e(error, "Error submitting form to server");
+                    handleSubmitError(error);
+                }
+            });
     }
 
     /**
@@ -377,13 +412,6 @@ public class OdkActivityLauncher {
         return id != null;
     }
 
-    /**
-     * Validates the xml. Returns {@code true} if it is valid. Otherwise, returns {@code false}
-     */
-    private static boolean validateXml(String xml) {
-        return xml != null;
-    }
-
     private static void deleteLocalFormInstances(Long formIdToDelete) {
         //Code largely copied from InstanceUploaderTask to delete on upload
         DeleteInstancesTask dit = new DeleteInstancesTask();
@@ -532,30 +560,11 @@ public class OdkActivityLauncher {
     }
 
     /**
-     * Returns the xml form as a String from the path. If for any reason, the file couldn't be read,
-     * it returns <code>null</code>
-     * @param path      the path to be read
-     */
-    private static String readFromPath(String path) {
-        try {
-            StringBuilder sb = new StringBuilder();
-            BufferedReader reader = new BufferedReader(new FileReader(path));
-            String line;
-            while ((line = reader.readLine()) != null) {
-                sb.append(line).append("\n");
-            }
-            return sb.toString();
-        } catch (IOException e) {
-            LOG.e(e, format("Failed to read xml form into a String. FilePath=  ", path));
-            return null;
-        }
-    }
-
-    /**
-     * Caches the observation changes locally for a given patient.
+     * Saves the answers in a submitted form as temporary observations.  Returns the local
+     * encounter UUID that identifies them, or null if the form has no encounter time.
      */
-    private static void updateObservationCache(String patientUuid, TreeElement savedRoot,
-                                               ContentResolver resolver) {
+    private static String updateObservationCache(String patientUuid, TreeElement savedRoot,
+                                                 ContentResolver resolver) {
         ContentValues common = new ContentValues();
         // It's critical that UUID is {@code null} for temporary observations, so we make it
         // explicit here. See {@link Contracts.Observations.UUID} for details.
@@ -563,61 +572,31 @@ public class OdkActivityLauncher {
         common.put(Contracts.Observations.PATIENT_UUID, patientUuid);
 
         final DateTime encounterTime = getEncounterAnswerDateTime(savedRoot);
-        if(encounterTime == null) return;
+        if(encounterTime == null) return null;
+        String localUuid = UUID.randomUUID().toString();
         common.put(Contracts.Observations.ENCOUNTER_MILLIS, encounterTime.getMillis());
-        common.put(Contracts.Observations.ENCOUNTER_UUID, UUID.randomUUID().toString());
-
-        Set<Integer> xformConceptIds = new HashSet<>();
-        List<ContentValues> toInsert = getAnsweredObservations(common, savedRoot, xformConceptIds);
-        Map<String, String> xformIdToUuid = mapFormConceptIdToUuid(xformConceptIds, resolver);
-
-        // Remap concept ids to uuids, skipping anything we can't remap.
-        for (Iterator<ContentValues> i = toInsert.iterator(); i.hasNext(); ) {
-            ContentValues values = i.next();
-            if (!mapIdToUuid(xformIdToUuid, values, Contracts.Observations.CONCEPT_UUID)) {
-                i.remove();
-            }
-            mapIdToUuid(xformIdToUuid, values, Contracts.Observations.VALUE);
-        }
+        common.put(Contracts.Observations.ENCOUNTER_UUID, localUuid);
 
+        SparseArray<String> conceptUuidsByXformId =
+            new ChartDataHelper(resolver).getConceptUuidsByXformId();
+        List<ContentValues> toInsert =
+            getAnsweredObservations(common, savedRoot, conceptUuidsByXformId);
         resolver.bulkInsert(Contracts.Observations.CONTENT_URI,
             toInsert.toArray(new ContentValues[toInsert.size()]));
-    }
-
-    /** Get a map from XForm ids to UUIDs from our local concept database. */
-    private static Map<String, String> mapFormConceptIdToUuid(Set<Integer> xformConceptIds,
-                                                              ContentResolver resolver) {
-        String inClause = Joiner.on(",").join(xformConceptIds);
-
-        HashMap<String, String> xformIdToUuid = new HashMap<>();
-        Cursor cursor = resolver.query(Contracts.Concepts.CONTENT_URI,
-            new String[] {Contracts.Concepts.UUID, Contracts.Concepts.XFORM_ID},
-            Contracts.Concepts.XFORM_ID + " IN (" + inClause + ")",
-            null, null);
-
-        try {
-            while (cursor.moveToNext()) {
-                xformIdToUuid.put(Utils.getString(cursor, Contracts.Concepts.XFORM_ID),
-                    Utils.getString(cursor, Contracts.Concepts.UUID));
-            }
-        } finally {
-            cursor.close();
-        }
-
-        return xformIdToUuid;
+        return localUuid;
     }
 
     /**
-     * Returns a {@link ContentValues} list containing the id concept and the answer valeu from
-     * all answered observations. Returns a empty {@link List} if no observation was answered.
+     * Returns a {@link ContentValues} list containing the concept UUID and the answer value from
+     * all answered observations, skipping questions whose concepts aren't known locally.
+     * Returns a empty {@link List} if no observation was answered.
      *
      * @param common                        the current content values.
      * @param savedRoot                     the root tree form element
-     * @param xformConceptIdsAccumulator    the set to store the form concept ids found
+     * @param conceptUuidsByXformId         an index from XForm concept IDs to concept UUIDs
      */
-    private static List<ContentValues> getAnsweredObservations(ContentValues common,
-                                                                    TreeElement savedRoot,
-                                                                    Set<Integer> xformConceptIdsAccumulator) {
+    private static List<ContentValues> getAnsweredObservations(
+        ContentValues common, TreeElement savedRoot, SparseArray<String> conceptUuidsByXformId) {
         List<ContentValues> answeredObservations = new ArrayList<>();
         for (int i = 0; i < savedRoot.getNumChildren(); i++) {
             TreeElement group = savedRoot.getChildAt(i);
@@ -631,8 +610,9 @@ public class OdkActivityLauncher {
                 // Get the concept for the question.
                 // eg "5088^Temperature (C)^99DCT"
                 String encodedConcept = (String) openmrsConcept.getValue().getValue();
-                Integer id = getConceptId(xformConceptIdsAccumulator, encodedConcept);
-                if (id == null) continue;
+                int id = getConceptId(encodedConcept);
+                String conceptUuid = id == NO_CONCEPT_ID ? null : conceptUuidsByXformId.get(id);
+                if (conceptUuid == null) continue;
 
                 // Also get for the answer if a coded question
                 TreeElement valueChild = question.getChild("value", 0);
@@ -642,14 +622,16 @@ public class OdkActivityLauncher {
                 Object answerObject = answer.getValue();
                 String value;
                 if ("CWE".equals(openmrsDatatype.getValue().getValue())) {
-                    value = getConceptId(xformConceptIdsAccumulator, answerObject.toString()).toString();
+                    int answerId = getConceptId(answerObject.toString());
+                    if (answerId == NO_CONCEPT_ID) continue;
+                    // Keep the ID if the answer concept isn't known, as before.
+                    value = conceptUuidsByXformId.get(answerId, String.valueOf(answerId));
                 } else {
                     value = answerObject.toString();
                 }
 
                 ContentValues observation = new ContentValues(common);
-                // Set to the id for now, we'll replace with uuid later
-                observation.put(Contracts.Observations.CONCEPT_UUID, id.toString());
+                observation.put(Contracts.Observations.CONCEPT_UUID, conceptUuid);
                 observation.put(Contracts.Observations.VALUE, value);
 
                 answeredObservations.add(observation);
@@ -684,36 +666,26 @@ public class OdkActivityLauncher {
         }
     }
 
-    private static Integer getConceptId(Set<Integer> accumulator, String encodedConcept) {
-        Integer id = getConceptId(encodedConcept);
-        if (id != null) {
-            accumulator.add(id);
-        }
-        return id;
-    }
-
-    private static boolean mapIdToUuid(
-        Map<String, String> idToUuid, ContentValues values, String key) {
-        String id = (String) values.get(key);
-        String uuid = idToUuid.get(id);
-        if (uuid == null) {
-            return false;
-        }
-        values.put(key, uuid);
-        return true;
-    }
-
-    private static Integer getConceptId(String encodedConcept) {
+    /**
+     * Returns the concept ID at the start of an encoded XForm concept such as
+     * "5088^Temperature (C)^99DCT", or {@link #NO_CONCEPT_ID} if there isn't one.  The digits
+     * are read in place, as this runs for every answer in a form.
+     */
+    private static int getConceptId(String encodedConcept) {
         int idEnd = encodedConcept.indexOf('^');
-        if (idEnd == -1) {
-            return null;
+        if (idEnd <= 0 || idEnd > MAX_CONCEPT_ID_DIGITS) {
+            LOG.w("Strangely formatted concept " + encodedConcept);
+            return NO_CONCEPT_ID;
         }
-        String idString = encodedConcept.substring(0, idEnd);
-        try {
-            return Integer.parseInt(idString);
-        } catch (NumberFormatException ex) {
-            LOG.w("Strangely formatted id String " + idString);
-            return null;
+        int id = 0;
+        for (int i = 0; i < idEnd; i++) {
+            char ch = encodedConcept.charAt(i);
+            if (ch < '0' || ch > '9') {
+                LOG.w("Strangely formatted concept " + encodedConcept);
+                return NO_CONCEPT_ID;
+            }
+            id = id * 10 + (ch - '0');
         }
+        return id;
     }
 }
@@ -62,7 +62,8 @@ public class SettingsActivity extends PreferenceActivity {
         "keep_form_instances_locally",
         "xform_update_client_cache",
         "incremental_observation_update",
-        "require_wifi"
+        "require_wifi",
+        "compress_requests"
     };
     static boolean updatingPrefValues = false;
     /** A listener that performs updates when any preference's value changes. */
@@ -2,6 +2,7 @@ package org.projectbuendia.client.ui.chart;
 
 import android.content.res.Resources;
 import android.util.DisplayMetrics;
+import android.webkit.ValueCallback;
 import android.webkit.WebChromeClient;
 import android.webkit.WebView;
 
@@ -36,16 +37,27 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.SortedSet;
 import java.util.TreeMap;
 import java.util.TreeSet;
 
-/** Renders a patient's chart to HTML displayed in a WebView. */
+import javax.annotation.Nullable;
+
+/**
+ * Renders a patient's chart to HTML displayed in a WebView.  When only observations within the
+ * existing tiles and grid cells have changed since the last rendering, just those tiles and cells
+ * are re-rendered and patched into the loaded page, which keeps its scroll position; otherwise
+ * the whole page is rendered and loaded again.
+ */
 public class ChartRenderer {
     static PebbleEngine sEngine;
     private static final Logger LOG = Logger.create();
+    private static final String[] TEMPLATE_FILENAMES = {
+        "assets/chart.html", "assets/chart_tile.html", "assets/chart_cell.html"
+    };
 
     WebView mView;  // view into which the HTML table will be rendered
     Resources mResources;  // resources used for localizing the rendering
@@ -53,6 +65,9 @@ public class ChartRenderer {
     private List<Order> mLastRenderedOrders;  // last set of orders rendered
     private Chronology chronology = ISOChronology.getInstance(DateTimeZone.getDefault());
     private String lastChart = "";
+    private GridHtmlGenerator mLastGenerator;  // generator for the state the page is showing
+    private int mRenderId = 0;  // identifies each full page load, so a patch can target it
+    private final StringWriter mBuffer = new StringWriter();  // reused for every rendering
 
     public interface GridJsInterface {
         @android.webkit.JavascriptInterface
@@ -83,6 +98,7 @@ public class ChartRenderer {
                        GridJsInterface controllerInterface) {
         if (chart == null) {
             mView.loadUrl("file:///android_asset/no_chart.html");
+            mLastGenerator = null;
             return;
         }
         if ((observations.equals(mLastRenderedObs) && orders.equals(mLastRenderedOrders))
@@ -91,6 +107,20 @@ public class ChartRenderer {
         }
         lastChart = chart.name;
 
+        GridHtmlGenerator generator = new GridHtmlGenerator(
+            chart, latestObservations, observations, orders, admissionDate, firstSymptomsDate);
+        if (mLastGenerator != null && generator.hasSameLayout(mLastGenerator)) {
+            patch(generator.getChangedCellHtml(mLastGenerator), controllerInterface);
+        } else {
+            load(generator, controllerInterface);
+        }
+        mLastGenerator = generator;
+        mLastRenderedObs = observations;
+        mLastRenderedOrders = orders;
+    }
+
+    /** Renders the whole page and loads it into the WebView. */
+    private void load(GridHtmlGenerator generator, GridJsInterface controllerInterface) {
         // setDefaultFontSize is supposed to take a size in sp, but in practice
         // the fonts don't change size when the user font size preference changes.
         // So, we apply the scaling factor explicitly, defining 1 em to be 10 sp.
@@ -101,17 +131,34 @@ public class ChartRenderer {
         mView.getSettings().setJavaScriptEnabled(true);
         mView.addJavascriptInterface(controllerInterface, "controller");
         mView.setWebChromeClient(new WebChromeClient());
-        String html = new GridHtmlGenerator(chart, latestObservations, observations, orders,
-                                            admissionDate, firstSymptomsDate).getHtml();
+        String html = generator.getHtml(++mRenderId);
         mView.loadDataWithBaseURL("file:///android_asset/", html,
             "text/html; charset=utf-8", "utf-8", null);
         mView.setWebContentsDebuggingEnabled(true);
+    }
 
-        mLastRenderedObs = observations;
-        mLastRenderedOrders = orders;
+    /**
+     * Replaces the given tiles and cells in the loaded page.  If the page can't be patched
+     * (for example, because it hasn't finished loading), the latest state is loaded in full.
+     */
+    private void patch(List<String> cellHtml, final GridJsInterface controllerInterface) {
+        if (cellHtml.isEmpty()) {
+            return;
+        }
+        LOG.d("Patching %d chart cells", cellHtml.size());
+        String script = "patchChart(" + mRenderId + ", " + new JSONArray(cellHtml) + ")";
+        mView.evaluateJavascript(script, new ValueCallback<String>() {
+            @Override public void onReceiveValue(String result) {
+                if (!"true".equals(result) && mLastGenerator != null) {
+                    LOG.w("Chart patch failed; rendering the whole chart");
+                    load(mLastGenerator, controllerInterface);
+                }
+            }
+        });
     }
 
     class GridHtmlGenerator {
+        Chart mChart;
         List<String> mTileConceptUuids;
         List<String> mGridConceptUuids;
         List<Order> mOrders;
@@ -129,6 +176,7 @@ public class ChartRenderer {
         GridHtmlGenerator(Chart chart, Map<String, Obs> latestObservations,
                           List<Obs> observations, List<Order> orders,
                           LocalDate admissionDate, LocalDate firstSymptomsDate) {
+            mChart = chart;
             mAdmissionDate = admissionDate;
             mFirstSymptomsDate = firstSymptomsDate;
             mOrders = orders;
@@ -249,8 +297,9 @@ public class ChartRenderer {
 
         // TODO: grouped coded concepts (for select-multiple, e.g. types of bleeding, types of pain)
         // TODO: concept tags for formatting hints (e.g. none/mild/moderate/severe, abbreviated)
-        String getHtml() {
+        String getHtml(int renderId) {
             Map<String, Object> context = new HashMap<>();
+            context.put("renderId", renderId);
             context.put("tileRows", mTileRows);
             context.put("rows", mRows);
             context.put("columns", Lists.newArrayList(mColumnsByStartMillis.values()));
@@ -260,6 +309,71 @@ public class ChartRenderer {
             return renderTemplate("assets/chart.html", context);
         }
 
+        /**
+         * Returns true if the page rendered from this generator would differ from the one
+         * rendered from another generator only in the contents of its tiles and grid cells.
+         * Everything else (the chart, columns, orders, and the data passed to chart scripts)
+         * must be the same for the page to be patched instead of rendered again.
+         */
+        boolean hasSameLayout(GridHtmlGenerator other) {
+            if (mChart != other.mChart
+                || !mColumnsByStartMillis.keySet().equals(other.mColumnsByStartMillis.keySet())
+                || !mNowColumn.start.equals(other.mNowColumn.start)
+                || !Objects.equals(mAdmissionDate, other.mAdmissionDate)
+                || !mOrders.equals(other.mOrders)) {
+                return false;
+            }
+            for (Column column : mColumnsByStartMillis.values()) {
+                Column otherColumn = other.mColumnsByStartMillis.get(column.start.getMillis());
+                if (!column.executionCountsByOrderUuid.equals(
+                    otherColumn.executionCountsByOrderUuid)) {
+                    return false;
+                }
+            }
+            return getJsonDataDump().toString().equals(other.getJsonDataDump().toString());
+        }
+
+        /**
+         * Renders the tiles and grid cells whose observations differ from those of another
+         * generator with the same layout (see {@link #hasSameLayout}).
+         */
+        List<String> getChangedCellHtml(GridHtmlGenerator other) {
+            List<String> result = new ArrayList<>();
+            for (int i = 0; i < mTileRows.size(); i++) {
+                List<Tile> tileRow = mTileRows.get(i);
+                for (int j = 0; j < tileRow.size(); j++) {
+                    Tile tile = tileRow.get(j);
+                    if (!Arrays.equals(tile.points, other.mTileRows.get(i).get(j).points)) {
+                        Map<String, Object> context = new HashMap<>();
+                        context.put("tile", tile);
+                        context.put("tileRow", tileRow);
+                        result.add(renderTemplate("assets/chart_tile.html", context));
+                    }
+                }
+            }
+            for (Row row : mRows) {
+                String conceptUuid = row.item.conceptUuids[0];
+                for (Column column : mColumnsByStartMillis.values()) {
+                    Column otherColumn = other.mColumnsByStartMillis.get(column.start.getMillis());
+                    if (!Objects.equals(getPoints(column, conceptUuid),
+                        getPoints(otherColumn, conceptUuid))) {
+                        Map<String, Object> context = new HashMap<>();
+                        context.put("row", row);
+                        context.put("column", column);
+                        context.put("nowColumnStart", mNowColumn.start);
+                        result.add(renderTemplate("assets/chart_cell.html", context));
+                    }
+                }
+            }
+            return result;
+        }
+
+        /** Gets the points for a concept in a column, or null if there are none. */
+        private @Nullable SortedSet<ObsPoint> getPoints(Column column, String conceptUuid) {
+            SortedSet<ObsPoint> points = column.pointSetByConceptUuid.get(conceptUuid);
+            return points == null || points.isEmpty() ? null : points;
+        }
+
         /**
          * Inserts empty columns to fill in the gaps between the existing columns, wherever
          * the gap can be filled by inserting fewer than 3 adjacent empty columns.
@@ -282,16 +396,11 @@ public class ChartRenderer {
 
         /** Renders a Pebble template. */
         String renderTemplate(String filename, Map<String, Object> context) {
-            if (sEngine == null) {
-                // PebbleEngine caches compiled templates by filename, so as long as we keep using the
-                // same engine instance, it's okay to call getTemplate(filename) on each render.
-                sEngine = new PebbleEngine();
-                sEngine.addExtension(new PebbleExtension());
-            }
+            // Render into one buffer that is reused (and so only grows) across renderings.
+            mBuffer.getBuffer().setLength(0);
             try {
-                StringWriter writer = new StringWriter();
-                sEngine.getTemplate(filename).evaluate(writer, context);
-                return writer.toString();
+                getEngine().getTemplate(filename).evaluate(mBuffer, context);
+                return mBuffer.toString();
             } catch (Exception e) {
                 StringWriter writer = new StringWriter();
                 e.printStackTrace(new PrintWriter(writer));
@@ -299,4 +408,28 @@ public class ChartRenderer {
             }
         }
     }
+
+    static synchronized PebbleEngine getEngine() {
+        if (sEngine == null) {
+            // PebbleEngine caches compiled templates by filename, so as long as we keep using the
+            // same engine instance, it's okay to call getTemplate(filename) on each render.
+            sEngine = new PebbleEngine();
+            sEngine.addExtension(new PebbleExtension());
+        }
+        return sEngine;
+    }
+
+    /**
+     * Compiles the chart templates into the engine's cache ahead of time (e.g. when the chart
+     * definitions are synced), so that opening a patient chart doesn't have to.
+     */
+    public static void compileTemplates() {
+        for (String filename : TEMPLATE_FILENAMES) {
+            try {
+                getEngine().getTemplate(filename);
+            } catch (Exception e) {
+                LOG.e(e, "Could not compile chart template %s", filename);
+            }
+        }
+    }
 }
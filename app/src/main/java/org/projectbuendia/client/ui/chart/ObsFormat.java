@@ -61,6 +61,8 @@ public class ObsFormat extends Format {
         FORMAT_CLASSES.put("select", ObsSelectFormat.class);
     }
 
+    private static final Map<String, ObsFormat> sFormatsByPattern = new HashMap<>();
+
     public static final String ELLIPSIS = "\u2026";  // used when truncating excessively long text
     public static final String EN_DASH = "\u2013";  // an en-dash to mean "nothing has been observed"
     public static final String TYPE_ERROR = "?";  // shown for a type mismatch (e.g. non-ObsValue)
@@ -119,10 +121,22 @@ public class ObsFormat extends Format {
         return mPattern;
     }
 
-    /** Returns an ObsFormat for the given pattern, or null for a null or empty pattern. */
+    /**
+     * Returns an ObsFormat for the given pattern, or null for a null or empty pattern.  Parsing a
+     * pattern is slow, so instances are cached and shared by pattern.  An ObsFormat holds the
+     * arguments it is currently formatting, so shared instances must only be used to format on
+     * one thread (in practice, the main thread, which renders the patient chart).
+     */
     public static @Nullable ObsFormat fromPattern(@Nullable String pattern) {
-        // TODO/speed: If creating ObsFormats is slow, we could cache instances here by pattern.
-        return Utils.isEmpty(pattern) ? null : new ObsFormat(pattern);
+        if (Utils.isEmpty(pattern)) return null;
+        synchronized (sFormatsByPattern) {
+            ObsFormat format = sFormatsByPattern.get(pattern);
+            if (format == null) {
+                format = new ObsFormat(pattern);
+                sFormatsByPattern.put(pattern, format);
+            }
+            return format;
+        }
     }
 
     public Object[] getCurrentArgs() {
@@ -16,6 +16,7 @@ import android.app.ProgressDialog;
 import android.content.Context;
 import android.content.Intent;
 import android.graphics.Point;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
 import android.view.Menu;
@@ -256,7 +257,8 @@ public final class PatientChartActivity extends BaseLoggedInActivity {
             mChartDataHelper,
             controllerState,
             mSyncManager,
-            minimalHandler);
+            minimalHandler,
+            AsyncTask.THREAD_POOL_EXECUTOR);
 
         // Show the Up button in the action bar.
         getActionBar().setDisplayHomeAsUpEnabled(true);
@@ -56,6 +56,7 @@ import org.projectbuendia.client.models.Patient;
 import org.projectbuendia.client.models.PatientDelta;
 import org.projectbuendia.client.models.VoidObs;
 import org.projectbuendia.client.sync.ChartDataHelper;
+import org.projectbuendia.client.sync.ChartDataHelper.PatientChartData;
 import org.projectbuendia.client.sync.SyncManager;
 import org.projectbuendia.client.ui.dialogs.AssignLocationDialog;
 import org.projectbuendia.client.utils.EventBusRegistrationInterface;
@@ -67,6 +68,8 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nullable;
 
@@ -82,13 +85,12 @@ final class PatientChartController implements ChartRenderer.GridJsInterface {
     static final String EBOLA_LAB_TEST_FORM_UUID = "buendia-form-ebola_lab_test";
 
     /**
-     * Period between observation syncs while the chart view is active.  It would be nice for
-     * this to be even shorter (20 s? 10 s?) but currently the table scroll position resets on
-     * each sync, if any data has changed.
-     * TODO: Try reducing this period to improve responsiveness, but be wary of the table scrolling
-     * whenever data is refreshed.
+     * Minimum period between observation syncs while the chart view is active.  The actual period
+     * comes from {@link SyncManager#getObservationSyncPeriodMillis()} and lengthens while syncs
+     * find nothing new.  Changes to observations are patched into the rendered chart in place
+     * (see {@link ChartRenderer}), so frequent syncs don't reset the table scroll position.
      */
-    private static final int OBSERVATION_SYNC_PERIOD_MILLIS = 60000;
+    private static final long MIN_OBSERVATION_SYNC_PERIOD_MILLIS = 10000;
 
     // TODO: Get rid of mPatientUuids, mNextIndex etc. now that we have mFormRequests.
     /** Maximum concurrent ODK forms assigned request codes. */
@@ -119,6 +121,10 @@ final class PatientChartController implements ChartRenderer.GridJsInterface {
     private final EventSubscriber mEventBusSubscriber = new EventSubscriber();
     private final SyncManager mSyncManager;
     private final MinimalHandler mMainThreadHandler;
+    private final Executor mBackgroundExecutor;
+    // Incremented whenever a chart data load is started or the controller is suspended, so that
+    // a load that has been superseded can tell, and its results are never shown.
+    private final AtomicInteger mChartLoadId = new AtomicInteger();
     private AssignLocationDialog mAssignLocationDialog;
     private AssignGeneralConditionDialog mAssignGeneralConditionDialog;
     private List<Chart> mCharts;
@@ -209,7 +215,8 @@ final class PatientChartController implements ChartRenderer.GridJsInterface {
         ChartDataHelper chartHelper,
         @Nullable Bundle savedState,
         SyncManager syncManager,
-        MinimalHandler mainThreadHandler) {
+        MinimalHandler mainThreadHandler,
+        Executor backgroundExecutor) {
         mAppModel = appModel;
         mDefaultEventBus = defaultEventBus;
         mCrudEventBus = crudEventBus;
@@ -224,6 +231,7 @@ final class PatientChartController implements ChartRenderer.GridJsInterface {
         }
         mSyncManager = syncManager;
         mMainThreadHandler = mainThreadHandler;
+        mBackgroundExecutor = backgroundExecutor;
         mLastScrollPosition = new Point(Integer.MAX_VALUE, 0);
         mCharts = mChartHelper.getCharts(AppModel.CHART_UUID);
     }
@@ -267,7 +275,8 @@ final class PatientChartController implements ChartRenderer.GridJsInterface {
                 // only have one value, only one such cycle can be active at any given time.
                 if (mCurrentPhaseId == phaseId) {
                     mSyncManager.startObservationsAndOrdersSync();
-                    handler.postDelayed(this, OBSERVATION_SYNC_PERIOD_MILLIS);
+                    handler.postDelayed(this, Math.max(MIN_OBSERVATION_SYNC_PERIOD_MILLIS,
+                        mSyncManager.getObservationSyncPeriodMillis()));
                 }
             }
         };
@@ -278,6 +287,7 @@ final class PatientChartController implements ChartRenderer.GridJsInterface {
     /** Releases any resources used by the controller. */
     public void suspend() {
         mCurrentPhaseId++;  // phase ID changes on every init() or suspend()
+        mChartLoadId.incrementAndGet();  // discard any chart data load in progress
 
         mCrudEventBus.unregister(mEventBusSubscriber);
         mDefaultEventBus.unregister(mEventBusSubscriber);
@@ -526,18 +536,39 @@ final class PatientChartController implements ChartRenderer.GridJsInterface {
         mAssignLocationDialog.show();
     }
 
-    /** Gets the latest observation values and displays them on the UI. */
-    public synchronized void updatePatientObsUi(int chartNum) {
-        // Get the observations and orders
-        // TODO: Background thread this, or make this call async-like.
-        mObservations = mChartHelper.getObservations(mPatientUuid);
-        Map<String, Obs> latestObservations =
-            new HashMap<>(mChartHelper.getLatestObservations(mPatientUuid));
-        List<Order> orders = mChartHelper.getOrders(mPatientUuid);
-        mOrdersByUuid = new HashMap<>();
+    /**
+     * Loads the patient's observations and orders on a background thread, then displays them on
+     * the UI.  A load that is superseded by a newer one before it finishes is abandoned.
+     */
+    public void updatePatientObsUi(final int chartNum) {
+        lastChartIndex = chartNum;
+        final int loadId = mChartLoadId.incrementAndGet();
+        final String patientUuid = mPatientUuid;
+        mBackgroundExecutor.execute(new Runnable() {
+            @Override public void run() {
+                if (mChartLoadId.get() != loadId) return;
+                final PatientChartData data = mChartHelper.getPatientChartData(patientUuid);
+                mMainThreadHandler.post(new Runnable() {
+                    @Override public void run() {
+                        if (mChartLoadId.get() == loadId) {
+                            showPatientObs(chartNum, data);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /** Displays a loaded snapshot of the patient's observations and orders.  Main thread only. */
+    private void showPatientObs(int chartNum, PatientChartData data) {
+        mObservations = data.observations;
+        Map<String, Obs> latestObservations = new HashMap<>(data.latestObservations);
+        List<Order> orders = data.orders;
+        Map<String, Order> ordersByUuid = new HashMap<>();
         for (Order order : orders) {
-            mOrdersByUuid.put(order.uuid, order);
+            ordersByUuid.put(order.uuid, order);
         }
+        mOrdersByUuid = ordersByUuid;
         LOG.d("Showing " + mObservations.size() + " observations and "
             + orders.size() + " orders");
 
@@ -549,7 +580,6 @@ final class PatientChartController implements ChartRenderer.GridJsInterface {
         mUi.updateEbolaPcrTestResultUi(latestObservations);
         mUi.updatePregnancyAndIvStatusUi(latestObservations);
 
-        lastChartIndex = chartNum;
         mUi.updateTilesAndGrid(
             mCharts.get(chartNum),
             latestObservations, mObservations, orders,
@@ -668,27 +698,11 @@ final class PatientChartController implements ChartRenderer.GridJsInterface {
                 // below updates all the parts of the UI that use observation data.
             }
 
-            // TODO: Displaying the observations part of the UI takes a lot of main-thread time.
-            // This delays rendering of the rest of UI. To allow the rest of the UI to be displayed
-            // before we attempt to populate the observations, we delay the observation update
-            // slightly. We need this hack because we load observations on the main thread. We
-            // should change this to use a background thread. Either an async task or using
-            // CrudEventBus events.
-            mMainThreadHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    updatePatientObsUi(lastChartIndex);
-                }
-            });
+            updatePatientObsUi(lastChartIndex);
         }
 
         public void onEventMainThread(ItemDeletedEvent event) {
-            mMainThreadHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    updatePatientObsUi(lastChartIndex);
-                }
-            });
+            updatePatientObsUi(lastChartIndex);
         }
 
         public void onEventMainThread(PatientUpdateFailedEvent event) {
@@ -36,6 +36,7 @@ import org.projectbuendia.client.events.data.ItemFetchedEvent;
 import org.projectbuendia.client.models.AppModel;
 import org.projectbuendia.client.models.Patient;
 import org.projectbuendia.client.sync.SyncAccountService;
+import org.projectbuendia.client.providers.Contracts;
 import org.projectbuendia.client.providers.Contracts.Patients;
 import org.projectbuendia.client.utils.RelativeDateTimeFormatter;
 import org.projectbuendia.client.utils.Utils;
@@ -137,8 +138,10 @@ public class GoToPatientDialogFragment extends DialogFragment {
                 mPatientUuid = null;
                 mPatientSearchResult.setText("");
             } else {
+                // The full-text index narrows the search to a few rows without a table scan.
                 try (Cursor cursor = getActivity().getContentResolver().query(
-                    Patients.CONTENT_URI, null, Patients.ID + " = ?", new String[] {id}, null)) {
+                    Contracts.getPatientSearchUri(id), null,
+                    Patients.ID + " = ?", new String[] {id}, null)) {
                     if (cursor.moveToNext()) {
                         String uuid = Utils.getString(cursor, Patients.UUID, null);
                         String givenName = Utils.getString(cursor, Patients.GIVEN_NAME, "");
@@ -26,10 +26,7 @@ import org.projectbuendia.client.filter.db.SimpleSelectionFilterGroup;
 import org.projectbuendia.client.filter.db.patient.LocationUuidFilter;
 import org.projectbuendia.client.filter.db.patient.PatientDbFilters;
 import org.projectbuendia.client.filter.matchers.FilteredCursorWrapper;
-import org.projectbuendia.client.filter.matchers.MatchingFilter;
-import org.projectbuendia.client.filter.matchers.MatchingFilterGroup;
-import org.projectbuendia.client.filter.matchers.patient.IdFilter;
-import org.projectbuendia.client.filter.matchers.patient.NameFilter;
+import org.projectbuendia.client.filter.matchers.patient.PatientSearchIndex;
 import org.projectbuendia.client.models.AppModel;
 import org.projectbuendia.client.models.LocationTree;
 import org.projectbuendia.client.models.Patient;
@@ -43,8 +40,6 @@ import java.util.Set;
 
 import de.greenrobot.event.EventBus;
 
-import static org.projectbuendia.client.filter.matchers.MatchingFilterGroup.FilterType.OR;
-
 /** Controller for {@link BaseSearchablePatientListActivity}. */
 public class PatientSearchController {
 
@@ -65,9 +60,9 @@ public class PatientSearchController {
     private final Object mFilterSubscriberLock = new Object();
     private final LocationTreeUpdatedSubscriber mLocationTreeUpdatedSubscriber;
     private boolean mWaitingOnLocationTree = false;
-    private final MatchingFilter<Patient> mSearchFilter =
-        new MatchingFilterGroup<Patient>(OR, new IdFilter(), new NameFilter());
     private TypedCursor<Patient> mPatientsCursor;
+    /** Index over {@link #mPatientsCursor}, rebuilt whenever the cursor is replaced. */
+    private PatientSearchIndex mSearchIndex;
     private final SyncSubscriber mSyncSubscriber;
     private final CreationSubscriber mCreationSubscriber;
 
@@ -157,10 +152,7 @@ public class PatientSearchController {
         }
 
         if (mPatientsCursor != null) {
-            FilteredCursorWrapper<Patient> filteredCursorWrapper =
-                new FilteredCursorWrapper<Patient>(
-                    mPatientsCursor, mSearchFilter, mFilterQueryTerm);
-            fragmentUi.setPatients(filteredCursorWrapper);
+            fragmentUi.setPatients(mSearchIndex.search(mFilterQueryTerm));
         }
 
         // If all data is loaded, no need for a spinner.
@@ -210,8 +202,7 @@ public class PatientSearchController {
 
     private void updatePatients() {
         FilteredCursorWrapper<Patient> filteredCursorWrapper =
-            new FilteredCursorWrapper<Patient>(
-                mPatientsCursor, mSearchFilter, mFilterQueryTerm);
+            mSearchIndex.search(mFilterQueryTerm);
         mUi.setPatients(filteredCursorWrapper);
         for (FragmentUi fragmentUi : mFragmentUis) {
             fragmentUi.setPatients(filteredCursorWrapper);
@@ -346,6 +337,7 @@ public class PatientSearchController {
 
             // Replace the patient cursor with the newly-fetched results.
             mPatientsCursor = event.cursor;
+            mSearchIndex = new PatientSearchIndex(mPatientsCursor);
             updatePatients();
         }
     }
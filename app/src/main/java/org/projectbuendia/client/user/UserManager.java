@@ -12,6 +12,7 @@
 package org.projectbuendia.client.user;
 
 import android.content.OperationApplicationException;
+import android.content.SyncResult;
 import android.os.AsyncTask;
 import android.os.RemoteException;
 
@@ -129,11 +130,14 @@ public class UserManager {
         }
     }
 
-    /** Sync users synchronously. Blocks until the list of users is synced, or interrupted. */
-    public void syncKnownUsersSynchronously()
+    /**
+     * Sync users synchronously. Blocks until the list of users is synced, or interrupted.  The
+     * users added, renamed, or removed are counted in the given {@link SyncResult}.
+     */
+    public void syncKnownUsersSynchronously(SyncResult syncResult)
         throws InterruptedException, ExecutionException, RemoteException,
         OperationApplicationException, UserSyncException {
-        onUsersSynced(mUserStore.syncKnownUsers());
+        onUsersSynced(mUserStore.syncKnownUsers(syncResult));
     }
 
     /**
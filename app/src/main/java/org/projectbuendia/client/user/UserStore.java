@@ -24,6 +24,7 @@ import com.android.volley.VolleyError;
 import com.android.volley.toolbox.RequestFuture;
 import com.google.common.collect.ImmutableSet;
 
+import net.sqlcipher.database.SQLiteDatabase;
 import net.sqlcipher.database.SQLiteException;
 
 import org.projectbuendia.client.App;
@@ -32,12 +33,13 @@ import org.projectbuendia.client.json.JsonUser;
 import org.projectbuendia.client.providers.BuendiaProvider;
 import org.projectbuendia.client.providers.Contracts;
 import org.projectbuendia.client.providers.Contracts.Users;
-import org.projectbuendia.client.providers.SQLiteDatabaseTransactionHelper;
 import org.projectbuendia.client.utils.Logger;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
@@ -46,7 +48,6 @@ import java.util.concurrent.ExecutionException;
 public class UserStore {
 
     private static final Logger LOG = Logger.create();
-    private static final String USER_SYNC_SAVEPOINT_NAME = "USER_SYNC_SAVEPOINT";
 
     /**
      * Loads the known users from local store. If there is no user in db or the application
@@ -67,9 +68,20 @@ public class UserStore {
 
     /** Syncs known users with the server. */
     public Set<JsonUser> syncKnownUsers()
+        throws ExecutionException, InterruptedException, RemoteException,
+        OperationApplicationException {
+        return syncKnownUsers(new SyncResult());
+    }
+
+    /**
+     * Syncs known users with the server, counting the users that were added, renamed, or removed
+     * since the last sync in the given {@link SyncResult}.
+     */
+    public Set<JsonUser> syncKnownUsers(SyncResult syncResult)
         throws ExecutionException, InterruptedException, RemoteException,
         OperationApplicationException {
         Set<JsonUser> users = getUsersFromServer();
+        countChanges(getUsersFromDb(), users, syncResult);
         updateDatabase(users);
         return users;
     }
@@ -145,20 +157,15 @@ public class UserStore {
             .acquireContentProviderClient(Users.CONTENT_URI);
         BuendiaProvider buendiaProvider =
             (BuendiaProvider) (client.getLocalContentProvider());
-        SQLiteDatabaseTransactionHelper dbTransactionHelper =
-            buendiaProvider.getDbTransactionHelper();
+        // A real transaction, not a savepoint, so that writes from other threads can't join it.
+        SQLiteDatabase db = buendiaProvider.getWritableDatabase();
+        db.beginTransaction();
         try {
-            LOG.d("Setting savepoint %s", USER_SYNC_SAVEPOINT_NAME);
-            dbTransactionHelper.startNamedTransaction(USER_SYNC_SAVEPOINT_NAME);
-            client.applyBatch(getUserUpdateOps(users, new SyncResult()));
-        } catch (RemoteException | OperationApplicationException e) {
-            LOG.d("Rolling back savepoint %s", USER_SYNC_SAVEPOINT_NAME);
-            dbTransactionHelper.rollbackNamedTransaction(USER_SYNC_SAVEPOINT_NAME);
-            throw e;
+            client.applyBatch(getUserUpdateOps(users));
+            db.setTransactionSuccessful();
         } finally {
-            LOG.d("Releasing savepoint %s", USER_SYNC_SAVEPOINT_NAME);
-            dbTransactionHelper.releaseNamedTransaction(USER_SYNC_SAVEPOINT_NAME);
-            dbTransactionHelper.close();
+            // Rolls back unless the whole batch was applied.
+            db.endTransaction();
             client.release();
         }
     }
@@ -216,19 +223,38 @@ public class UserStore {
         }
     }
 
+    /**
+     * Counts the users that replacing {@code stored} with {@code synced} adds, renames, and
+     * removes.  All the users are rewritten on every sync, so the operations themselves don't
+     * show whether anything changed.
+     */
+    private static void countChanges(
+            Set<JsonUser> stored, Set<JsonUser> synced, SyncResult syncResult) {
+        Map<String, String> storedNames = new HashMap<>();
+        for (JsonUser user : stored) {
+            storedNames.put(user.id, user.fullName);
+        }
+        for (JsonUser user : synced) {
+            String storedName = storedNames.remove(user.id);
+            if (storedName == null) {
+                syncResult.stats.numInserts++;
+            } else if (!storedName.equals(user.fullName)) {
+                syncResult.stats.numUpdates++;
+            }
+        }
+        syncResult.stats.numDeletes += storedNames.size();
+    }
+
     /** Given a set of users, replaces the current set of users with users from that set. */
-    private static ArrayList<ContentProviderOperation> getUserUpdateOps(
-            Set<JsonUser> response, SyncResult syncResult) {
+    private static ArrayList<ContentProviderOperation> getUserUpdateOps(Set<JsonUser> response) {
         ArrayList<ContentProviderOperation> ops = new ArrayList<>();
         // Delete all users before inserting.
         ops.add(ContentProviderOperation.newDelete(Contracts.Users.CONTENT_URI).build());
-        // TODO: Update syncResult delete counts.
         for (JsonUser user : response) {
             ops.add(ContentProviderOperation.newInsert(Contracts.Users.CONTENT_URI)
                     .withValue(Contracts.Users.UUID, user.id)
                     .withValue(Contracts.Users.FULL_NAME, user.fullName)
                     .build());
-            syncResult.stats.numInserts++;
         }
         return ops;
     }
@@ -0,0 +1,196 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.odk.collect.android.logic;
+
+import android.util.Log;
+import android.util.LruCache;
+
+import org.apache.commons.io.IOUtils;
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.util.externalizable.ExtUtil;
+import org.javarosa.xform.util.XFormUtils;
+import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.utilities.FileUtils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A process-wide cache of parsed forms, so that opening a form needn't read and parse it from
+ * storage.  Each form is held as its serialized {@link FormDef}, keyed by the MD5 hash of its
+ * XML file, and {@link #load} deserializes a fresh copy from memory each time, because a FormDef
+ * is modified as the form is filled in.  The cache holds up to {@link #MAX_BYTES}, evicting the
+ * forms least recently opened.
+ * <p>
+ * Each serialized form is also written to a ".formdef" file in the ODK cache directory, which
+ * outlives the process.  {@link #prewarm} loads forms in the background ahead of their first use.
+ */
+public class FormDefCache {
+    private static final String t = "FormDefCache";
+
+    /** The most memory that the cached forms may take up. */
+    static final int MAX_BYTES = 4 * 1024 * 1024;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final LruCache<String, byte[]> sCache = new LruCache<String, byte[]>(MAX_BYTES) {
+        @Override protected int sizeOf(String formHash, byte[] serialized) {
+            return serialized.length;
+        }
+    };
+
+    private static final ExecutorService sPrewarmExecutor = Executors.newSingleThreadExecutor();
+
+    private FormDefCache() {
+        // Prevent instantiation.
+    }
+
+    /** Returns the file that holds the serialized form whose XML has the given hash. */
+    public static File getFormDefFile(String formHash) {
+        return new File(
+            Collect.getInstance().getCachePath() + File.separator + formHash + ".formdef");
+    }
+
+    /**
+     * Returns a new, uninitialized {@link FormDef} for a form: from memory if it's cached, else
+     * from its .formdef file, else by parsing the XML.  Returns null if the XML has no form.
+     * @param formXml  the form's XML file
+     * @param formHash the MD5 hash of the XML file
+     */
+    public static FormDef load(File formXml, String formHash) throws IOException {
+        byte[] serialized = sCache.get(formHash);
+        if (serialized != null) {
+            FormDef fd = deserialize(serialized);
+            if (fd != null) {
+                return fd;
+            }
+            sCache.remove(formHash);
+        }
+
+        File formBin = getFormDefFile(formHash);
+        if (formBin.exists()) {
+            Log.i(t, "Loading " + formXml.getName() + " from " + formBin.getAbsolutePath());
+            serialized = readFile(formBin);
+            FormDef fd = serialized == null ? null : deserialize(serialized);
+            if (fd != null) {
+                sCache.put(formHash, serialized);
+                return fd;
+            }
+            // The file is damaged or from an incompatible version; make a new one from the XML.
+            Log.w(t, "Deserialization FAILED!  Deleting cache file: " + formBin.getAbsolutePath());
+            formBin.delete();
+        }
+
+        Log.i(t, "Parsing " + formXml.getAbsolutePath());
+        FormDef fd;
+        InputStream in = new BufferedInputStream(new FileInputStream(formXml), BUFFER_SIZE);
+        try {
+            fd = XFormUtils.getFormFromInputStream(in);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        if (fd == null) {
+            return null;
+        }
+        serialized = serialize(fd);
+        if (serialized != null) {
+            writeFile(formBin, serialized);
+            sCache.put(formHash, serialized);
+        }
+        return fd;
+    }
+
+    /** Loads a form into the cache on a background thread, if it isn't already there. */
+    public static void prewarm(final File formXml) {
+        sPrewarmExecutor.execute(new Runnable() {
+            @Override public void run() {
+                String formHash = FileUtils.getCachedMd5Hash(formXml);
+                if (formHash == null || sCache.get(formHash) != null) {
+                    return;
+                }
+                try {
+                    load(formXml, formHash);
+                } catch (Exception e) {
+                    Log.w(t, "Could not prewarm " + formXml.getAbsolutePath(), e);
+                }
+            }
+        });
+    }
+
+    private static FormDef deserialize(byte[] serialized) {
+        try {
+            FormDef fd = new FormDef();
+            fd.readExternal(new DataInputStream(new ByteArrayInputStream(serialized)),
+                ExtUtil.defaultPrototypes());
+            return fd;
+        } catch (Exception e) {
+            Log.w(t, "Could not deserialize form", e);
+            return null;
+        }
+    }
+
+    private static byte[] serialize(FormDef fd) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(BUFFER_SIZE);
+            DataOutputStream dos = new DataOutputStream(out);
+            fd.writeExternal(dos);
+            dos.flush();
+            return out.toByteArray();
+        } catch (IOException e) {
+            Log.w(t, "Could not serialize form", e);
+            return null;
+        }
+    }
+
+    private static byte[] readFile(File file) {
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+            return IOUtils.toByteArray(in);
+        } catch (IOException e) {
+            Log.w(t, "Could not read " + file.getAbsolutePath(), e);
+            return null;
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /** Writes a file by way of a temporary file, so readers never see it half-written. */
+    private static void writeFile(File file, byte[] contents) {
+        File temp = new File(file.getPath() + ".tmp" + Thread.currentThread().getId());
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            out.write(contents);
+            out.close();
+            out = null;
+            if (!temp.renameTo(file)) {
+                Log.w(t, "Could not rename " + temp.getAbsolutePath());
+            }
+        } catch (IOException e) {
+            Log.w(t, "Could not write " + file.getAbsolutePath(), e);
+        } finally {
+            IOUtils.closeQuietly(out);
+            temp.delete();
+        }
+    }
+}
@@ -119,7 +119,7 @@ public class DiskSyncTask extends AsyncTask<Void, String, String> {
 		                    // remove it from the list of forms (we only want forms 
 		                	// we haven't added at the end)
 		                    xFormsToAdd.remove(sqlFile);
-		                    if (!FileUtils.getMd5Hash(sqlFile).contentEquals(md5)) {
+		                    if (md5 == null || !md5.equals(FileUtils.getCachedMd5Hash(sqlFile))) {
 		                        // Probably someone overwrite the file on the sdcard
 		                        // So re-parse it and update it's information
 		                        String id = mCursor.getString(mCursor.getColumnIndex(FormsColumns._ID));
@@ -19,7 +19,6 @@ import android.database.Cursor;
 import android.os.AsyncTask;
 import android.util.Log;
 
-import org.apache.commons.io.IOUtils;
 import org.javarosa.core.model.FormDef;
 import org.javarosa.core.model.FormIndex;
 import org.javarosa.core.model.condition.EvaluationContext;
@@ -29,13 +28,10 @@ import org.javarosa.core.model.instance.TreeReference;
 import org.javarosa.core.model.instance.utils.DefaultAnswerResolver;
 import org.javarosa.core.reference.ReferenceManager;
 import org.javarosa.core.reference.RootTranslator;
-import org.javarosa.core.util.externalizable.DeserializationException;
-import org.javarosa.core.util.externalizable.ExtUtil;
 import org.javarosa.form.api.FormEntryController;
 import org.javarosa.form.api.FormEntryModel;
 import org.javarosa.xform.parse.XFormParseException;
 import org.javarosa.xform.parse.XFormParser;
-import org.javarosa.xform.util.XFormUtils;
 import org.javarosa.xpath.XPathTypeMismatchException;
 import org.odk.collect.android.R;
 import org.odk.collect.android.application.Collect;
@@ -49,17 +45,14 @@ import org.odk.collect.android.external.ExternalDataReaderImpl;
 import org.odk.collect.android.external.handler.ExternalDataHandlerPull;
 import org.odk.collect.android.listeners.FormLoaderListener;
 import org.odk.collect.android.logic.FileReferenceFactory;
+import org.odk.collect.android.logic.FormDefCache;
 import org.odk.collect.android.logic.FormController;
 import org.odk.collect.android.utilities.FileUtils;
 import org.odk.collect.android.utilities.ZipUtils;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileFilter;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.HashMap;
@@ -128,55 +121,32 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
     protected FECWrapper doInBackground(String... path) {
         FormEntryController fec = null;
         FormDef fd = null;
-        FileInputStream fis = null;
         mErrorMsg = null;
 
         String formPath = path[0];
 
         File formXml = new File(formPath);
-        String formHash = FileUtils.getMd5Hash(formXml);
-        File formBin = new File(Collect.getInstance().getCachePath() + File.separator + formHash + ".formdef");
+        String formHash = FileUtils.getCachedMd5Hash(formXml);
 
         publishProgress(Collect.getInstance().getApplication().getString(R.string.survey_loading_reading_form_message));
 
-        if (formBin.exists()) {
-            // if we have binary, deserialize binary
-            Log.i(
-                t,
-                "Attempting to load " + formXml.getName() + " from cached file: "
-                        + formBin.getAbsolutePath());
-            fd = deserializeFormDef(formBin);
+        // The form comes from memory if it has been opened or prewarmed before, else from its
+        // serialized .formdef file or, failing that, by parsing the XML.
+        try {
+            Log.i(t, "Attempting to load " + formXml.getAbsolutePath());
+            fd = FormDefCache.load(formXml, formHash);
             if (fd == null) {
-                // some error occured with deserialization. Remove the file, and make a new .formdef
-                // from xml
-                Log.w(t,
-                    "Deserialization FAILED!  Deleting cache file: " + formBin.getAbsolutePath());
-                formBin.delete();
-            }
-        }
-        if (fd == null) {
-            // no binary, read from xml
-            try {
-                Log.i(t, "Attempting to load from: " + formXml.getAbsolutePath());
-                fis = new FileInputStream(formXml);
-                fd = XFormUtils.getFormFromInputStream(fis);
-                if (fd == null) {
-                    mErrorMsg = "Error reading XForm file";
-                } else {
-                    serializeFormDef(fd, formPath);
-                }
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
-                mErrorMsg = e.getMessage();
-            } catch (XFormParseException e) {
-                mErrorMsg = e.getMessage();
-                e.printStackTrace();
-            } catch (Exception e) {
-                mErrorMsg = e.getMessage();
-                e.printStackTrace();
-            } finally {
-                IOUtils.closeQuietly(fis);
+                mErrorMsg = "Error reading XForm file";
             }
+        } catch (FileNotFoundException e) {
+            e.printStackTrace();
+            mErrorMsg = e.getMessage();
+        } catch (XFormParseException e) {
+            mErrorMsg = e.getMessage();
+            e.printStackTrace();
+        } catch (Exception e) {
+            mErrorMsg = e.getMessage();
+            e.printStackTrace();
         }
 
         if (mErrorMsg != null || fd == null) {
@@ -324,9 +294,7 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
             new RootTranslator("jr://video/", "jr://file/forms/" + formFileName + "-media/"));
 
         // clean up vars
-        fis = null;
         fd = null;
-        formBin = null;
         formXml = null;
         formPath = null;
 
@@ -449,72 +417,6 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
         }
     }
 
-    /**
-     * Read serialized {@link FormDef} from file and recreate as object.
-     *
-     * @param formDef serialized FormDef file
-     * @return {@link FormDef} object
-     */
-    public FormDef deserializeFormDef(File formDef) {
-
-        // TODO: any way to remove reliance on jrsp?
-        FileInputStream fis = null;
-        FormDef fd = null;
-        try {
-            // create new form def
-            fd = new FormDef();
-            fis = new FileInputStream(formDef);
-            DataInputStream dis = new DataInputStream(fis);
-
-            // read serialized formdef into new formdef
-            fd.readExternal(dis, ExtUtil.defaultPrototypes());
-            dis.close();
-
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-            fd = null;
-        } catch (IOException e) {
-            e.printStackTrace();
-            fd = null;
-        } catch (DeserializationException e) {
-            e.printStackTrace();
-            fd = null;
-        } catch (Exception e) {
-            e.printStackTrace();
-            fd = null;
-        }
-
-        return fd;
-    }
-
-
-    /**
-     * Write the FormDef to the file system as a binary blog.
-     *
-     * @param filepath path to the form file
-     */
-    public void serializeFormDef(FormDef fd, String filepath) {
-        // calculate unique md5 identifier
-        String hash = FileUtils.getMd5Hash(new File(filepath));
-        File formDef = new File(Collect.getInstance().getCachePath() + File.separator + hash + ".formdef");
-
-        // formdef does not exist, create one.
-        if (!formDef.exists()) {
-            FileOutputStream fos;
-            try {
-                fos = new FileOutputStream(formDef);
-                DataOutputStream dos = new DataOutputStream(fos);
-                fd.writeExternal(dos);
-                dos.flush();
-                dos.close();
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
-    }
-
     @Override
     protected void onCancelled() {
         super.onCancelled();
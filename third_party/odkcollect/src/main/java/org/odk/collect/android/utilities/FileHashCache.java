@@ -0,0 +1,228 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.odk.collect.android.utilities;
+
+import android.util.Log;
+
+import org.apache.commons.io.IOUtils;
+import org.odk.collect.android.application.Collect;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the MD5 hash of each file along with the file's size and modification time, so that
+ * a file that hasn't changed since it was last hashed needn't be read again.  Form directory
+ * scans and form loading hash the same files over and over, which is slow on SD card storage.
+ * <p>
+ * Modification times can be as coarse as a second or two, so a file rewritten with the same
+ * length soon after it was hashed could look unchanged.  A hash is therefore only remembered if
+ * the file was last modified more than {@link #MODIFIED_RESOLUTION_MILLIS} before it was read,
+ * and code that rewrites a file should {@link #invalidate} its entry.
+ * <p>
+ * The entries are kept in a file in the ODK cache directory, so they outlive the process.  Each
+ * line of the file holds the size, modification time, hash and path of one file, separated by
+ * tabs.  New entries are written out {@link #SAVE_DELAY_MILLIS} after the first of them, so that
+ * a scan of many files writes the file once; entries for files that no longer exist are dropped
+ * when the file is read.
+ */
+public class FileHashCache {
+    private static final String t = "FileHashCache";
+
+    static final String FILENAME = "file-hashes.txt";
+
+    /** The coarsest modification time resolution we expect: that of FAT-formatted SD cards. */
+    static final long MODIFIED_RESOLUTION_MILLIS = 2000;
+
+    /** How long after a change the entries are written out, so that a scan writes them once. */
+    static final long SAVE_DELAY_MILLIS = 5000;
+
+    private static FileHashCache sInstance;
+
+    private final File mStore;
+    private final ScheduledExecutorService mSaveExecutor =
+        Executors.newSingleThreadScheduledExecutor();
+    /** Cached hashes by absolute path, or null until loaded from mStore.  Guarded by this. */
+    private Map<String, Entry> mEntries;
+    /** Whether mEntries has changes not yet in mStore; if so, a save is scheduled. */
+    private boolean mDirty;
+
+    private static class Entry {
+        final long size;
+        final long modified;
+        final String hash;
+
+        Entry(long size, long modified, String hash) {
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+        }
+
+        boolean matches(long size, long modified) {
+            return this.size == size && this.modified == modified;
+        }
+    }
+
+    public static synchronized FileHashCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new FileHashCache(
+                new File(Collect.getInstance().getCachePath(), FILENAME));
+        }
+        return sInstance;
+    }
+
+    FileHashCache(File store) {
+        mStore = store;
+    }
+
+    /**
+     * Returns the MD5 hash of a file, computing it only if the file's size or modification time
+     * has changed since it was last hashed.  Returns null if the file can't be read.
+     */
+    public String getMd5Hash(File file) {
+        String path = file.getAbsolutePath();
+        // Take the size and time before reading, so that a change made while the file is being
+        // read leaves an entry that doesn't match and the file is hashed again next time.
+        long size = file.length();
+        long modified = file.lastModified();
+        synchronized (this) {
+            Entry entry = getEntries().get(path);
+            if (entry != null && entry.matches(size, modified)) {
+                return entry.hash;
+            }
+        }
+
+        // Read the file without holding the lock, so that callers wanting other files needn't
+        // wait for it.
+        long readTime = System.currentTimeMillis();
+        String hash = FileUtils.getMd5Hash(file);
+        synchronized (this) {
+            if (hash == null || readTime - modified <= MODIFIED_RESOLUTION_MILLIS) {
+                // Unreadable, or modified so recently that a further change might not alter the
+                // modification time; don't remember it.
+                if (mEntries.remove(path) != null) {
+                    markDirty();
+                }
+            } else {
+                mEntries.put(path, new Entry(size, modified, hash));
+                markDirty();
+            }
+        }
+        return hash;
+    }
+
+    /** Forgets the hash of a file, so that it is read again the next time it is hashed. */
+    public synchronized void invalidate(File file) {
+        if (getEntries().remove(file.getAbsolutePath()) != null) {
+            // Written out at once, so that a stale entry can't outlive the process.
+            save();
+        }
+    }
+
+    /** Writes out any changed entries now, rather than waiting for the scheduled save. */
+    public synchronized void flush() {
+        if (mDirty) {
+            save();
+        }
+    }
+
+    private void markDirty() {
+        if (!mDirty) {
+            mDirty = true;
+            mSaveExecutor.schedule(new Runnable() {
+                @Override public void run() {
+                    flush();
+                }
+            }, SAVE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private Map<String, Entry> getEntries() {
+        if (mEntries == null) {
+            mEntries = new HashMap<String, Entry>();
+            if (mStore.exists()) {
+                load();
+            }
+        }
+        return mEntries;
+    }
+
+    private void load() {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(mStore), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("\t", 4);
+                if (parts.length == 4) {
+                    mEntries.put(parts[3], new Entry(
+                        Long.parseLong(parts[0]), Long.parseLong(parts[1]), parts[2]));
+                }
+            }
+            for (Iterator<String> it = mEntries.keySet().iterator(); it.hasNext(); ) {
+                if (!new File(it.next()).exists()) {
+                    it.remove();
+                    markDirty();
+                }
+            }
+        } catch (IOException e) {
+            // Every file will just be hashed again.
+            Log.w(t, "Could not read " + mStore.getAbsolutePath(), e);
+            mEntries.clear();
+        } catch (NumberFormatException e) {
+            Log.w(t, "Could not parse " + mStore.getAbsolutePath(), e);
+            mEntries.clear();
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+    }
+
+    /** Writes out all the entries by way of a temporary file, so a crash can't leave half. */
+    private void save() {
+        mDirty = false;
+        File temp = new File(mStore.getPath() + ".tmp");
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(temp), "UTF-8"));
+            for (Map.Entry<String, Entry> item : mEntries.entrySet()) {
+                Entry entry = item.getValue();
+                writer.write(entry.size + "\t" + entry.modified + "\t" + entry.hash
+                    + "\t" + item.getKey() + "\n");
+            }
+            writer.close();
+            writer = null;
+            if (!temp.renameTo(mStore)) {
+                Log.w(t, "Could not rename " + temp.getAbsolutePath());
+            }
+        } catch (IOException e) {
+            Log.w(t, "Could not write " + mStore.getAbsolutePath(), e);
+        } finally {
+            IOUtils.closeQuietly(writer);
+            temp.delete();
+        }
+    }
+}
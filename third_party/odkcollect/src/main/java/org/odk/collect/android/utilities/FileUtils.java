@@ -125,37 +125,20 @@ public class FileUtils {
     }
 
 
+    /** Size of the reads used to stream a file through a digest. */
+    private static final int HASH_BUFFER_SIZE = 64 * 1024;
+
     public static String getMd5Hash(File file) {
+        InputStream is = null;
         try {
             // CTS (6/15/2010) : stream file through digest instead of handing it the byte[]
             MessageDigest md = MessageDigest.getInstance("MD5");
-            int chunkSize = 256;
-
-            byte[] chunk = new byte[chunkSize];
-
-            // Get the size of the file
-            long lLength = file.length();
-
-            if (lLength > Integer.MAX_VALUE) {
-                Log.e(t, "File " + file.getName() + "is too large");
-                return null;
-            }
+            byte[] chunk = new byte[HASH_BUFFER_SIZE];
 
-            int length = (int) lLength;
-
-            InputStream is = null;
             is = new FileInputStream(file);
-
-            int l = 0;
-            for (l = 0; l + chunkSize < length; l += chunkSize) {
-                is.read(chunk, 0, chunkSize);
-                md.update(chunk, 0, chunkSize);
-            }
-
-            int remaining = length - l;
-            if (remaining > 0) {
-                is.read(chunk, 0, remaining);
-                md.update(chunk, 0, remaining);
+            int count;
+            while ((count = is.read(chunk)) != -1) {
+                md.update(chunk, 0, count);
             }
             byte[] messageDigest = md.digest();
 
@@ -163,7 +146,6 @@ public class FileUtils {
             String md5 = number.toString(16);
             while (md5.length() < 32)
                 md5 = "0" + md5;
-            is.close();
             return md5;
 
         } catch (NoSuchAlgorithmException e) {
@@ -176,10 +158,20 @@ public class FileUtils {
         } catch (IOException e) {
             Log.e("Problem reading from file", e.getMessage());
             return null;
+        } finally {
+            IOUtils.closeQuietly(is);
         }
 
     }
 
+    /**
+     * Same as {@link #getMd5Hash}, but skips reading the file if it has the same size and
+     * modification time as when it was last hashed.  See {@link FileHashCache}.
+     */
+    public static String getCachedMd5Hash(File file) {
+        return FileHashCache.getInstance().getMd5Hash(file);
+    }
+
 
     public static Bitmap getBitmapScaledToDisplay(File f, int screenHeight, int screenWidth) {
         // Determine image size of f